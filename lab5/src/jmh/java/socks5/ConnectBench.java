@@ -0,0 +1,34 @@
+package socks5;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+//новое соединение: accept -> приветствие -> CONNECT до эхо-сервера -> закрытие
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsocks5.log=off")
+@State(Scope.Benchmark)
+public class ConnectBench {
+    private Harness h;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        h = new Harness();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        h.close();
+    }
+
+    @Benchmark
+    public boolean connect() throws Exception {
+        try (SocketChannel c = h.connect()) {
+            return c.isConnected();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package socks5;
+
+import org.openjdk.jmh.annotations.*;
+import org.xbill.DNS.*;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+//кодирование запроса и разбор ответа на A-запрос с несколькими адресами
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsocks5.log=off")
+@State(Scope.Thread)
+public class DnsBench {
+    private static final String NAME = "www.example.com";
+
+    private byte[] response;
+    private final ArrayList<InetAddress> out = new ArrayList<>(4);
+    private int id = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        Message m = Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString(NAME + "."), Type.A, DClass.IN));
+        m.getHeader().setFlag(Flags.QR);
+        for (int i = 1; i <= 4; i++) {
+            m.addRecord(new ARecord(Name.fromString(NAME + "."), DClass.IN, 300,
+                    InetAddress.getByAddress(new byte[]{93, (byte) 184, (byte) 216, (byte) i})), Section.ANSWER);
+        }
+        response = m.toWire();
+    }
+
+    @Benchmark
+    public byte[] encodeQuery() throws Exception {
+        id = (id + 1) & 0xFFFF;
+        return Dns.encode(NAME, Type.A, id);
+    }
+
+    @Benchmark
+    public long decodeAnswer() throws Exception {
+        out.clear();
+        Message m = Dns.decode(response, response.length);
+        return Dns.answers(m, out) + out.size();
+    }
+}
@@ -0,0 +1,105 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+//прокси в этом же процессе: один Loop, приемник, отдающий ему соединения
+//(или VConn при -Dsocks5.engine=virtual), и эхо-сервер на loopback.
+//все потоки - демоны, форк JMH их не ждет
+final class Harness implements AutoCloseable {
+    final InetSocketAddress proxy, echo;
+    private final ServerSocketChannel proxySrv, echoSrv;
+
+    Harness() throws IOException {
+        InetAddress lo = InetAddress.getLoopbackAddress();
+        Loop loop = new Loop(0);
+        daemon(loop, "loop-0");
+
+        echoSrv = ServerSocketChannel.open().bind(new InetSocketAddress(lo, 0));
+        echo = (InetSocketAddress) echoSrv.getLocalAddress();
+        daemon(() -> acceptEcho(echoSrv), "echo");
+
+        proxySrv = ServerSocketChannel.open().bind(new InetSocketAddress(lo, 0));
+        proxy = (InetSocketAddress) proxySrv.getLocalAddress();
+        daemon(() -> {
+            try {
+                while (true) {
+                    SocketChannel c = proxySrv.accept();
+                    c.configureBlocking(false);
+                    c.socket().setTcpNoDelay(true);
+                    Admission.admit(lo);
+                    if (Acceptor.VIRTUAL) VConn.start(c, lo);
+                    else loop.handoff(c);
+                }
+            } catch (IOException ignored) {}
+        }, "acceptor");
+    }
+
+    //блокирующий клиент с пройденным рукопожатием CONNECT до эхо-сервера
+    SocketChannel connect() throws IOException {
+        return connect(echo);
+    }
+
+    SocketChannel connect(InetSocketAddress target) throws IOException {
+        SocketChannel c = SocketChannel.open(proxy);
+        c.socket().setTcpNoDelay(true);
+        ByteBuffer b = ByteBuffer.allocate(32);
+
+        b.put(new byte[]{5, 1, 0}).flip();
+        writeFully(c, b);
+        readFully(c, b.clear().limit(2));
+
+        b.clear().put(new byte[]{5, 1, 0, 1}).put(target.getAddress().getAddress()).putShort((short) target.getPort()).flip();
+        writeFully(c, b);
+        readFully(c, b.clear().limit(10));
+        if (b.get(1) != 0) throw new IOException("CONNECT failed, REP=" + b.get(1));
+        return c;
+    }
+
+    static void writeFully(SocketChannel c, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) c.write(b);
+    }
+
+    static void readFully(SocketChannel c, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (c.read(b) < 0) throw new IOException("unexpected EOF");
+        }
+    }
+
+    private static void acceptEcho(ServerSocketChannel srv) {
+        try {
+            while (true) {
+                SocketChannel c = srv.accept();
+                c.socket().setTcpNoDelay(true);
+                daemon(() -> echo(c), "echo-conn");
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static void echo(SocketChannel c) {
+        ByteBuffer b = ByteBuffer.allocateDirect(64 * 1024);
+        try (c) {
+            while (c.read(b) >= 0) {
+                b.flip();
+                writeFully(c, b);
+                b.clear();
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static void daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void close() {
+        try { proxySrv.close(); } catch (IOException ignored) {}
+        try { echoSrv.close(); } catch (IOException ignored) {}
+    }
+}
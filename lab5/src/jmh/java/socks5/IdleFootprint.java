@@ -0,0 +1,72 @@
+package socks5;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+//память на простаивающий туннель: N соединений через прокси к серверу, который
+//только принимает и молчит. не JMH - одно измерение после GC:
+//java [-Dsocks5.engine=virtual] -cp target/benchmarks.jar socks5.IdleFootprint [N]
+public class IdleFootprint {
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        System.setProperty("socks5.log", "off");
+
+        ServerSocketChannel sink = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        ArrayList<SocketChannel> held = new ArrayList<>(n * 2);
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel c = sink.accept();
+                    synchronized (held) { held.add(c); }
+                }
+            } catch (Exception ignored) {}
+        }, "sink");
+        t.setDaemon(true);
+        t.start();
+
+        Harness h = new Harness();
+        InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+        h.connect(target).close();
+        Thread.sleep(500);
+        long[] before = snapshot();
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) held.add(h.connect(target));
+        long openMs = (System.nanoTime() - t0) / 1_000_000;
+        Thread.sleep(1000);
+        long[] after = snapshot();
+
+        String engine = Acceptor.VIRTUAL ? "virtual" : "nio";
+        System.out.printf("engine=%s tunnels=%d open=%d ms%n", engine, n, openMs);
+        System.out.printf("  heap   %8d KB  (%5d B/tunnel)%n", (after[0] - before[0]) >> 10, (after[0] - before[0]) / n);
+        System.out.printf("  direct %8d KB  (%5d B/tunnel)%n", (after[1] - before[1]) >> 10, (after[1] - before[1]) / n);
+        System.out.printf("  rss    %8d KB  (%5d B/tunnel)%n", after[2] - before[2], (after[2] - before[2]) * 1024 / n);
+        System.out.printf("  platform threads %d -> %d%n", before[3], after[3]);
+        System.exit(0);
+    }
+
+    //занятая куча после GC, direct-буферы, RSS процесса (КБ), платформенные потоки
+    private static long[] snapshot() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long direct = 0;
+        for (BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (b.getName().equals("direct")) direct = b.getMemoryUsed();
+        }
+        long rss = 0;
+        for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+            if (line.startsWith("VmRSS:")) rss = Long.parseLong(line.replaceAll("\\D", ""));
+        }
+        return new long[]{ heap, direct, rss, ManagementFactory.getThreadMXBean().getThreadCount() };
+    }
+}
@@ -0,0 +1,120 @@
+package socks5;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+//разбор приветствия и запроса автоматом Handshake: отдельными чтениями,
+//по байту и склеенными в одном чтении; кодирование ответа
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsocks5.log=off")
+@State(Scope.Thread)
+public class ParserBench {
+    @Param({"ipv4", "domain", "ipv6"})
+    public String atyp;
+
+    private final byte[] greeting = {5, 2, 0, 2};
+    private byte[] request, coalesced;
+    private final ByteBuffer in = ByteBuffer.allocate(512);
+    private final ByteBuffer out = ByteBuffer.allocate(64);
+    private final Handshake hs = new Handshake();
+    private byte[] v4, v6;
+
+    @Setup
+    public void setup() throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(300).put(new byte[]{5, 1, 0});
+        switch (atyp) {
+            case "ipv4" -> b.put((byte) 1).put(new byte[]{93, (byte) 184, (byte) 216, 34});
+            case "ipv6" -> b.put((byte) 4).put(InetAddress.getByName("2606:2800:220:1:248:1893:25c8:1946").getAddress());
+            default -> {
+                byte[] name = "www.example.com".getBytes(StandardCharsets.US_ASCII);
+                b.put((byte) 3).put((byte) name.length).put(name);
+            }
+        }
+        b.putShort((short) 443).flip();
+        request = new byte[b.remaining()];
+        b.get(request);
+
+        coalesced = new byte[greeting.length + request.length];
+        System.arraycopy(greeting, 0, coalesced, 0, greeting.length);
+        System.arraycopy(request, 0, coalesced, greeting.length, request.length);
+
+        //как после Loop.addrBytes: локальный адрес уже в кеше цикла
+        v4 = InetAddress.getByName("10.1.2.3").getAddress();
+        v6 = InetAddress.getByName("fd00::1").getAddress();
+    }
+
+    //результат разбора в виде числа, чтобы JIT не выбросил работу
+    private long result(int r) {
+        if (r != Handshake.REQUEST) throw new IllegalStateException("parse result " + r);
+        return hs.port + hs.addrLen + hs.cmd;
+    }
+
+    //цель в том виде, в каком ее видят правила в Conn.onRequest: имя или байты адреса
+    private Object target() {
+        return hs.atyp == 0x03 ? hs.domain() : hs.ip();
+    }
+
+    //два чтения: приветствие, затем запрос
+    @Benchmark
+    public long whole() {
+        hs.reset();
+        in.clear();
+        in.put(greeting);
+        if (hs.next(in) != Handshake.GREETING) throw new IllegalStateException();
+        in.put(request);
+        return result(hs.next(in));
+    }
+
+    //по байту на чтение - худший случай для возобновления разбора
+    @Benchmark
+    public long fragmented() {
+        hs.reset();
+        in.clear();
+        int r = Handshake.MORE;
+        for (byte x : coalesced) {
+            in.put(x);
+            r = hs.next(in);
+        }
+        return result(r);
+    }
+
+    //приветствие и запрос пришли одним чтением
+    @Benchmark
+    public long coalesced() {
+        hs.reset();
+        in.clear();
+        in.put(coalesced);
+        if (hs.next(in) != Handshake.GREETING) throw new IllegalStateException();
+        return result(hs.next(in));
+    }
+
+    //как в Conn: разбор + цель + поиск по правилам; для ipv4/ipv6 - 0 B/op,
+    //для domain - только строка имени для DNS
+    @Benchmark
+    public Object coalescedWithTarget() {
+        coalesced();
+        Object t = target();
+        return Rules.match(t, hs.port, null) != null ? t : null;
+    }
+
+    @Benchmark
+    public ByteBuffer replyV4() {
+        out.clear();
+        Conn.putReply(out, (byte) 0x00, v4, 50123);
+        return out;
+    }
+
+    @Benchmark
+    public ByteBuffer replyV6() {
+        out.clear();
+        Conn.putReply(out, (byte) 0x00, v6, 50123);
+        return out;
+    }
+}
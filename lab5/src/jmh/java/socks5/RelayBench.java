@@ -0,0 +1,61 @@
+package socks5;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+//клиент -> Loop -> эхо-сервер -> Loop -> клиент на loopback.
+//roundTrip - один обмен size байт по готовому туннелю.
+//SampleTime дает перцентили задержки, Throughput - операции в секунду
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsocks5.log=off")
+@State(Scope.Benchmark)
+public class RelayBench {
+    @Param({"64", "16384"})
+    public int size;
+
+    private Harness h;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        h = new Harness();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        h.close();
+    }
+
+    //свой туннель на каждый поток бенчмарка
+    @State(Scope.Thread)
+    public static class Tunnel {
+        SocketChannel c;
+        ByteBuffer out, in;
+
+        @Setup(Level.Trial)
+        public void open(RelayBench b) throws Exception {
+            c = b.h.connect();
+            out = ByteBuffer.allocateDirect(b.size);
+            in = ByteBuffer.allocateDirect(b.size);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            c.close();
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(Tunnel t) throws Exception {
+        t.out.clear();
+        Harness.writeFully(t.c, t.out);
+        t.in.clear();
+        Harness.readFully(t.c, t.in);
+        return t.in.get(0);
+    }
+}
@@ -0,0 +1,55 @@
+package socks5;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+//поиск правила для CONNECT: время не должно зависеть от числа правил
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsocks5.log=off")
+@State(Scope.Thread)
+public class RulesBench {
+    @Param({"100", "100000"})
+    public int rules;
+
+    private InetAddress client, hitIp, missIp;
+
+    @Setup
+    public void setup() throws Exception {
+        //половина - домены, половина - сети /24, в конце общее правило
+        ArrayList<String> lines = new ArrayList<>(rules + 1);
+        for (int i = 0; i < rules / 2; i++) lines.add("deny host" + i + ".zone" + (i % 1000) + ".example.com");
+        for (int i = 0; i < rules / 2; i++) lines.add("deny 10." + (i >> 8 & 0xFF) + "." + (i & 0xFF) + ".0/24 port=443");
+        lines.add("allow * src=192.168.0.0/16");
+        Rules.load(lines);
+
+        client = InetAddress.getByName("192.168.1.10");
+        hitIp = InetAddress.getByName("10.0.7.1");
+        missIp = InetAddress.getByName("172.16.0.1");
+    }
+
+    @Benchmark
+    public int domainHit() {
+        return Rules.match("cdn.host7.zone7.example.com", 443, client).line;
+    }
+
+    @Benchmark
+    public int domainMiss() {
+        return Rules.match("www.example.org", 443, client).line;
+    }
+
+    @Benchmark
+    public int ipHit() {
+        return Rules.match(hitIp, 443, client).line;
+    }
+
+    @Benchmark
+    public int ipMiss() {
+        return Rules.match(missIp, 443, client).line;
+    }
+}
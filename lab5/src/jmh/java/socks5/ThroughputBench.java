@@ -0,0 +1,59 @@
+package socks5;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+//поток данных через туннель на loopback: клиент пишет порциями по chunk байт и
+//одновременно вычитывает эхо (неблокирующий сокет, без ожидания ответа на каждую
+//порцию). операция - 8 МБ туда и обратно, МБ/с = ops/s * 8
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dsocks5.log=off")
+@State(Scope.Benchmark)
+public class ThroughputBench {
+    private static final int TOTAL = 8 << 20;
+
+    @Param({"1024", "65536"})
+    public int chunk;
+
+    private Harness h;
+    private SocketChannel c;
+    private ByteBuffer out, in;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        h = new Harness();
+        c = h.connect();
+        c.configureBlocking(false);
+        out = ByteBuffer.allocateDirect(chunk);
+        in = ByteBuffer.allocateDirect(256 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        c.close();
+        h.close();
+    }
+
+    @Benchmark
+    public long stream() throws Exception {
+        long sent = 0, received = 0;
+        while (received < TOTAL) {
+            if (sent < TOTAL) {
+                if (!out.hasRemaining()) out.clear().limit((int) Math.min(chunk, TOTAL - sent));
+                sent += c.write(out);
+            }
+            in.clear();
+            int n = c.read(in);
+            if (n < 0) throw new IllegalStateException("unexpected EOF");
+            received += n;
+        }
+        out.position(out.limit());
+        return received;
+    }
+}
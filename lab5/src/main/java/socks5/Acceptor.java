@@ -0,0 +1,193 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.*;
+
+//-Dsocks5.reuseport=true - слушать вместе с работающим экземпляром (SO_REUSEPORT):
+//новый процесс поднимается на том же порту, затем старому шлют SIGTERM.
+//если процесс запущен с унаследованным слушающим сокетом (systemd socket activation,
+//inetd wait), используется он, а порт из командной строки игнорируется.
+//по SIGTERM прием прекращается, открытые туннели дорабатывают до -Dsocks5.drain.timeout мс.
+//-Dsocks5.engine=nio|virtual - кто ведет SOCKS-соединения: циклы Loop или VConn
+final class Acceptor {
+    static final boolean REUSE_PORT = Boolean.getBoolean("socks5.reuseport");
+    static final String ENGINE = System.getProperty("socks5.engine", "nio");
+    static final boolean VIRTUAL = "virtual".equals(ENGINE);
+    static final long DRAIN_MS = Long.getLong("socks5.drain.timeout", 30_000);
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final SelectionKey key;
+    private final ServerSocketChannel http; //режим HTTP, null - выключен
+    private final SelectionKey httpKey;
+    private final Loop[] loops;
+    private final Thread[] threads;
+    private int next = 0;
+    private volatile boolean stopping = false;
+    private volatile Thread acceptThread;
+
+    Acceptor(int port, int workers) throws IOException {
+        Users.init();
+        Upstream.init();
+        Rules.init();
+        if (VIRTUAL && Upstream.all().length > 0) {
+            throw new IOException("socks5.upstreams is not supported by socks5.engine=virtual");
+        }
+        if (HttpCache.ENABLED) HttpCache.init();
+        if (FlowLog.ENABLED) FlowLog.init();
+        loops = new Loop[workers];
+        for (int i = 0; i < workers; i++) loops[i] = new Loop(i);
+        threads = new Thread[workers];
+
+        selector = Selector.open();
+        server = listen(port);
+        port = server.socket().getLocalPort();
+        server.configureBlocking(false);
+        key = server.register(selector, SelectionKey.OP_ACCEPT);
+        if (HttpCache.ENABLED) {
+            http = ServerSocketChannel.open();
+            if (REUSE_PORT) http.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            http.bind(new InetSocketAddress(HttpCache.PORT), Admission.BACKLOG);
+            http.configureBlocking(false);
+            httpKey = http.register(selector, SelectionKey.OP_ACCEPT);
+        } else {
+            http = null;
+            httpKey = null;
+        }
+        Admission.init(selector);
+
+        System.out.println("DNS resolver: " + loops[0].resolverAddr());
+        System.out.println("Admission: " + Admission.describe());
+        if (Shaper.ENABLED) System.out.println("Rate limits: " + Shaper.describe());
+        if (VIRTUAL) System.out.println("SOCKS5 proxy listening on port " + port + " (virtual threads)");
+        else System.out.println("SOCKS5 proxy listening on port " + port + " (" + workers + " worker loops, " + loops[0].transport().describe() + ")");
+        if (http != null) System.out.println("HTTP caching proxy listening on port " + HttpCache.PORT);
+    }
+
+    private static ServerSocketChannel listen(int port) throws IOException {
+        Channel inherited = System.inheritedChannel();
+        if (inherited instanceof ServerSocketChannel ss) {
+            System.out.println("Using inherited listening socket " + ss.getLocalAddress());
+            return ss;
+        }
+        ServerSocketChannel ss = ServerSocketChannel.open();
+        if (REUSE_PORT) ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        ss.bind(new InetSocketAddress(port), Admission.BACKLOG);
+        return ss;
+    }
+
+    void run() throws IOException {
+        acceptThread = Thread.currentThread();
+        MetricsServer.start(loops);
+        for (int i = 0; i < loops.length; i++) {
+            threads[i] = new Thread(loops[i], "loop-" + i);
+            threads[i].start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "drain"));
+
+        while (!stopping) {
+            selector.select();
+            selector.selectedKeys().clear();
+            //разбудили освободившимся слотом
+            if (Admission.paused() && Admission.canAccept()) {
+                Admission.resume();
+                setOps(SelectionKey.OP_ACCEPT);
+            }
+            if (!Admission.paused()) {
+                acceptAll(server, false);
+                if (http != null) acceptAll(http, true);
+            }
+        }
+        //одна пачка из очереди ядра, чтобы не рвать только что пришедших; дальше
+        //не ждем: с SO_REUSEPORT под нагрузкой очередь может не кончиться никогда
+        if (!Admission.paused()) {
+            acceptAll(server, false);
+            if (http != null) acceptAll(http, true);
+        }
+        closeListeners();
+        selector.close();
+    }
+
+    private void closeListeners() {
+        try { server.close(); } catch (IOException ignored) {}
+        try { if (http != null) http.close(); } catch (IOException ignored) {}
+    }
+
+    //поток shutdown hook: закрыть прием, дождаться циклов, не дольше DRAIN_MS
+    private void shutdown() {
+        long deadline = System.currentTimeMillis() + DRAIN_MS;
+        stopping = true;
+        selector.wakeup();
+        try {
+            if (acceptThread != null) acceptThread.join(1000);
+            //прием закрыт до drain: после него циклу уже не передадут ни одного сокета
+            //(если поток приема так и не вышел - то, что он успеет передать, закроет Loop)
+            closeListeners();
+
+            int open = VConn.open();
+            for (Loop l : loops) open += l.open();
+            System.out.println("Shutting down: draining " + open + " connections, up to " + DRAIN_MS + " ms");
+            for (Loop l : loops) l.drain(DRAIN_MS);
+            if (VIRTUAL) VConn.drain(deadline);
+            for (Thread t : threads) {
+                //+1 с на закрытие остатков после срока
+                if (t != null) t.join(Math.max(1, deadline - System.currentTimeMillis() + 1000));
+            }
+            System.out.println("Shutdown complete");
+        } catch (InterruptedException ignored) {}
+        Log.flush();
+        if (FlowLog.ENABLED) FlowLog.flush();
+    }
+
+    private void setOps(int ops) {
+        key.interestOps(ops);
+        if (httpKey != null) httpKey.interestOps(ops);
+    }
+
+    //не больше BATCH за раз: остальное заберем на следующем select
+    private void acceptAll(ServerSocketChannel ss, boolean isHttp) throws IOException {
+        for (int i = 0; i < Admission.BATCH; i++) {
+            if (!Admission.canAccept() && Admission.pause()) {
+                setOps(0);
+                return;
+            }
+            SocketChannel c = ss.accept();
+            if (c == null) return;
+
+            InetAddress ip = null;
+            try {
+                ip = ((InetSocketAddress) c.getRemoteAddress()).getAddress();
+                if (!Admission.admit(ip)) {
+                    //RST, чтобы не держать сокет в TIME_WAIT
+                    c.setOption(StandardSocketOptions.SO_LINGER, 0);
+                    c.close();
+                    continue;
+                }
+            } catch (IOException e) {
+                try { c.close(); } catch (Exception ignored) {}
+                continue;
+            }
+
+            try {
+                c.configureBlocking(false);
+                c.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                try { c.close(); } catch (Exception ignored) {}
+                Admission.release(ip, true);
+                continue;
+            }
+
+            //round-robin по рабочим циклам
+            if (!isHttp && VIRTUAL) {
+                VConn.start(c, ip);
+                continue;
+            }
+            if (isHttp) loops[next].handoffHttp(c);
+            else loops[next].handoff(c);
+            if (++next == loops.length) next = 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package socks5;
+
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//допуск клиентских соединений. пределы (0 - нет предела):
+//-Dsocks5.max.conns - открытых соединений, -Dsocks5.max.handshakes - незавершенных
+//рукопожатий (до разобранного запроса), -Dsocks5.max.perip - с одного адреса.
+//упершись в первые два, Acceptor снимает OP_ACCEPT и новые соединения ждут в очереди
+//ядра (-Dsocks5.backlog); освободившийся слот будит Acceptor.
+//адрес известен только после accept, поэтому лишние соединения с одного IP сбрасываются
+final class Admission {
+    static final int MAX_CONNS = Integer.getInteger("socks5.max.conns", 0);
+    static final int MAX_HANDSHAKES = Integer.getInteger("socks5.max.handshakes", 0);
+    static final int MAX_PER_IP = Integer.getInteger("socks5.max.perip", 0);
+    static final int BACKLOG = Integer.getInteger("socks5.backlog", 1024);
+    static final int BATCH = Math.max(1, Integer.getInteger("socks5.accept.batch", 64));
+
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final AtomicInteger handshakes = new AtomicInteger();
+    private static final ConcurrentHashMap<InetAddress, Integer> perIp = new ConcurrentHashMap<>();
+
+    private static final LongAdder rejected = new LongAdder();
+    private static final LongAdder pauses = new LongAdder();
+
+    private static volatile boolean paused = false;
+    private static Selector acceptor;
+
+    private Admission() {}
+
+    static void init(Selector acceptorSelector) { acceptor = acceptorSelector; }
+
+    //есть ли место для еще одного соединения (без учета его адреса)
+    static boolean canAccept() {
+        return (MAX_CONNS <= 0 || open.get() < MAX_CONNS)
+                && (MAX_HANDSHAKES <= 0 || handshakes.get() < MAX_HANDSHAKES);
+    }
+
+    //поток Acceptor: true - OP_ACCEPT надо снять. флаг ставится до повторной проверки,
+    //иначе освобождение слота между проверкой и select потеряет пробуждение
+    static boolean pause() {
+        paused = true;
+        if (canAccept()) {
+            paused = false;
+            return false;
+        }
+        pauses.increment();
+        return true;
+    }
+
+    static boolean paused() { return paused; }
+    static void resume() { paused = false; }
+
+    //принятое соединение: false - предел на адрес, соединение надо сбросить
+    static boolean admit(InetAddress ip) {
+        if (MAX_PER_IP > 0 && ip != null && perIp.merge(ip, 1, Integer::sum) > MAX_PER_IP) {
+            dec(ip);
+            rejected.increment();
+            return false;
+        }
+        open.incrementAndGet();
+        handshakes.incrementAndGet();
+        return true;
+    }
+
+    //Conn разобрал запрос
+    static void handshakeDone() {
+        handshakes.decrementAndGet();
+        wake();
+    }
+
+    //Conn закрыт; handshaking - так и не дошел до handshakeDone
+    static void release(InetAddress ip, boolean handshaking) {
+        if (MAX_PER_IP > 0 && ip != null) dec(ip);
+        if (handshaking) handshakes.decrementAndGet();
+        open.decrementAndGet();
+        wake();
+    }
+
+    private static void dec(InetAddress ip) {
+        perIp.computeIfPresent(ip, (k, n) -> n == 1 ? null : n - 1);
+    }
+
+    private static void wake() {
+        if (paused && acceptor != null) acceptor.wakeup();
+    }
+
+    static int open() { return open.get(); }
+    static int handshakes() { return handshakes.get(); }
+    static long rejected() { return rejected.sum(); }
+    static long pauses() { return pauses.sum(); }
+
+    static String describe() {
+        return "max conns=" + MAX_CONNS + " handshakes=" + MAX_HANDSHAKES + " per IP=" + MAX_PER_IP
+                + ", backlog " + BACKLOG + ", accept batch " + BATCH;
+    }
+}
@@ -0,0 +1,74 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+
+//слушающий сокет команды BIND: ждет одно входящее соединение
+//и отдает его Conn, дальше обычный RELAY. пришедший проходит правила, как цель CONNECT
+final class Bind {
+    private final Loop loop;
+    private final Conn conn;
+    private final ServerSocketChannel server;
+    private final SelectionKey key;
+    private final InetAddress expected; //null - принимаем от любого
+    private final InetAddress client;
+
+    Bind(Loop loop, Conn conn, InetAddress expected, InetAddress client) throws IOException {
+        this.loop = loop;
+        this.conn = conn;
+        this.expected = expected;
+        this.client = client;
+
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(new InetSocketAddress(0), 1);
+        key = loop.register(server, SelectionKey.OP_ACCEPT, this);
+    }
+
+    Conn owner() { return conn; }
+
+    int port() {
+        return server.socket().getLocalPort();
+    }
+
+    void onAcceptable() throws IOException {
+        while (true) {
+            SocketChannel ch = server.accept();
+            if (ch == null) return;
+
+            InetSocketAddress from;
+            try {
+                from = (InetSocketAddress) ch.getRemoteAddress();
+                //RFC 1928: DST.ADDR в запросе BIND - кого ждем
+                if (expected != null && !expected.equals(from.getAddress())) {
+                    Log.event(Log.BIND_REJECT, conn.id(), from, expected.getHostAddress());
+                    try { ch.close(); } catch (Exception ignored) {}
+                    continue;
+                }
+                Rules.Rule r = Rules.match(from.getAddress(), from.getPort(), client);
+                if (r.action == Rules.DENY) {
+                    loop.metrics().denied++;
+                    Log.event(Log.DENY, conn.id(), from.getPort(), r.line, 0, from.getAddress(), null);
+                    try { ch.close(); } catch (Exception ignored) {}
+                    continue;
+                }
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                //сброшено, не успев принять: ждем следующего, Conn не трогаем
+                try { ch.close(); } catch (Exception ignored) {}
+                continue;
+            }
+
+            close();
+            conn.onBound(ch, from);
+            return;
+        }
+    }
+
+    void close() {
+        try { key.cancel(); } catch (Exception ignored) {}
+        try { server.close(); } catch (Exception ignored) {}
+    }
+}
@@ -0,0 +1,69 @@
+package socks5;
+
+import java.util.ArrayDeque;
+
+//пул колец для Relay, свой у каждого цикла (без блокировок). классы размера -
+//степени двойки от MIN до MAX (-Dsocks5.relay.buf.min/.max, 4 КБ и 128 КБ; на 256 КБ
+//обмен короткими сообщениями уже медленнее)
+final class BufPool {
+    static final int MIN = Integer.highestOneBit(Math.max(1024, Integer.getInteger("socks5.relay.buf.min", 4 * 1024)));
+    static final int MAX = Math.max(MIN, Integer.highestOneBit(Integer.getInteger("socks5.relay.buf.max", 128 * 1024)));
+    //сколько байт в свободных кольцах держать, остальное отдается GC
+    //(-Dsocks5.pool.max - в буферах прежнего размера 32 КБ)
+    static final long MAX_FREE_BYTES = Integer.getInteger("socks5.pool.max", 1024) * 32L * 1024;
+
+    private static final int SHIFT = Integer.numberOfTrailingZeros(MIN);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Ring>[] free = new ArrayDeque[Integer.numberOfTrailingZeros(MAX) - SHIFT + 1];
+    private long freeBytes = 0;
+    private int freeCount = 0;
+
+    private long borrowed = 0;
+    private long misses = 0;
+
+    BufPool() {
+        for (int i = 0; i < free.length; i++) free[i] = new ArrayDeque<>();
+    }
+
+    //ближайший класс не меньше cap
+    static int classCap(int cap) {
+        if (cap <= MIN) return MIN;
+        if (cap >= MAX) return MAX;
+        return Integer.highestOneBit(cap - 1) << 1;
+    }
+
+    Ring get(int cap) {
+        cap = classCap(cap);
+        borrowed++;
+        Ring r = free[index(cap)].pollLast();
+        if (r != null) {
+            freeBytes -= cap;
+            freeCount--;
+            return r;
+        }
+        misses++;
+        return new Ring(cap);
+    }
+
+    void put(Ring r) {
+        borrowed--;
+        int cap = r.capacity();
+        if (freeBytes + cap > MAX_FREE_BYTES) return;
+        r.clear();
+        free[index(cap)].addLast(r);
+        freeBytes += cap;
+        freeCount++;
+    }
+
+    private static int index(int cap) { return Integer.numberOfTrailingZeros(cap) - SHIFT; }
+
+    int size() { return freeCount; }
+    long borrowed() { return borrowed; }
+    long misses() { return misses; }
+
+    @Override
+    public String toString() {
+        return "pool free=" + freeCount + " (" + (freeBytes >> 10) + " KB) borrowed=" + borrowed + " misses=" + misses;
+    }
+}
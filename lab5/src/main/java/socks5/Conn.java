@@ -6,73 +6,94 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
-final class Conn {
+final class Conn implements Dns.Waiter, Users.Waiter, Dialer.Client, Tunnel.Client {
     private static final byte VER = 0x05;
     private static final int CTRL_CAP = 512;
-    private static final int BUF_CAP  = 32 * 1024;
+    private static final int CTRL_OUT_CAP = 64; //ответ на приветствие + два ответа BIND
+
+    private static final long HANDSHAKE_TIMEOUT = Long.getLong("socks5.timeout.handshake", 10_000);
+    private static final long CONNECT_TIMEOUT   = Long.getLong("socks5.timeout.connect", 10_000);
+    private static final long DNS_TIMEOUT       = Dns.DEADLINE_MS;
+    private static final long IDLE_TIMEOUT      = Long.getLong("socks5.timeout.idle", 300_000);
 
     private static final AtomicInteger SEQ = new AtomicInteger(1);
 
-    private enum St { GREET, REQ, RESOLVE, CONNECT, RELAY, FAIL_FLUSH }
+    //номера для логов, общие с HttpConn
+    static int nextId() { return SEQ.getAndIncrement(); }
+
+    enum St { GREET, AUTH, AUTH_CHECK, REQ, RESOLVE, CONNECT, BIND, RELAY, ASSOC, FAIL_FLUSH }
 
-    private final int id = SEQ.getAndIncrement();
-    private final Selector selector;
+    private final int id = nextId();
+    private final Loop loop;
     private final Dns dns;
+    private final Metrics metrics;
 
     private final SocketChannel client;
+    private final InetAddress peer;
     private SocketChannel remote;
 
     private SelectionKey clientKey, remoteKey;
     private St currentState = St.GREET;
 
     private final ByteBuffer ctrlIn = ByteBuffer.allocate(CTRL_CAP);
-    private ByteBuffer ctrlOut = null;
-
-    private final ByteBuffer clientToRemoteBuffer = ByteBuffer.allocateDirect(BUF_CAP);
-    private final ByteBuffer remoteToClientBuffer = ByteBuffer.allocateDirect(BUF_CAP);
-
-    private boolean clientEndOfStream = false, remoteEndOfStream = false;
-    private int pendingPort;
-
-    private long upBytes = 0;
-    private long downBytes = 0;
-
-    private String targetStr = "?";
+    private final Handshake hs = new Handshake();
+    //ответы клиенту, в режиме чтения: есть что отправить - hasRemaining()
+    private final ByteBuffer ctrlOut = ByteBuffer.allocate(CTRL_OUT_CAP).flip();
+
+    private Relay up, down; //client->remote, remote->client (создаются в RELAY)
+    private Dialer dialer;
+    private Tunnel tunnel; //через upstream вместо Dialer
+    private UdpAssoc assoc;
+    private Bind bind;
+    private String dnsName = null;
+
+    private final TimerWheel.Timer deadline = new TimerWheel.Timer() {
+        @Override void expire() { onTimeout(); }
+    };
+    private long lastIo;
+    private final long acceptedAt = System.nanoTime();
+    private long phaseAt; //начало RESOLVE/CONNECT для гистограмм
+    //для FlowLog: время приема и конца фаз, мкс от acceptedAt (-1 - не было)
+    private final long acceptedMs = FlowLog.ENABLED ? System.currentTimeMillis() : 0;
+    private int handshakeUs = -1, dnsUs = -1, connectUs = -1;
+    private byte rep = FlowLog.NO_REQUEST;
+    private boolean closed = false;
+    private String user = null; //после RFC 1929
+    private boolean handshaking = true; //занимает слот Admission до разбора запроса
+
+    //ограничение скорости туннеля (null - без ограничений); пока ведро пусто, OP_READ снят
+    private Shaper.Chain shaper;
+    private final TimerWheel.Timer resume = new TimerWheel.Timer() {
+        @Override void expire() { updateOps(); }
+    };
+
+    //для логов: InetAddress, имя или "udp"/"bind" + порт
+    private Object target = null;
+    private int targetPort = 0;
     private InetSocketAddress remoteTarget = null;
 
-    Conn(Selector selector, Dns dns, SocketChannel client) {
-        this.selector = selector;
-        this.dns = dns;
+    Conn(Loop loop, SocketChannel client) {
+        this.loop = loop;
+        this.dns = loop.dns();
+        this.metrics = loop.metrics();
         this.client = client;
+        InetAddress ip = null;
+        try { ip = ((InetSocketAddress) client.getRemoteAddress()).getAddress(); } catch (Exception ignored) {}
+        this.peer = ip;
+        metrics.move(null, St.GREET);
     }
 
-    String tag() { return "C#" + id; }
-
-    private void log(String fmt, Object... args) {
-        Object[] all = new Object[args.length + 1];
-        all[0] = tag();
-        System.arraycopy(args, 0, all, 1, args.length);
-        System.out.printf("[%s] " + fmt + "%n", all);
-    }
+    @Override
+    public int id() { return id; }
 
     void register() throws IOException {
-        clientKey = client.register(selector, SelectionKey.OP_READ, this);
-        updateOps();
-    }
-
-    void onConnect() throws IOException {
-        if (currentState != St.CONNECT) return;
-        if (!remote.finishConnect()) return; //если подкл еще не готово - выходим
-
-        InetSocketAddress bnd = (InetSocketAddress) remote.getLocalAddress();
-        ctrlOut = reply((byte)0x00, bnd.getAddress(), bnd.getPort());
-        currentState = St.RELAY;
-
-        log("CONNECT OK -> %s (local bind %s)", remoteTarget, bnd);
+        clientKey = loop.register(client, SelectionKey.OP_READ, this);
+        setState(St.GREET);
         updateOps();
     }
 
     void onRead(SelectionKey key) throws IOException {
+        lastIo = loop.now();
         if (key == clientKey) readClient();
         else if (key == remoteKey) readRemote();
         updateOps();
@@ -80,6 +101,7 @@ final class Conn {
     }
 
     void onWrite(SelectionKey key) throws IOException {
+        lastIo = loop.now();
         if (key == clientKey) writeClient();
         else if (key == remoteKey) writeRemote();
         updateOps();
@@ -87,167 +109,527 @@ final class Conn {
     }
 
     private void readClient() throws IOException {
-        if (currentState == St.GREET || currentState == St.REQ) {
+        if (currentState == St.ASSOC) {
+            //по TCP после UDP ASSOCIATE ничего не ждем, только EOF
+            ctrlIn.clear();
+            if (client.read(ctrlIn) == -1) close();
+            ctrlIn.clear();
+            return;
+        }
+
+        if (currentState == St.GREET || currentState == St.AUTH || currentState == St.REQ) {
             int n = client.read(ctrlIn);
             if (n == -1) { close(); return; }
+            parse();
+            return;
+        }
 
-            if (currentState == St.GREET) {
-                if (!tryConsumeGreeting()) return;
-                ctrlOut = ByteBuffer.wrap(new byte[]{VER, 0x00});
-                currentState = St.REQ;
-                log("SOCKS greeting OK (NO AUTH)");
-                return;
-            }
-
-            if (currentState == St.REQ) {
-                Req req = tryConsumeRequest();
-                if (req == null) return;
-
-                if (req.cmd != 0x01) { fail((byte)0x07); return; }
+        if (currentState != St.RELAY || !up.canRead()) return;
+        int max = quota();
+        if (max == 0) return;
+        int n = up.read(max);
+        if (n > 0) {
+            metrics.tcpUp += n;
+            if (shaper != null) shaper.charge(n, System.nanoTime());
+        }
+        else if (n == -1) Log.event(Log.CLIENT_EOF, id);
+    }
 
-                if (req.atyp == 0x01) {
-                    targetStr = req.ipv4.getHostAddress() + ":" + req.port;
-                    log("REQUEST CONNECT %s", targetStr);
-                    connectTo(new InetSocketAddress(req.ipv4, req.port));
+    //клиент может прислать следующее сообщение, не дожидаясь ответа на предыдущее
+    private void parse() throws IOException {
+        while (true) {
+            switch (hs.next(ctrlIn)) {
+                case Handshake.MORE -> { return; }
+                case Handshake.ERROR -> {
+                    if (currentState == St.AUTH) authResult(false);
+                    else fail(hs.rep);
                     return;
                 }
-
-                if (req.atyp == 0x03) {
-                    targetStr = req.domain + ":" + req.port;
-                    log("REQUEST CONNECT %s (need DNS A)", targetStr);
-                    pendingPort = req.port;
-                    currentState = St.RESOLVE;
-                    dns.resolveA(this, req.domain);
-                    log("DNS query sent for %s", req.domain);
-                    updateOps();
+                case Handshake.GREETING -> {
+                    if (!onGreeting()) return;
+                }
+                case Handshake.AUTH -> {
+                    //дальше разбираем только после ответа проверки (onAuth)
+                    user = hs.userName();
+                    setState(St.AUTH_CHECK);
+                    Users.verify(loop, user, hs.password(), this);
+                    return;
+                }
+                case Handshake.REQUEST -> {
+                    onRequest();
                     return;
                 }
-
-                fail((byte)0x08);
             }
+        }
+    }
+
+    private boolean onGreeting() {
+        int method = Users.REQUIRED ? 0x02 : 0x00;
+        if (!hs.offered(method)) {
+            replyShort(VER, 0xFF);
+            setState(St.FAIL_FLUSH);
+            Log.event(Log.NO_METHOD, id, hs.methods);
+            return false;
+        }
+        replyShort(VER, method);
+        if (Users.REQUIRED) {
+            hs.expectAuth();
+            setState(St.AUTH);
+        } else {
+            setState(St.REQ);
+        }
+        Log.event(Log.GREET_OK, id, method);
+        return true;
+    }
+
+    @Override
+    public void onAuth(boolean ok) {
+        if (closed || currentState != St.AUTH_CHECK) return;
+        try {
+            authResult(ok);
+            if (ok) parse();
+        } catch (IOException e) {
+            close();
             return;
         }
+        updateOps();
+    }
 
-        if (currentState != St.RELAY) return;
+    //RFC 1929: VER 0x01, STATUS; при отказе сервер закрывает соединение
+    private void authResult(boolean ok) {
+        replyShort(0x01, ok ? 0x00 : 0x01);
+        if (ok) {
+            metrics.authOk++;
+            Log.event(Log.AUTH_OK, id, user);
+            setState(St.REQ);
+        } else {
+            metrics.authFail++;
+            Log.event(Log.AUTH_FAIL, id, user);
+            setState(St.FAIL_FLUSH);
+        }
+    }
+
+    private void onRequest() throws IOException {
+        long hsUs = Metrics.micros(acceptedAt);
+        metrics.handshake.record(hsUs);
+        handshakeUs = (int) hsUs;
+        rep = 0x00;
+
+        if (hs.cmd == 0x03) { associate(); return; }
+        if (hs.cmd == 0x02) { bind(); return; }
+        if (hs.cmd != 0x01) { fail((byte)0x07); return; }
+
+        if (hs.atyp == 0x03 && !hs.validName()) { fail((byte)0x01); return; }
+        targetPort = hs.port;
+        //правила смотрят на байты из Handshake; InetAddress - только для сокета, upstream и логов
+        Object dst = hs.atyp == 0x03 ? hs.domain() : hs.ip();
+        Rules.Rule rule = Rules.match(dst, targetPort, peer);
+        target = dst instanceof String ? dst : hs.address();
+        if (rule.action == Rules.DENY || rule.via != null || !(target instanceof String)) {
+            Log.event(Log.REQUEST, id, targetPort, target);
+        }
+        if (rule.action == Rules.DENY) {
+            deny(rule);
+            return;
+        }
+        if (rule.via != null) {
+            via(rule.via);
+            return;
+        }
 
-        if (clientToRemoteBuffer.remaining() == 0) return;
-        int n = client.read(clientToRemoteBuffer);
-        if (n == -1) {
-            clientEndOfStream = true;
-            log("CLIENT EOF (shutdown remote output after flush)");
-            shutdownOut(remote);
-        } else if (n > 0) {
-            upBytes += n;
+        if (target instanceof String name) {
+            dnsName = name;
+            Log.event(Log.REQUEST_DNS, id, targetPort, target);
+            setState(St.RESOLVE);
+            phaseAt = System.nanoTime();
+            Log.event(Log.DNS_LOOKUP, id, dnsName);
+            dns.resolve(this, dnsName);
+            updateOps();
+            return;
         }
+
+        dial(new InetSocketAddress[]{ new InetSocketAddress((InetAddress) target, targetPort) });
     }
 
-    private void readRemote() throws IOException {
-        if (currentState != St.RELAY) return;
+    private void deny(Rules.Rule rule) {
+        metrics.denied++;
+        Log.event(Log.DENY, id, targetPort, rule.line, 0, target, null);
+        fail((byte)0x02);
+    }
+
+    //адреса из DNS без запрещенных правилами по CIDR; null - запрещены все
+    private InetAddress[] permitted(InetAddress[] addrs) {
+        int n = 0;
+        Rules.Rule last = null;
+        for (InetAddress a : addrs) {
+            Rules.Rule r = Rules.denied(a, targetPort, peer);
+            if (r == null) n++;
+            else last = r;
+        }
+        if (n == addrs.length) return addrs;
+        if (n == 0) {
+            deny(last);
+            return null;
+        }
+        InetAddress[] out = new InetAddress[n];
+        n = 0;
+        for (InetAddress a : addrs) {
+            if (Rules.denied(a, targetPort, peer) == null) out[n++] = a;
+        }
+        return out;
+    }
+
+    //CONNECT через вышестоящий прокси, имя уходит ему без разрешения
+    private void via(Upstream u) {
+        setState(St.CONNECT);
+        phaseAt = System.nanoTime();
+        Log.event(Log.UPSTREAM, id, targetPort, 0, 0, target, u.name);
+        try {
+            Tunnel t = loop.upstream(u).take(this, target, targetPort);
+            //отказ внутри take уже перевел нас в FAIL_FLUSH (onDialFailed)
+            if (currentState == St.CONNECT) tunnel = t;
+        } catch (IOException e) {
+            onDialFailed(e);
+            return;
+        }
+        updateOps();
+    }
+
+    //upstream ответил на CONNECT; early - данные цели, пришедшие вместе с ответом
+    @Override
+    public void onTunnel(SocketChannel ch, SelectionKey key, Upstream u, ByteBuffer early) {
+        if (currentState != St.CONNECT) return;
+        tunnel = null;
+        onDialed(ch, key, u.addr);
+        if (currentState == St.RELAY && early.hasRemaining()) {
+            down.preload(early);
+            updateOps();
+        }
+    }
 
-        if (remoteToClientBuffer.remaining() == 0) return;
-        int n = remote.read(remoteToClientBuffer);
-        if (n == -1) {
-            remoteEndOfStream = true;
-            log("REMOTE EOF (shutdown client output after flush)");
-            shutdownOut(client);
-        } else if (n > 0) {
-            downBytes += n;
+    private void readRemote() throws IOException {
+        if (currentState != St.RELAY || ctrlOut.hasRemaining() || !down.canRead()) return;
+        int max = quota();
+        if (max == 0) return;
+        int n = down.read(max);
+        if (n > 0) {
+            metrics.tcpDown += n;
+            if (shaper != null) shaper.charge(n, System.nanoTime());
         }
+        else if (n == -1) Log.event(Log.REMOTE_EOF, id);
     }
 
     private void writeClient() throws IOException {
-        if (ctrlOut != null) {
-            client.write(ctrlOut);
-            if (!ctrlOut.hasRemaining()) {
-                ctrlOut = null;
-                if (currentState == St.FAIL_FLUSH) { close(); return; }
-            }
+        //ответ на CONNECT и данные, пришедшие от цели вместе с ним, - одним writev
+        if (down != null && down.hasPending()) {
+            down.write(ctrlOut);
             return;
         }
-        writeAvail(client, remoteToClientBuffer);
+        if (ctrlOut.hasRemaining()) {
+            client.write(ctrlOut);
+            if (!ctrlOut.hasRemaining() && currentState == St.FAIL_FLUSH) close();
+        }
     }
 
     private void writeRemote() throws IOException {
-        writeAvail(remote, clientToRemoteBuffer);
+        if (up != null) up.write(null);
     }
 
-    void onDnsOk(InetAddress ipv4) {
-        if (currentState != St.RESOLVE) return;
-        log("DNS OK %s -> %s", targetStr, ipv4.getHostAddress());
-        try {
-            connectTo(new InetSocketAddress(ipv4, pendingPort));
-        } catch (IOException e) {
-            fail((byte)0x04);
+    private void associate() throws IOException {
+        InetSocketAddress local = (InetSocketAddress) client.getLocalAddress();
+        InetSocketAddress peer = (InetSocketAddress) client.getRemoteAddress();
+        //обычно 0.0.0.0:0 - клиент сам не знает, откуда будет слать
+        InetSocketAddress expected = hs.atyp != 0x03 && hs.port != 0 && !hs.anyAddress()
+                ? new InetSocketAddress(hs.address(), hs.port) : null;
+
+        assoc = new UdpAssoc(loop, this, expected, peer.getAddress());
+        target = "udp";
+        targetPort = assoc.port();
+        reply((byte)0x00, local.getAddress(), assoc.port());
+        setState(St.ASSOC);
+        Log.event(Log.UDP_OK, id, assoc.port(), 0, 0, local.getAddress().getHostAddress(), peer.getAddress());
+        updateOps();
+    }
+
+    private void bind() throws IOException {
+        InetSocketAddress local = (InetSocketAddress) client.getLocalAddress();
+        InetAddress expected = hs.atyp != 0x03 && !hs.anyAddress() ? hs.address() : null;
+        if (expected != null) {
+            //ждать того, от кого правила все равно не примут, незачем
+            Rules.Rule rule = Rules.match(expected, hs.port, peer);
+            if (rule.action == Rules.DENY) {
+                target = expected;
+                targetPort = hs.port;
+                deny(rule);
+                return;
+            }
+        }
+
+        bind = new Bind(loop, this, expected, peer);
+        target = "bind";
+        targetPort = bind.port();
+        //первый ответ - куда подключаться, второй придет в onBound
+        reply((byte)0x00, local.getAddress(), bind.port());
+        setState(St.BIND);
+        Log.event(Log.BIND_LISTEN, id, bind.port(), local.getAddress().getHostAddress());
+        updateOps();
+    }
+
+    void onBound(SocketChannel ch, InetSocketAddress from) throws IOException {
+        if (currentState != St.BIND) return;
+        bind = null;
+        remote = ch;
+        remoteTarget = from;
+        connectUs = (int) Metrics.micros(acceptedAt);
+        target = from.getAddress();
+        targetPort = from.getPort();
+        remoteKey = loop.register(remote, 0, this);
+
+        //первый ответ мог еще не уйти целиком - второй встает за ним
+        reply((byte)0x00, from.getAddress(), from.getPort());
+
+        startRelay();
+        Log.event(Log.BIND_ACCEPT, id, from);
+        updateOps();
+    }
+
+    //активность вне TCP-ключей (датаграммы ассоциации)
+    void touch() {
+        lastIo = loop.now();
+    }
+
+    //сколько можно прочитать сейчас; 0 - ведро пусто, возобновит таймер resume
+    private int quota() {
+        if (shaper == null) return Integer.MAX_VALUE;
+        long now = System.nanoTime();
+        long a = shaper.available(now);
+        if (a > 0) return (int) Math.min(a, Integer.MAX_VALUE);
+        if (!resume.scheduled()) {
+            metrics.throttled++;
+            loop.schedule(resume, shaper.waitMs(now));
+        }
+        return 0;
+    }
+
+    private void startRelay() {
+        shaper = Shaper.attach(peer, user);
+        up = Relay.create(loop, clientKey, remoteKey);
+        down = Relay.create(loop, remoteKey, clientKey);
+        //клиент не ждал ответа на CONNECT - то, что пришло за запросом, уже данные
+        if (ctrlIn.position() > 0) {
+            ctrlIn.flip();
+            up.preload(ctrlIn);
+            ctrlIn.clear();
         }
+        setState(St.RELAY);
+    }
+
+    private void setState(St s) {
+        metrics.move(currentState, s);
+        currentState = s;
+        if (handshaking && s != St.GREET && s != St.AUTH && s != St.AUTH_CHECK && s != St.REQ && s != St.FAIL_FLUSH) {
+            handshaking = false;
+            Admission.handshakeDone();
+        }
+        switch (s) {
+            case GREET, AUTH, AUTH_CHECK, REQ, FAIL_FLUSH -> loop.schedule(deadline, HANDSHAKE_TIMEOUT);
+            case RESOLVE -> loop.schedule(deadline, DNS_TIMEOUT);
+            case CONNECT, BIND -> loop.schedule(deadline, CONNECT_TIMEOUT);
+            case RELAY, ASSOC -> {
+                lastIo = loop.now();
+                loop.schedule(deadline, IDLE_TIMEOUT);
+            }
+        }
+    }
+
+    private void onTimeout() {
+        switch (currentState) {
+            case GREET, AUTH, AUTH_CHECK, REQ -> {
+                Log.event(Log.TIMEOUT_HANDSHAKE, id);
+                close();
+            }
+            case BIND -> {
+                Log.event(Log.TIMEOUT_BIND, id);
+                bind.close();
+                bind = null;
+                fail((byte)0x04);
+            }
+            case RESOLVE -> {
+                Log.event(Log.TIMEOUT_DNS, id, targetPort, target);
+                metrics.dnsFail++;
+                dns.cancel(dnsName, this);
+                dnsName = null;
+                fail((byte)0x04);
+            }
+            case CONNECT -> {
+                Log.event(Log.TIMEOUT_CONNECT, id, targetPort, target);
+                metrics.connectFail++;
+                if (dialer != null) dialer.abort(true);
+                if (tunnel != null) { tunnel.abort(); tunnel = null; }
+                fail((byte)0x04);
+            }
+            case RELAY, ASSOC -> {
+                //активность не перепланирует таймер, проверяем лениво при срабатывании
+                long idle = loop.now() - lastIo;
+                if (idle < IDLE_TIMEOUT) {
+                    loop.schedule(deadline, IDLE_TIMEOUT - idle);
+                    return;
+                }
+                Log.event(Log.TIMEOUT_IDLE, id, idle);
+                close();
+            }
+            case FAIL_FLUSH -> close();
+        }
+    }
+
+    private void closeRemote() {
+        try { if (remoteKey != null) remoteKey.cancel(); } catch (Exception ignored) {}
+        try { if (remote != null) remote.close(); } catch (Exception ignored) {}
+        remoteKey = null;
+    }
+
+    @Override
+    public void onDnsOk(InetAddress[] addrs) {
+        if (currentState != St.RESOLVE) return;
+        dnsName = null;
+        metrics.dns.record(Metrics.micros(phaseAt));
+        dnsUs = (int) Metrics.micros(acceptedAt);
+        Log.event(Log.DNS_OK, id, targetPort, 0, 0, target, addrs);
+        addrs = permitted(addrs);
+        if (addrs == null) return;
+        dial(Dialer.targets(addrs, targetPort, loop.penalty(), loop.now()));
     }
 
-    void onDnsFail() {
+    @Override
+    public void onDnsFail() {
         if (currentState == St.RESOLVE) {
-            log("DNS FAIL for %s", targetStr);
+            dnsName = null;
+            Log.event(Log.DNS_FAIL, id, targetPort, target);
+            metrics.dnsFail++;
             fail((byte)0x04);
         }
     }
 
-    private void connectTo(InetSocketAddress dst) throws IOException {
-        remoteTarget = dst; //адрес целевого сервера
-        remote = SocketChannel.open();
-        remote.configureBlocking(false);
-        remote.socket().setTcpNoDelay(true);
-
-        log("CONNECT start -> %s", dst);
+    private void dial(InetSocketAddress[] targets) {
+        setState(St.CONNECT);
+        phaseAt = System.nanoTime();
+        dialer = new Dialer(loop, this, targets);
+        dialer.start();
+        updateOps();
+    }
 
-        boolean done = remote.connect(dst);
-        remoteKey = remote.register(selector, done ? 0 : SelectionKey.OP_CONNECT, this);
+    @Override
+    public void onDialed(SocketChannel ch, SelectionKey key, InetSocketAddress dst) {
+        if (currentState != St.CONNECT) return;
+        remote = ch;
+        remoteTarget = dst; //адрес целевого сервера
+        dialer = null;
+        metrics.connect.record(Metrics.micros(phaseAt));
+        connectUs = (int) Metrics.micros(acceptedAt);
+        try {
+            if (key != null) {
+                key.attach(this);
+                remoteKey = key;
+            } else {
+                remoteKey = loop.register(remote, 0, this);
+            }
 
-        if (done) {
             InetSocketAddress bnd = (InetSocketAddress) remote.getLocalAddress();
-            ctrlOut = reply((byte)0x00, bnd.getAddress(), bnd.getPort());
-            currentState = St.RELAY;
-            log("CONNECT OK -> %s (local bind %s)", dst, bnd);
-        } else {
-            currentState = St.CONNECT;
+            reply((byte)0x00, bnd.getAddress(), bnd.getPort());
+            startRelay();
+            Log.event(Log.CONNECT_OK, id, dst, bnd);
+        } catch (IOException e) {
+            fail((byte)0x04);
+            return;
         }
         updateOps();
     }
 
+    @Override
+    public void onDialFailed(IOException e) {
+        if (currentState != St.CONNECT) return;
+        dialer = null;
+        tunnel = null;
+        metrics.connectFail++;
+        if (e instanceof Upstream.Rejected r) fail(r.rep);
+        else fail(e instanceof ConnectException ? (byte)0x05 : (byte)0x04);
+    }
+
     private void fail(byte rep) {
-        ctrlOut = reply(rep, null, 0);
-        currentState = St.FAIL_FLUSH;
-        log("FAIL reply REP=0x%02X (%s)", rep, targetStr);
+        this.rep = rep;
+        reply(rep, null, 0);
+        setState(St.FAIL_FLUSH);
+        Log.event(Log.FAIL, id, rep, targetPort, 0, target, null);
         updateOps();
     }
 
     private void tryClose() {
         if (currentState != St.RELAY) return;
+        up.shutdownIfDrained();
+        down.shutdownIfDrained();
 
-        boolean clientToRemoteBufferEmpty = clientToRemoteBuffer.position() == 0;
-        boolean remoteToClientBufferEmpty = remoteToClientBuffer.position() == 0;
-
-        if (clientEndOfStream && remoteEndOfStream && clientToRemoteBufferEmpty && remoteToClientBufferEmpty) close();
+        if (up.eof && down.eof && !up.hasPending() && !down.hasPending()) close();
     }
 
     void close() {
-        log("CLOSE up=%d bytes, down=%d bytes, target=%s", upBytes, downBytes, targetStr);
+        if (closed) return;
+        closed = true;
+        metrics.move(currentState, null);
+        Admission.release(peer, handshaking);
+        if (FlowLog.ENABLED) flow();
+        if (assoc != null) {
+            Log.event(Log.CLOSE_UDP, id, assoc.upBytes, assoc.downBytes, assoc.dropped, null, null);
+            assoc.close();
+            assoc = null;
+        } else {
+            Log.event(Log.CLOSE, id, up != null ? up.bytes : 0, down != null ? down.bytes : 0, targetPort, target, null);
+        }
+        loop.cancel(deadline);
+        loop.cancel(resume);
+        if (shaper != null) { shaper.release(); shaper = null; }
+        if (dnsName != null) { dns.cancel(dnsName, this); dnsName = null; }
+        if (dialer != null) { dialer.abort(false); dialer = null; }
+        if (tunnel != null) { tunnel.abort(); tunnel = null; }
+        if (bind != null) { bind.close(); bind = null; }
         try { if (clientKey != null) clientKey.cancel(); } catch (Exception ignored) {}
-        try { if (remoteKey != null) remoteKey.cancel(); } catch (Exception ignored) {}
         try { client.close(); } catch (Exception ignored) {}
-        try { if (remote != null) remote.close(); } catch (Exception ignored) {}
+        closeRemote();
+        if (up != null) up.release();
+        if (down != null) down.release();
+    }
+
+    private void flow() {
+        long u, d;
+        if (assoc != null) { u = assoc.upBytes; d = assoc.downBytes; }
+        else { u = up != null ? up.bytes : 0; d = down != null ? down.bytes : 0; }
+        FlowLog.record(id, acceptedMs, acceptedAt, handshakeUs, dnsUs, connectUs, u, d,
+                rep == FlowLog.NO_REQUEST ? 0 : hs.cmd, rep, currentState.ordinal(), targetPort, false,
+                peer, remoteTarget != null ? remoteTarget.getAddress() : target instanceof InetAddress a ? a : null,
+                target instanceof String s ? s : null);
     }
 
     private void updateOps() {
+        int q = currentState == St.RELAY ? quota() : Integer.MAX_VALUE;
+        boolean quota = q > 0;
+        if (currentState == St.RELAY) up.quota = down.quota = q;
+
         if (clientKey != null && clientKey.isValid()) {
             int ops = 0;
 
-            if (currentState == St.GREET || currentState == St.REQ) {
+            if (currentState == St.GREET || currentState == St.AUTH || currentState == St.REQ) {
                 ops |= SelectionKey.OP_READ;
-                if (ctrlOut != null) ops |= SelectionKey.OP_WRITE;
-            } else if (currentState == St.RESOLVE || currentState == St.CONNECT) {
-                if (ctrlOut != null) ops |= SelectionKey.OP_WRITE;
+                if (ctrlOut.hasRemaining()) ops |= SelectionKey.OP_WRITE;
+            } else if (currentState == St.AUTH_CHECK || currentState == St.RESOLVE
+                    || currentState == St.CONNECT || currentState == St.BIND) {
+                if (ctrlOut.hasRemaining()) ops |= SelectionKey.OP_WRITE;
             } else if (currentState == St.FAIL_FLUSH) {
-                if (ctrlOut != null) ops |= SelectionKey.OP_WRITE;
+                if (ctrlOut.hasRemaining()) ops |= SelectionKey.OP_WRITE;
+            } else if (currentState == St.ASSOC) {
+                ops |= SelectionKey.OP_READ;
+                if (ctrlOut.hasRemaining()) ops |= SelectionKey.OP_WRITE;
             } else if (currentState == St.RELAY) {
-                if (!clientEndOfStream && clientToRemoteBuffer.remaining() > 0) ops |= SelectionKey.OP_READ;
-                if (ctrlOut != null || remoteToClientBuffer.position() > 0) ops |= SelectionKey.OP_WRITE;
+                if (quota && up.canRead()) ops |= SelectionKey.OP_READ;
+                if (ctrlOut.hasRemaining() || down.hasPending()) ops |= SelectionKey.OP_WRITE;
             }
 
             if (clientKey.interestOps() != ops) clientKey.interestOps(ops);
@@ -256,104 +638,39 @@ final class Conn {
         if (remoteKey != null && remoteKey.isValid()) {
             int ops = 0;
 
-            if (currentState == St.CONNECT) {
-                ops |= SelectionKey.OP_CONNECT;
-            } else if (currentState == St.RELAY) {
-                if (!remoteEndOfStream && remoteToClientBuffer.remaining() > 0) ops |= SelectionKey.OP_READ;
-                if (clientToRemoteBuffer.position() > 0) ops |= SelectionKey.OP_WRITE;
+            if (currentState == St.RELAY) {
+                if (quota && !ctrlOut.hasRemaining() && down.canRead()) ops |= SelectionKey.OP_READ;
+                if (up.hasPending()) ops |= SelectionKey.OP_WRITE;
             }
 
             if (remoteKey.interestOps() != ops) remoteKey.interestOps(ops);
         }
     }
 
-    private boolean tryConsumeGreeting() {
-        ctrlIn.flip();
-        try {
-            if (ctrlIn.remaining() < 2) return false;
-            byte v = ctrlIn.get();
-            int nMethods = Byte.toUnsignedInt(ctrlIn.get());
-            if (v != VER) { fail((byte)0x01); return true; }
-            if (ctrlIn.remaining() < nMethods) return false;
-            ctrlIn.position(ctrlIn.position() + nMethods);
-            return true;
-        } finally {
-            ctrlIn.compact();
-        }
-    }
-
-    private Req tryConsumeRequest() {
-        ctrlIn.flip();
-        try {
-            if (ctrlIn.remaining() < 4) return null;
-            byte v = ctrlIn.get();
-            byte cmd = ctrlIn.get();
-            byte rsv = ctrlIn.get();
-            byte atyp = ctrlIn.get();
-            if (v != VER || rsv != 0x00) { fail((byte)0x01); return new Req((byte)0, (byte)0, null, null, 0); }
-
-            if (atyp == 0x01) {
-                if (ctrlIn.remaining() < 4 + 2) return null;
-                byte[] ip = new byte[4];
-                ctrlIn.get(ip);
-                int port = ((ctrlIn.get() & 0xFF) << 8) | (ctrlIn.get() & 0xFF);
-                InetAddress a;
-                try { a = InetAddress.getByAddress(ip); }
-                catch (Exception e) { fail((byte)0x08); return new Req((byte)0,(byte)0,null,null,0); }
-                return new Req(cmd, atyp, a, null, port);
-            }
-
-            if (atyp == 0x03) {
-                if (ctrlIn.remaining() < 1) return null;
-                int len = ctrlIn.get() & 0xFF;
-                if (len == 0 || len > 253) { fail((byte)0x08); return new Req((byte)0,(byte)0,null,null,0); }
-                if (ctrlIn.remaining() < len + 2) return null;
-                byte[] name = new byte[len];
-                ctrlIn.get(name);
-                int port = ((ctrlIn.get() & 0xFF) << 8) | (ctrlIn.get() & 0xFF);
-                String domain = new String(name);
-                return new Req(cmd, atyp, null, domain, port);
-            }
-
-            fail((byte)0x08);
-            return new Req((byte)0,(byte)0,null,null,0);
-        } finally {
-            ctrlIn.compact();
-        }
-    }
-
-    private static final class Req {
-        final byte cmd, atyp;
-        final InetAddress ipv4;
-        final String domain;
-        final int port;
-        Req(byte cmd, byte atyp, InetAddress ipv4, String domain, int port) {
-            this.cmd = cmd; this.atyp = atyp; this.ipv4 = ipv4; this.domain = domain; this.port = port;
-        }
+    //дописать ответ в очередь ctrlOut
+    private void reply(byte rep, InetAddress bndAddr, int bndPort) {
+        ctrlOut.compact();
+        putReply(ctrlOut, rep, bndAddr != null ? loop.addrBytes(bndAddr) : null, bndPort);
+        ctrlOut.flip();
     }
 
-    private static ByteBuffer reply(byte rep, InetAddress bndAddr, int bndPort) {
-        byte[] addr = (bndAddr != null) ? bndAddr.getAddress() : new byte[]{0,0,0,0};
-        byte[] out = new byte[10];
-        out[0] = VER;
-        out[1] = rep;
-        out[2] = 0x00;
-        out[3] = 0x01;
-        System.arraycopy(addr, 0, out, 4, 4);
-        out[8] = (byte)((bndPort >>> 8) & 0xFF);
-        out[9] = (byte)(bndPort & 0xFF);
-        return ByteBuffer.wrap(out);
+    //выбор метода {VER, METHOD} или ответ RFC 1929 {0x01, STATUS}
+    private void replyShort(int b0, int b1) {
+        ctrlOut.compact();
+        ctrlOut.put((byte) b0).put((byte) b1);
+        ctrlOut.flip();
     }
 
-    private static void writeAvail(SocketChannel dst, ByteBuffer buf) throws IOException {
-        if (buf.position() == 0) return;
-        buf.flip();
-        dst.write(buf);
-        buf.compact();
+    //VER REP RSV ATYP BND.ADDR BND.PORT; без bndAddr - 0.0.0.0:0
+    static void putReply(ByteBuffer out, byte rep, InetAddress bndAddr, int bndPort) {
+        putReply(out, rep, bndAddr != null ? bndAddr.getAddress() : null, bndPort);
     }
 
-    private static void shutdownOut(SocketChannel ch) {
-        if (ch == null) return;
-        try { ch.shutdownOutput(); } catch (Exception ignored) {}
+    //bndAddr - байты адреса (4 или 16) или null
+    static void putReply(ByteBuffer out, byte rep, byte[] bndAddr, int bndPort) {
+        out.put(VER).put(rep).put((byte)0x00);
+        if (bndAddr == null) out.put((byte)0x01).putInt(0);
+        else out.put(bndAddr.length == 16 ? (byte)0x04 : (byte)0x01).put(bndAddr);
+        out.putShort((short) bndPort);
     }
 }
\ No newline at end of file
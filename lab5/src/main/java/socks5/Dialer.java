@@ -0,0 +1,176 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.ArrayList;
+
+//установка соединения с целью в стиле Happy Eyeballs (RFC 8305):
+//адреса семейств чередуются, новая попытка стартует каждые ATTEMPT_DELAY
+//(или сразу, если предыдущая упала), одновременно не больше PARALLEL.
+//побеждает тот, у кого раньше прошел finishConnect, остальные закрываются.
+//таймер Dialer - задержка перед следующей попыткой
+final class Dialer extends TimerWheel.Timer {
+    static final long ATTEMPT_DELAY = Long.getLong("socks5.connect.delay", 250);
+    static final int PARALLEL = Integer.getInteger("socks5.connect.parallel", 3);
+
+    //кому отдать соединение: Conn или Fetch режима HTTP
+    interface Client {
+        int id();
+        void onDialed(SocketChannel ch, SelectionKey key, InetSocketAddress to);
+        void onDialFailed(IOException e);
+    }
+
+    final class Attempt {
+        final InetSocketAddress to;
+        final SocketChannel ch;
+        SelectionKey key;
+
+        Attempt(InetSocketAddress to, SocketChannel ch) {
+            this.to = to;
+            this.ch = ch;
+        }
+
+        void onConnectable() {
+            try {
+                if (!ch.finishConnect()) return;
+            } catch (IOException e) {
+                failed(this, e);
+                return;
+            }
+            won(this);
+        }
+    }
+
+    private final Loop loop;
+    private final Client conn;
+    private final InetSocketAddress[] targets;
+    private int next = 0;
+    private final ArrayList<Attempt> attempts = new ArrayList<>(2);
+    private IOException lastError;
+    private boolean done = false;
+
+    Dialer(Loop loop, Client conn, InetSocketAddress[] targets) {
+        this.loop = loop;
+        this.conn = conn;
+        this.targets = targets;
+    }
+
+    //ответ DNS (сначала IPv6, потом IPv4) -> порядок попыток: семейства
+    //чередуются (RFC 8305, п. 4), адреса из Penalty уходят в конец
+    static InetSocketAddress[] targets(InetAddress[] addrs, int port, Penalty penalty, long now) {
+        int n6 = 0;
+        while (n6 < addrs.length && addrs[n6] instanceof Inet6Address) n6++;
+
+        InetSocketAddress[] out = new InetSocketAddress[addrs.length];
+        int good = 0, bad = addrs.length;
+        for (int i6 = 0, i4 = n6; i6 < n6 || i4 < addrs.length; ) {
+            if (i6 < n6) good = place(out, good, new InetSocketAddress(addrs[i6++], port), penalty, now);
+            if (i4 < addrs.length) good = place(out, good, new InetSocketAddress(addrs[i4++], port), penalty, now);
+        }
+        //наказанные складывались с конца в обратном порядке - разворачиваем
+        for (int i = good, j = addrs.length - 1; i < j; i++, j--) {
+            InetSocketAddress t = out[i]; out[i] = out[j]; out[j] = t;
+        }
+        return out;
+    }
+
+    private static int place(InetSocketAddress[] out, int good, InetSocketAddress a, Penalty penalty, long now) {
+        if (!penalty.has(a, now)) {
+            out[good] = a;
+            return good + 1;
+        }
+        //ищем свободное место с конца
+        int j = out.length - 1;
+        while (out[j] != null) j--;
+        out[j] = a;
+        return good;
+    }
+
+    void start() {
+        startNext();
+    }
+
+    @Override
+    void expire() {
+        startNext();
+    }
+
+    //все попытки закрываются (тайм-аут или закрытие Conn)
+    void abort(boolean timedOut) {
+        done = true;
+        loop.cancel(this);
+        for (Attempt a : attempts) {
+            if (timedOut) loop.penalty().add(a.to, loop.now());
+            close(a);
+        }
+        attempts.clear();
+    }
+
+    private void startNext() {
+        while (!done && next < targets.length && attempts.size() < PARALLEL) {
+            InetSocketAddress to = targets[next++];
+            Log.event(Log.CONNECT_START, conn.id(), to);
+
+            SocketChannel ch = null;
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Attempt a = new Attempt(to, ch);
+                if (ch.connect(to)) {
+                    attempts.add(a);
+                    won(a);
+                    return;
+                }
+                a.key = loop.register(ch, SelectionKey.OP_CONNECT, a);
+                attempts.add(a);
+            } catch (IOException e) {
+                //например, нет маршрута для этого семейства - сразу следующий адрес
+                lastError = e;
+                loop.penalty().add(to, loop.now());
+                Log.event(Log.CONNECT_ERROR, conn.id(), to, e.getMessage());
+                try { if (ch != null) ch.close(); } catch (Exception ignored) {}
+                continue;
+            }
+
+            if (next < targets.length) loop.schedule(this, ATTEMPT_DELAY);
+            return;
+        }
+        if (!done && attempts.isEmpty() && next >= targets.length) giveUp();
+    }
+
+    private void failed(Attempt a, IOException e) {
+        if (done) return;
+        lastError = e;
+        loop.penalty().add(a.to, loop.now());
+        Log.event(Log.CONNECT_ERROR, conn.id(), a.to, e.getMessage());
+        attempts.remove(a);
+        close(a);
+        //не ждем задержку - сразу следующий адрес
+        loop.cancel(this);
+        startNext();
+    }
+
+    private void won(Attempt a) {
+        done = true;
+        loop.cancel(this);
+        loop.penalty().clear(a.to);
+        for (Attempt other : attempts) {
+            if (other != a) close(other);
+        }
+        attempts.clear();
+        if (a.key != null) a.key.interestOps(0);
+        conn.onDialed(a.ch, a.key, a.to);
+    }
+
+    private void giveUp() {
+        done = true;
+        conn.onDialFailed(lastError);
+    }
+
+    private static void close(Attempt a) {
+        try { if (a.key != null) a.key.cancel(); } catch (Exception ignored) {}
+        try { a.ch.close(); } catch (Exception ignored) {}
+    }
+}
@@ -9,71 +9,362 @@ import java.nio.channels.*;
 import java.util.*;
 
 final class Dns {
+    //-Dsocks5.dns.servers=host[:port],host[:port]... (по умолчанию из системной конфигурации)
+    static final String SERVERS = System.getProperty("socks5.dns.servers");
+    static final long RETRY_MS = Long.getLong("socks5.dns.retry", 400);
+    static final int MAX_TRIES = Math.max(1, Math.min(Integer.getInteger("socks5.dns.tries", 4), 16));
+    //срок ожидания ответа у Conn: все перепосылки должны в него уложиться,
+    //иначе последняя уходит, когда клиенту уже ответили отказом.
+    //RETRY_MS + 2*RETRY_MS + ... по MAX_TRIES попыткам <= DEADLINE_MS
+    static final long DEADLINE_MS = Long.getLong("socks5.timeout.dns", 5_000);
+    private static final long RETRY_BASE = Math.max(1, Math.min(RETRY_MS, DEADLINE_MS / ((1L << MAX_TRIES) - 1)));
+    //первый запрос сразу двум самым быстрым серверам
+    static final boolean HEDGE = Boolean.getBoolean("socks5.dns.hedge");
+    //-Dsocks5.ipv6=false - не спрашивать AAAA
+    static final boolean IPV6 = !"false".equals(System.getProperty("socks5.ipv6"));
+    static final long RESOLUTION_DELAY = 50;
+
+    private static final int DOWN_AFTER = 3;
+    private static final long DOWN_MS = 30_000;
+    private static final int RECV_BATCH = 64;
+
+    private final Loop loop;
     private final DatagramChannel udp;
     private final SelectionKey key;
-    private final InetSocketAddress resolver;
+    private final Server[] servers;
+    private final boolean hedge;
+
+    //тот, кто ждет ответа: Conn или UdpAssoc
+    interface Waiter {
+        void onDnsOk(InetAddress[] addrs);
+        void onDnsFail();
+    }
+
+    static final class Server {
+        final InetSocketAddress addr;
+        long srtt = 0;          //сглаженный RTT, мс; 0 - еще не измеряли
+        int timeouts = 0;       //подряд без ответа
+        long downUntil = 0;
+
+        Server(InetSocketAddress addr) { this.addr = addr; }
+
+        boolean healthy(long now) { return downUntil <= now; }
+
+        void onAnswer(long rtt) {
+            timeouts = 0;
+            downUntil = 0;
+            if (rtt < 0) return;
+            srtt = srtt == 0 ? rtt : srtt + (rtt - srtt) / 8;
+        }
+
+        void onTimeout(long now, long waited) {
+            srtt = Math.max(srtt, waited);
+            if (++timeouts >= DOWN_AFTER) downUntil = now + DOWN_MS;
+        }
+    }
+
+    //все ждущие одного имени получают один общий ответ.
+    //A и AAAA спрашиваются параллельно; если A пришел, а AAAA нет,
+    //ждем его не дольше RESOLUTION_DELAY (RFC 8305, п. 3) - это таймер Lookup
+    private final class Lookup extends TimerWheel.Timer {
+        final String name;
+        final ArrayList<Waiter> waiters = new ArrayList<>(2);
+        InetAddress[] v4, v6;   //null - ответа еще нет
+        Query q4, q6;
+
+        Lookup(String name) { this.name = name; }
+
+        @Override void expire() { finish(this); }
+    }
+
+    //один UDP-запрос; таймер - перепосылка с удвоением интервала
+    private final class Query extends TimerWheel.Timer {
+        final int id;
+        final int type;
+        final Lookup lookup;
+        final byte[] wire;
+
+        int tries = 0;
+        long tried = 0;         //битовая маска серверов, которым уже слали
+        long round = 0;         //кому слали в последней попытке
+        long sentAt;
+
+        Query(int id, int type, Lookup lookup, byte[] wire) {
+            this.id = id;
+            this.type = type;
+            this.lookup = lookup;
+            this.wire = wire;
+        }
+
+        @Override void expire() { onRetry(this); }
+    }
+
+    private static final class Packet {
+        final ByteBuffer data;
+        final InetSocketAddress to;
+
+        Packet(byte[] data, InetSocketAddress to) {
+            this.data = ByteBuffer.wrap(data);
+            this.to = to;
+        }
+    }
+
+    private static final InetAddress[] NONE = new InetAddress[0];
 
-    private final Map<Integer, Conn> pending = new HashMap<>();
-    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private final Map<Integer, Query> pending = new HashMap<>();
+    private final Map<String, Lookup> inflight = new HashMap<>();
+    private final DnsCache cache4 = new DnsCache();
+    private final DnsCache cache6 = new DnsCache();
+    private final ArrayDeque<Packet> out = new ArrayDeque<>();
+    private final ByteBuffer in = ByteBuffer.allocate(2048);
     private final Random rnd = new Random();
 
-    Dns(Selector selector) throws IOException {
-        resolver = pickResolver();
+    Dns(Loop loop) throws IOException {
+        this(loop, serverList(), HEDGE);
+    }
+
+    //список серверов и hedge отдельно - для тестов с локальными заглушками
+    Dns(Loop loop, List<InetSocketAddress> list, boolean hedge) throws IOException {
+        this.loop = loop;
+        this.hedge = hedge;
+        servers = new Server[Math.min(list.size(), 64)];
+        for (int i = 0; i < servers.length; i++) servers[i] = new Server(list.get(i));
 
-        udp = DatagramChannel.open(StandardProtocolFamily.INET);
+        //без семейства - двухстековый сокет, если IPv6 вообще есть
+        udp = DatagramChannel.open();
         udp.configureBlocking(false);
-        udp.connect(resolver);
+        udp.bind(null);
 
-        key = udp.register(selector, SelectionKey.OP_READ, this);
+        key = loop.register(udp, SelectionKey.OP_READ, this);
+    }
+
+    String resolverAddr() {
+        StringBuilder sb = new StringBuilder();
+        for (Server sv : servers) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(sv.addr);
+        }
+        if (hedge) sb.append(" (hedged)");
+        if (!IPV6) sb.append(" (A only)");
+        return sb.toString();
     }
 
-    String resolverAddr() { return resolver.toString(); }
+    Server[] servers() { return servers; }
+
+    DnsCache cache4() { return cache4; }
+    DnsCache cache6() { return cache6; }
+
+    //ответ приходит в who.onDnsOk/onDnsFail, при попадании в кеш - сразу.
+    //в onDnsOk сначала адреса IPv6, потом IPv4
+    void resolve(Waiter who, String domain) throws IOException {
+        String name = normalize(domain);
+
+        Lookup l = inflight.get(name);
+        if (l != null) {
+            l.waiters.add(who);
+            return;
+        }
+
+        long now = loop.now();
+        DnsCache.Entry e4 = cache4.get(name, now);
+        DnsCache.Entry e6 = IPV6 ? cache6.get(name, now) : null;
+        if (e4 != null && (e6 != null || !IPV6)) {
+            deliver(who, e6 != null ? e6.addrs : NONE, e4.addrs);
+            return;
+        }
 
-    void resolveA(Conn who, String domain) throws IOException {
+        l = new Lookup(name);
+        l.waiters.add(who);
+        l.v4 = e4 != null ? e4.addrs : null;
+        l.v6 = !IPV6 ? NONE : e6 != null ? e6.addrs : null;
+        if (l.v6 == null) l.q6 = query(l, Type.AAAA);
+        if (l.v4 == null) l.q4 = query(l, Type.A);
+        else if (l.v4.length > 0) loop.schedule(l, RESOLUTION_DELAY);
+        inflight.put(name, l);
+        updateOps();
+    }
+
+    private Query query(Lookup l, int type) throws IOException {
         int id;
         do { id = rnd.nextInt(0x10000); } while (pending.containsKey(id));
 
-        Name name = Name.fromString(domain.endsWith(".") ? domain : domain + ".");
-        org.xbill.DNS.Record q = org.xbill.DNS.Record.newRecord(name, Type.A, DClass.IN);
-        Message m = Message.newQuery(q);
-        m.getHeader().setID(id);
+        Query q = new Query(id, type, l, encode(l.name, type, id));
+        pending.put(id, q);
+        transmit(q);
+        if (hedge && servers.length > 1) send(q, pick(q));
+        return q;
+    }
+
+    private void transmit(Query q) {
+        q.tries++;
+        q.round = 0;
+        q.sentAt = loop.now();
+        send(q, pick(q));
+        loop.schedule(q, RETRY_BASE << (q.tries - 1));
+    }
+
+    private void send(Query q, int server) {
+        q.tried |= 1L << server;
+        q.round |= 1L << server;
+        out.add(new Packet(q.wire, servers[server].addr));
+    }
+
+    //самый быстрый живой сервер, которому этот запрос еще не отправляли
+    private int pick(Query q) {
+        long now = loop.now();
+        if (Long.bitCount(q.tried) >= servers.length) q.tried = 0;
+
+        int best = -1;
+        for (int i = 0; i < servers.length; i++) {
+            if ((q.tried & (1L << i)) != 0) continue;
+            if (best == -1 || better(servers[i], servers[best], now)) best = i;
+        }
+        return best;
+    }
+
+    private static boolean better(Server a, Server b, long now) {
+        boolean ha = a.healthy(now), hb = b.healthy(now);
+        if (ha != hb) return ha;
+        if (!ha) return a.downUntil < b.downUntil;
+        return a.srtt < b.srtt;
+    }
 
-        pending.put(id, who);
-        out.add(ByteBuffer.wrap(m.toWire()));
+    private void onRetry(Query q) {
+        long now = loop.now();
+        for (int i = 0; i < servers.length; i++) {
+            if ((q.round & (1L << i)) != 0) servers[i].onTimeout(now, now - q.sentAt);
+        }
+
+        if (q.tries >= MAX_TRIES) {
+            pending.remove(q.id);
+            answered(q, NONE);
+            return;
+        }
+        transmit(q);
         updateOps();
     }
 
+    //ответ больше не нужен (тайм-аут или закрытие)
+    void cancel(String domain, Waiter who) {
+        Lookup l = inflight.get(normalize(domain));
+        if (l == null) return;
+        l.waiters.remove(who);
+        if (!l.waiters.isEmpty()) return;
+
+        inflight.remove(l.name);
+        stop(l);
+    }
+
+    //снять таймер ожидания и недоотвеченные запросы: иначе они перепосылаются
+    //до MAX_TRIES и записывают живым серверам тайм-ауты
+    private void stop(Lookup l) {
+        loop.cancel(l);
+        for (Query q : new Query[]{l.q4, l.q6}) {
+            if (q == null) continue;
+            pending.remove(q.id, q); //id отвеченного запроса мог уже достаться другому
+            loop.cancel(q);
+        }
+    }
+
     void onKey(SelectionKey k) throws IOException {
         if (k.isWritable()) writeAll();
-        if (k.isReadable()) readOnce();
+        if (k.isReadable()) {
+            for (int i = 0; i < RECV_BATCH; i++) {
+                if (!readOnce()) break;
+            }
+        }
     }
 
     private void writeAll() throws IOException {
         while (!out.isEmpty()) {
-            ByteBuffer b = out.peek();
-            int n = udp.write(b);
+            Packet p = out.peek();
+            int n;
+            try {
+                n = udp.send(p.data, p.to);
+            } catch (IOException e) {
+                n = -1; //например, нет маршрута до сервера - ждем перепосылки
+            }
             if (n == 0) break;
-            if (!b.hasRemaining()) out.poll();
+            out.poll();
         }
         updateOps();
     }
 
-    private void readOnce() throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(2048);
-        int n = udp.read(buf);
-        if (n <= 0) return;
+    private boolean readOnce() throws IOException {
+        in.clear();
+        SocketAddress from = udp.receive(in);
+        if (from == null) return false;
+        int n = in.position();
 
-        byte[] data = Arrays.copyOf(buf.array(), n);
         Message resp;
-        try { resp = new Message(data); }
-        catch (IOException e) { return; }
+        try { resp = decode(in.array(), n); }
+        catch (IOException e) { return true; }
+
+        Query q = pending.get(resp.getHeader().getID());
+        if (q == null || !matches(resp, q)) return true;
+        int server = serverIndex(from);
+        if (server < 0 || (q.tried & (1L << server)) == 0) return true; //ответ не от того, кого спрашивали
+        pending.remove(q.id);
+        loop.cancel(q);
+
+        long now = loop.now();
+        //алгоритм Карна: RTT меряем только по запросам без перепосылок
+        servers[server].onAnswer(q.tries == 1 ? now - q.sentAt : -1);
+
+        DnsCache cache = q.type == Type.A ? cache4 : cache6;
+        InetAddress[] addrs = NONE;
+        int rcode = resp.getRcode();
+        if (rcode == Rcode.NOERROR) {
+            ArrayList<InetAddress> list = new ArrayList<>(4);
+            long ttl = answers(resp, list);
+            if (!list.isEmpty()) {
+                addrs = list.toArray(NONE);
+                cache.put(q.lookup.name, addrs, ttl, now);
+            }
+        }
+        if (addrs.length == 0 && (rcode == Rcode.NOERROR || rcode == Rcode.NXDOMAIN)) {
+            cache.put(q.lookup.name, NONE, negativeTtl(resp), now);
+        }
+
+        answered(q, addrs);
+        return true;
+    }
+
+    private void answered(Query q, InetAddress[] addrs) {
+        Lookup l = q.lookup;
+        if (inflight.get(l.name) != l) return; //уже отдали ответ без этого семейства
+
+        if (q.type == Type.A) l.v4 = addrs;
+        else l.v6 = addrs;
 
-        Conn c = pending.remove(resp.getHeader().getID());
-        if (c == null) return;
+        if (l.v4 != null && l.v6 != null) finish(l);
+        else if (l.v4 != null && l.v4.length > 0 && !l.scheduled()) loop.schedule(l, RESOLUTION_DELAY);
+    }
+
+    private void finish(Lookup l) {
+        inflight.remove(l.name);
+        stop(l);
+        InetAddress[] v6 = l.v6 != null ? l.v6 : NONE;
+        InetAddress[] v4 = l.v4 != null ? l.v4 : NONE;
+        for (Waiter w : l.waiters) deliver(w, v6, v4);
+    }
 
-        InetAddress a = firstA(resp);
-        if (a == null) c.onDnsFail();
-        else c.onDnsOk(a);
+    private static void deliver(Waiter w, InetAddress[] v6, InetAddress[] v4) {
+        if (v6.length + v4.length == 0) {
+            w.onDnsFail();
+            return;
+        }
+        InetAddress[] all = new InetAddress[v6.length + v4.length];
+        System.arraycopy(v6, 0, all, 0, v6.length);
+        System.arraycopy(v4, 0, all, v6.length, v4.length);
+        w.onDnsOk(all);
+    }
+
+    private int serverIndex(SocketAddress from) {
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i].addr.equals(from)) return i;
+        }
+        return -1;
     }
 
     private void updateOps() {
@@ -81,24 +372,77 @@ final class Dns {
         if (key.isValid() && key.interestOps() != ops) key.interestOps(ops);
     }
 
-    private static InetAddress firstA(Message resp) {
-        if (resp.getRcode() != Rcode.NOERROR) return null;
-        for (org.xbill.DNS.Record r : resp.getSectionArray(Section.ANSWER)) {
-            if (r instanceof ARecord ar) return ar.getAddress();
+    private static String normalize(String domain) {
+        String n = domain.endsWith(".") ? domain.substring(0, domain.length() - 1) : domain;
+        return n.toLowerCase(Locale.ROOT);
+    }
+
+    //wire-формат запроса и разбор ответа вынесены отдельно, чтобы мерить их в src/jmh
+    static byte[] encode(String name, int type, int id) throws IOException {
+        Message m = Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString(name + "."), type, DClass.IN));
+        m.getHeader().setID(id);
+        return m.toWire();
+    }
+
+    static Message decode(byte[] buf, int len) throws IOException {
+        return new Message(Arrays.copyOf(buf, len));
+    }
+
+    //адреса из ANSWER в out, возвращает минимальный TTL
+    static long answers(Message resp, List<InetAddress> out) {
+        long ttl = Long.MAX_VALUE;
+        for (org.xbill.DNS.Record r : resp.getSection(Section.ANSWER)) {
+            ttl = Math.min(ttl, r.getTTL());
+            if (r instanceof ARecord ar) out.add(ar.getAddress());
+            else if (r instanceof AAAARecord ar) out.add(ar.getAddress());
+        }
+        return ttl;
+    }
+
+    private static boolean matches(Message resp, Query q) {
+        org.xbill.DNS.Record r = resp.getQuestion();
+        return r != null && r.getType() == q.type && r.getName().toString(true).equalsIgnoreCase(q.lookup.name);
+    }
+
+    //RFC 2308: TTL отрицательного ответа = min(TTL SOA, SOA.minimum); без SOA не кешируем
+    private static long negativeTtl(Message resp) {
+        for (org.xbill.DNS.Record r : resp.getSection(Section.AUTHORITY)) {
+            if (r instanceof SOARecord soa) return Math.min(soa.getTTL(), soa.getMinimum());
+        }
+        return 0;
+    }
+
+    static List<InetSocketAddress> serverList() {
+        return SERVERS != null ? parseServers(SERVERS) : systemServers();
+    }
+
+    private static List<InetSocketAddress> parseServers(String spec) {
+        List<InetSocketAddress> list = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String s = part.trim();
+            if (s.isEmpty()) continue;
+            int port = 53;
+            int colon = s.lastIndexOf(':');
+            if (colon > 0 && s.indexOf(':') == colon) {
+                port = Integer.parseInt(s.substring(colon + 1));
+                s = s.substring(0, colon);
+            }
+            list.add(new InetSocketAddress(s, port));
         }
-        return null;
+        if (list.isEmpty()) throw new IllegalArgumentException("socks5.dns.servers is empty");
+        return list;
     }
 
-    private static InetSocketAddress pickResolver() {
+    private static List<InetSocketAddress> systemServers() {
+        List<InetSocketAddress> list = new ArrayList<>();
         try {
             ResolverConfig cfg = ResolverConfig.getCurrentConfig();
-            List<InetSocketAddress> servers = cfg.servers();
-            if (servers != null && !servers.isEmpty()) {
-                InetSocketAddress s = servers.get(0);
+            for (InetSocketAddress s : cfg.servers()) {
                 InetAddress ip = s.getAddress();
-                return ip != null ? new InetSocketAddress(ip, 53) : new InetSocketAddress(s.getHostString(), 53);
+                if (ip != null) list.add(new InetSocketAddress(ip, s.getPort() > 0 ? s.getPort() : 53));
             }
         } catch (Exception ignored) {}
-        return new InetSocketAddress("8.8.8.8", 53);
+        if (list.isEmpty()) list.add(new InetSocketAddress("8.8.8.8", 53));
+        return list;
     }
 }
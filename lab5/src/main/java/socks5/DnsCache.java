@@ -0,0 +1,51 @@
+package socks5;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//LRU-кеш ответов DNS с учетом TTL, свой у каждого цикла и типа записи.
+//пустой addrs означает отрицательный ответ (NXDOMAIN / нет записей)
+final class DnsCache {
+    static final int MAX_SIZE = Integer.getInteger("socks5.dns.cache", 10_000);
+    static final long MAX_TTL = Long.getLong("socks5.dns.maxttl", 3600) * 1000;
+
+    static final class Entry {
+        final InetAddress[] addrs;
+        final long expires;
+
+        Entry(InetAddress[] addrs, long expires) {
+            this.addrs = addrs;
+            this.expires = expires;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private long hits = 0, misses = 0;
+
+    Entry get(String name, long now) {
+        Entry e = map.get(name);
+        if (e != null && e.expires <= now) {
+            map.remove(name);
+            e = null;
+        }
+        if (e == null) misses++;
+        else hits++;
+        return e;
+    }
+
+    void put(String name, InetAddress[] addrs, long ttlSec, long now) {
+        if (ttlSec <= 0 || MAX_SIZE <= 0) return;
+        map.put(name, new Entry(addrs, now + Math.min(ttlSec * 1000, MAX_TTL)));
+    }
+
+    int size() { return map.size(); }
+    long hits() { return hits; }
+    long misses() { return misses; }
+}
@@ -0,0 +1,245 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//загрузка одного ответа в запись HttpCache, как download_thread в proxy.c:
+//запрос HTTP/1.0 с Connection: close, ответ читается до закрытия соединения
+//сервером прямо в блоки кеша. идет на цикле клиента, который ее начал, и
+//доводится до конца, даже если все клиенты ушли. под правилом route идет только
+//через upstream (CONNECT к нему, затем тот же GET), напрямую - никогда. не влезший в кеш ответ дочитывается
+//в кольцо записи, пока его есть кому отдать. таймер - тайм-аут подключения,
+//затем простоя
+final class Fetch extends TimerWheel.Timer implements Dns.Waiter, Dialer.Client, Tunnel.Client {
+    private static final long CONNECT_TIMEOUT = Long.getLong("socks5.timeout.connect", 10_000);
+    private static final long IDLE_TIMEOUT    = Long.getLong("socks5.timeout.idle", 300_000);
+
+    private final int id = Conn.nextId();
+    private final Loop loop;
+    private final HttpCache.Entry entry;
+    private final String host, path;
+    private final int port;
+    private final InetAddress from; //клиент - для правил по адресам после DNS
+    private final Upstream via;     //null - напрямую
+
+    private final ByteBuffer view = HttpCache.view();
+    private ByteBuffer ring; //после entry.stream(): свое окно на кольцо записи
+    private ByteBuffer req;
+    private SocketChannel ch;
+    private SelectionKey key;
+    private Dialer dialer;
+    private Tunnel tunnel;
+    private boolean resolving = false, done = false;
+    //начало строки статуса: "HTTP/1.x 200"
+    private final byte[] status = new byte[12];
+    private int statusLen = 0;
+
+    Fetch(Loop loop, HttpCache.Entry entry, String host, int port, String path, InetAddress from, Upstream via) {
+        this.loop = loop;
+        this.entry = entry;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.from = from;
+        this.via = via;
+    }
+
+    @Override
+    public int id() { return id; }
+
+    void start() {
+        loop.schedule(this, CONNECT_TIMEOUT);
+        if (via != null) {
+            //имя уходит upstream'у без разрешения, как у Conn
+            try {
+                Tunnel t = loop.upstream(via).take(this, Rules.isLiteral(host) ? InetAddress.getByName(host) : host, port);
+                if (!done) tunnel = t;
+            } catch (IOException e) {
+                fail("upstream " + via.name + ": " + e.getMessage());
+            }
+            return;
+        }
+        if (Rules.isLiteral(host)) {
+            try {
+                onDnsOk(new InetAddress[]{ InetAddress.getByName(host) });
+            } catch (IOException e) {
+                fail("bad address " + host);
+            }
+            return;
+        }
+        resolving = true;
+        try {
+            //ответ может прийти сразу, из кеша DNS
+            loop.dns().resolve(this, host);
+        } catch (IOException e) {
+            resolving = false;
+            fail("DNS: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onDnsOk(InetAddress[] addrs) {
+        resolving = false;
+        if (done) return;
+        int n = 0;
+        for (InetAddress a : addrs) {
+            if (Rules.denied(a, port, from) == null) addrs[n++] = a;
+        }
+        if (n == 0) {
+            fail("denied by rules");
+            return;
+        }
+        InetAddress[] ok = n == addrs.length ? addrs : Arrays.copyOf(addrs, n);
+        dialer = new Dialer(loop, this, Dialer.targets(ok, port, loop.penalty(), loop.now()));
+        dialer.start();
+    }
+
+    @Override
+    public void onDnsFail() {
+        resolving = false;
+        if (!done) fail("DNS lookup failed for " + host);
+    }
+
+    @Override
+    public void onDialed(SocketChannel ch, SelectionKey key, InetSocketAddress to) {
+        dialer = null;
+        connected(ch, key, to);
+    }
+
+    //upstream ответил на CONNECT; до нашего GET сервер ничего прислать не может
+    @Override
+    public void onTunnel(SocketChannel ch, SelectionKey key, Upstream u, ByteBuffer early) {
+        tunnel = null;
+        connected(ch, key, "upstream " + u.name);
+        if (early.hasRemaining()) fail("unexpected data from upstream " + u.name);
+    }
+
+    private void connected(SocketChannel ch, SelectionKey key, Object to) {
+        this.ch = ch;
+        String h = host.indexOf(':') >= 0 ? "[" + host + "]" : host;
+        if (port != 80) h += ":" + port;
+        req = ByteBuffer.wrap(("GET " + path + " HTTP/1.0\r\nHost: " + h
+                + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        try {
+            if (key != null) {
+                key.attach(this);
+                this.key = key;
+            } else {
+                this.key = loop.register(ch, 0, this);
+            }
+            this.key.interestOps(SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            fail(e.getMessage());
+            return;
+        }
+        Log.event(Log.HTTP_FETCH, id, entry.url, to);
+        loop.cancel(this);
+        loop.schedule(this, IDLE_TIMEOUT);
+    }
+
+    @Override
+    public void onDialFailed(IOException e) {
+        dialer = null;
+        tunnel = null;
+        fail(e != null ? e.getMessage() : "connect failed");
+    }
+
+    void onKey(SelectionKey k) throws IOException {
+        int ops = k.readyOps();
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            ch.write(req);
+            if (!req.hasRemaining()) k.interestOps(SelectionKey.OP_READ);
+        }
+        if ((ops & SelectionKey.OP_READ) != 0) read();
+    }
+
+    private void read() throws IOException {
+        ByteBuffer dst = view;
+        if (ring == null && !entry.writable(view)) {
+            //больше .object или блоки заняты идущими загрузками: не кешируем, но и не обрезаем
+            entry.stream();
+            ring = entry.spill().duplicate();
+        }
+        if (ring != null) {
+            long room = entry.reserve(ring, loop, this::unstall);
+            if (room < 0) {
+                //ответ не кешируется, а клиентов больше нет - дочитывать незачем
+                finish(false);
+                return;
+            }
+            if (room == 0) {
+                setOps(0);
+                return;
+            }
+            dst = ring;
+        }
+        int start = dst.position();
+        int n = ch.read(dst);
+        if (n == -1) {
+            if (statusLen < status.length) HttpCache.unindex(entry);
+            finish(true);
+            return;
+        }
+        if (n == 0) return;
+        if (statusLen < status.length) checkStatus(dst, start, n);
+        loop.metrics().fetchBytes += n;
+        entry.append(n, loop);
+        loop.cancel(this);
+        loop.schedule(this, IDLE_TIMEOUT);
+    }
+
+    //самый медленный клиент освободил место в кольце; поток цикла
+    private void unstall() {
+        if (!done) setOps(SelectionKey.OP_READ);
+    }
+
+    private void setOps(int ops) {
+        if (key.isValid()) key.interestOps(ops);
+    }
+
+    //в кеше остаются только ответы 200, остальные дочитают уже подключившиеся клиенты
+    private void checkStatus(ByteBuffer src, int start, int n) {
+        int k = Math.min(n, status.length - statusLen);
+        for (int i = 0; i < k; i++) status[statusLen++] = src.get(start + i);
+        if (statusLen < status.length) return;
+        String s = new String(status, StandardCharsets.ISO_8859_1);
+        if (!s.startsWith("HTTP/1.") || !s.endsWith(" 200")) HttpCache.unindex(entry);
+    }
+
+    @Override
+    void expire() {
+        fail(ch == null ? "connect timed out" : "idle timeout");
+    }
+
+    //ошибка сокета или срок останова Loop (e == null)
+    void abort(IOException e) {
+        fail(e == null ? "shutdown" : String.valueOf(e.getMessage()));
+    }
+
+    //при ошибке клиенты получают обрезанный ответ, запись уходит из кеша
+    private void fail(String why) {
+        if (done) return;
+        Log.event(Log.HTTP_ERROR, id, entry.url, why);
+        loop.metrics().fetchFail++;
+        finish(false);
+    }
+
+    private void finish(boolean ok) {
+        if (done) return;
+        done = true;
+        loop.cancel(this);
+        if (dialer != null) { dialer.abort(false); dialer = null; }
+        if (tunnel != null) { tunnel.abort(); tunnel = null; }
+        if (resolving) { loop.dns().cancel(host, this); resolving = false; }
+        try { if (key != null) key.cancel(); } catch (Exception ignored) {}
+        try { if (ch != null) ch.close(); } catch (Exception ignored) {}
+        entry.finish(ok, loop);
+        HttpCache.release(entry);
+    }
+}
@@ -0,0 +1,232 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//журнал потоков: по записи фиксированного размера на каждое закрытое соединение,
+//в отображенные в память файлы flows-NNNNNN.bin, без форматирования и stdout.
+//читает его FlowTool. -Dsocks5.flows - каталог (не задан - выключен),
+//.segment - размер файла (64 МБ), .keep - сколько файлов хранить (8)
+//
+//как в Log: циклы кладут готовую запись в кольцо (.ring записей, без блокировок),
+//поток flow-writer переносит их в файл, сам создает новые файлы и сбрасывает
+//старые на диск, а без записей спит до первой новой. при переполнении кольца
+//записи теряются и считаются
+//
+//файл: заголовок на месте первой записи (MAGIC, REC, время создания), дальше записи
+//little-endian; пустое место - нули, поэтому acceptMs пишется последним.
+//запись, смещения времени - мкс от приема, -1 - фазы не было:
+//  0 long acceptMs (эпоха)   8 int handshake   12 int dns   16 int connect   20 int id
+//  24 long close   32 long up   40 long down
+//  48 cmd   49 rep (NO_REQUEST - запроса не было)   50 состояние при закрытии   51 длина имени
+//  52 short порт   54 движок (0 nio, 1 virtual)   55 -
+//  56 адрес клиента (16 байт, IPv4 как ::ffff:a.b.c.d)   72 адрес цели   88 имя цели (NAME байт)
+final class FlowLog {
+    static final String DIR = System.getProperty("socks5.flows");
+    static final boolean ENABLED = DIR != null;
+    static final int REC = 128;
+    static final int NAME = REC - 88;
+    static final long MAGIC = 0x31574F4C46355353L; //"SS5FLOW1"
+    static final byte NO_REQUEST = (byte) 0xFF;
+    static final long SEGMENT = Math.min(Long.getLong("socks5.flows.segment", 64L << 20), Integer.MAX_VALUE) / REC * REC;
+    static final int KEEP = Math.max(1, Integer.getInteger("socks5.flows.keep", 8));
+    private static final int CAP = Integer.highestOneBit(Math.max(64, Integer.getInteger("socks5.flows.ring", 1 << 13)));
+    private static final int MASK = CAP - 1;
+
+    //кольцо: слот i опубликован, когда published[i] == номер записи
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLongArray published = new AtomicLongArray(CAP);
+    private static final ByteBuffer ring = ENABLED
+            ? ByteBuffer.allocateDirect(CAP * REC).order(ByteOrder.LITTLE_ENDIAN) : null;
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean open; //false - журнал выключен или файл не создался
+    //flow-writer и его сон, как в Log
+    private static Thread writer;
+    private static volatile boolean idle = false;
+
+    //дальше - только поток flow-writer (и flush при остановке), под локом FlowLog
+    private static final ArrayDeque<Path> files = new ArrayDeque<>();
+    private static Path dir;
+    private static long seq = 0;
+    private static MappedByteBuffer seg;
+    private static int pos;
+    private static volatile long records = 0;
+
+    private FlowLog() {}
+
+    static void init() throws IOException {
+        dir = Paths.get(DIR);
+        Files.createDirectories(dir);
+        //прежние файлы идут в счет KEEP, нумерация продолжается
+        for (Path p : segments(dir)) {
+            files.add(p);
+            seq = Math.max(seq, number(p));
+        }
+        for (int i = 0; i < CAP; i++) published.lazySet(i, -1);
+        if (!rotate()) return;
+        open = true;
+        writer = new Thread(FlowLog::drainLoop, "flow-writer");
+        writer.setDaemon(true);
+        writer.start();
+        System.out.println("Flow log: " + dir + ", " + (SEGMENT / REC - 1) + " records per file, keep " + KEEP + " files");
+    }
+
+    //закрытие соединения, любой поток; addr - клиент и цель, name - имя цели (или null)
+    static void record(int id, long acceptMs, long acceptNs, int handshakeUs, int dnsUs, int connectUs,
+                       long up, long down, int cmd, byte rep, int state, int port, boolean virtual,
+                       InetAddress client, InetAddress remote, String name) {
+        if (!open) return;
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= CAP) { dropped.increment(); return; }
+        } while (!tail.compareAndSet(t, t + 1));
+
+        int slot = (int) (t & MASK);
+        ByteBuffer b = ring;
+        int p = slot * REC;
+        //слот мог остаться от прошлого круга
+        for (int k = 56; k < REC; k += 8) b.putLong(p + k, 0);
+        b.putInt(p + 8, handshakeUs);
+        b.putInt(p + 12, dnsUs);
+        b.putInt(p + 16, connectUs);
+        b.putInt(p + 20, id);
+        b.putLong(p + 24, (System.nanoTime() - acceptNs) / 1000);
+        b.putLong(p + 32, up);
+        b.putLong(p + 40, down);
+        b.put(p + 48, (byte) cmd);
+        b.put(p + 49, rep);
+        b.put(p + 50, (byte) state);
+        b.putShort(p + 52, (short) port);
+        b.put(p + 54, (byte) (virtual ? 1 : 0));
+        putAddr(b, p + 56, client);
+        putAddr(b, p + 72, remote);
+        int n = 0;
+        if (name != null) {
+            //имена из запроса - ASCII, длиннее NAME обрезаются с начала: важен хвост домена
+            int from = Math.max(0, name.length() - NAME);
+            for (int i = from; i < name.length(); i++) b.put(p + 88 + n++, (byte) name.charAt(i));
+        }
+        b.put(p + 51, (byte) n);
+        b.putLong(p, acceptMs);
+        published.set(slot, t); //до чтения idle, см. Log.event
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    //при остановке, когда циклы уже закрылись: дописать кольцо и сбросить отображение на диск
+    static synchronized void flush() {
+        drain();
+        if (seg != null) seg.force();
+    }
+
+    static long records() { return records; }
+
+    static long dropped() { return dropped.sum(); }
+
+    //---- поток flow-writer ----
+
+    private static void drainLoop() {
+        while (open) {
+            if (drain() > 0) continue;
+            idle = true;
+            if (published.get((int) (head & MASK)) != head) LockSupport.park();
+            idle = false;
+        }
+    }
+
+    private static synchronized int drain() {
+        long h = head;
+        int n = 0;
+        while (seg != null && published.get((int) (h & MASK)) == h) {
+            if (pos + REC > SEGMENT && !rotate()) break;
+            //acceptMs - последним: читатель файла считает запись с нулем пустой
+            int from = (int) (h & MASK) * REC;
+            seg.put(pos + 8, ring, from + 8, REC - 8);
+            seg.putLong(pos, ring.getLong(from));
+            pos += REC;
+            h++;
+            head = h;
+            n++;
+        }
+        records += n;
+        return n;
+    }
+
+    //новый файл; false - не вышло, журнал выключается
+    private static boolean rotate() {
+        MappedByteBuffer old = seg;
+        seg = null;
+        if (old != null) old.force();
+        Path p = dir.resolve(String.format("flows-%06d.bin", ++seq));
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer m = fc.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+            m.order(ByteOrder.LITTLE_ENDIAN);
+            m.putInt(8, REC);
+            m.putLong(16, System.currentTimeMillis());
+            m.putLong(0, MAGIC);
+            seg = m;
+            pos = REC;
+        } catch (IOException e) {
+            System.err.println("Flow log: " + p + " failed, disabled: " + e.getMessage());
+            open = false;
+            return false;
+        }
+        files.add(p);
+        while (files.size() > KEEP) {
+            try { Files.deleteIfExists(files.poll()); } catch (IOException ignored) {}
+        }
+        return true;
+    }
+
+    private static void putAddr(ByteBuffer b, int at, InetAddress a) {
+        if (a == null) return; //нули
+        byte[] raw = a.getAddress();
+        if (a instanceof Inet4Address) {
+            b.putShort(at + 10, (short) 0xFFFF);
+            b.put(at + 12, raw);
+        } else {
+            b.put(at, raw);
+        }
+    }
+
+    //файлы журнала в каталоге по порядку номеров
+    static ArrayList<Path> segments(Path dir) throws IOException {
+        ArrayList<Path> out = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "flows-*.bin")) {
+            for (Path p : ds) if (number(p) > 0) out.add(p);
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    private static long number(Path p) {
+        String s = p.getFileName().toString();
+        try {
+            return Long.parseLong(s.substring(6, s.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
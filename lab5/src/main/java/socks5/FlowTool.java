@@ -0,0 +1,251 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+//разбор журнала FlowLog вне прокси:
+//  java -cp socks5-proxy-1.0.jar socks5.FlowTool <top|latency|dump> [-by client|target] [-n N] [-last MIN] <dir|file>...
+//top - кто больше всех передал, latency - квантили фаз (с -by - по ключам), dump - записи текстом
+public class FlowTool {
+    private static final String[] STATES = new String[Conn.St.values().length];
+    static {
+        for (Conn.St s : Conn.St.values()) STATES[s.ordinal()] = s.name();
+    }
+
+    //одна запись журнала; поля как в FlowLog
+    static final class Flow {
+        long acceptMs, closeUs, up, down;
+        int handshakeUs, dnsUs, connectUs, id, port, cmd, rep, state;
+        boolean virtual;
+        InetAddress client, remote;
+        String name;
+
+        //handshake -> dns -> connect; -1 - фазы не было
+        long dnsPhase() { return dnsUs < 0 ? -1 : dnsUs - handshakeUs; }
+        long connectPhase() { return connectUs < 0 ? -1 : connectUs - (dnsUs < 0 ? handshakeUs : dnsUs); }
+
+        String target() {
+            if (name != null) return name + ":" + port;
+            if (remote != null) return remote.getHostAddress() + ":" + port;
+            return "-";
+        }
+    }
+
+    interface Sink {
+        void accept(Flow f);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) usage();
+        String cmd = args[0];
+        String by = null;
+        int limit = 20;
+        long since = 0;
+        ArrayList<Path> files = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-by" -> by = arg(args, ++i);
+                case "-n" -> limit = Integer.parseInt(arg(args, ++i));
+                case "-last" -> since = System.currentTimeMillis() - Long.parseLong(arg(args, ++i)) * 60_000;
+                default -> {
+                    Path p = Paths.get(args[i]);
+                    if (Files.isDirectory(p)) files.addAll(FlowLog.segments(p));
+                    else files.add(p);
+                }
+            }
+        }
+        if (by != null && !by.equals("client") && !by.equals("target")) usage();
+
+        long from = since;
+        switch (cmd) {
+            case "top" -> top(files, from, by == null ? "client" : by, limit);
+            case "latency" -> latency(files, from, by, limit);
+            case "dump" -> read(files, f -> { if (f.acceptMs >= from) System.out.println(dump(f)); });
+            default -> usage();
+        }
+    }
+
+    private static String arg(String[] args, int i) {
+        if (i >= args.length) usage();
+        return args[i];
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -cp socks5-proxy-1.0.jar socks5.FlowTool <top|latency|dump>"
+                + " [-by client|target] [-n N] [-last MIN] <dir|file>...");
+        System.exit(2);
+    }
+
+    private static String key(Flow f, String by) {
+        return by.equals("client") ? (f.client != null ? f.client.getHostAddress() : "-") : f.target();
+    }
+
+    //больше всех байт в обе стороны
+    private static void top(ArrayList<Path> files, long since, String by, int n) throws IOException {
+        HashMap<String, long[]> sums = new HashMap<>(); //conns, up, down
+        read(files, f -> {
+            if (f.acceptMs < since) return;
+            long[] s = sums.computeIfAbsent(key(f, by), k -> new long[3]);
+            s[0]++;
+            s[1] += f.up;
+            s[2] += f.down;
+        });
+        ArrayList<Map.Entry<String, long[]>> rows = new ArrayList<>(sums.entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue()[1] + b.getValue()[2], a.getValue()[1] + a.getValue()[2]));
+        System.out.printf("%-40s %8s %12s %12s %12s%n", by, "conns", "up", "down", "total");
+        for (int i = 0; i < Math.min(n, rows.size()); i++) {
+            long[] s = rows.get(i).getValue();
+            System.out.printf("%-40s %8d %12s %12s %12s%n", rows.get(i).getKey(), s[0], bytes(s[1]), bytes(s[2]), bytes(s[1] + s[2]));
+        }
+    }
+
+    //квантили по фазам; by != null - строка на ключ, ключи по числу соединений
+    private static void latency(ArrayList<Path> files, long since, String by, int n) throws IOException {
+        HashMap<String, Histo[]> phases = new HashMap<>(); //handshake, dns, connect, lifetime
+        HashMap<String, Long> results = new HashMap<>();
+        read(files, f -> {
+            if (f.acceptMs < since) return;
+            Histo[] h = phases.computeIfAbsent(by == null ? "" : key(f, by),
+                    k -> new Histo[]{ new Histo(), new Histo(), new Histo(), new Histo() });
+            if (f.handshakeUs >= 0) h[0].record(f.handshakeUs);
+            if (f.dnsPhase() >= 0) h[1].record(f.dnsPhase());
+            if (f.connectPhase() >= 0) h[2].record(f.connectPhase());
+            h[3].record(f.closeUs);
+            results.merge(result(f), 1L, Long::sum);
+        });
+        if (by == null) {
+            Histo[] h = phases.getOrDefault("", new Histo[]{ new Histo(), new Histo(), new Histo(), new Histo() });
+            String[] names = { "handshake", "dns", "connect", "lifetime" };
+            System.out.printf("%-10s %9s %10s %10s %10s %10s %10s%n", "phase, ms", "count", "mean", "p50", "p90", "p99", "p99.9");
+            for (int i = 0; i < 4; i++) {
+                Histo x = h[i];
+                System.out.printf("%-10s %9d %10s %10s %10s %10s %10s%n", names[i], x.count(),
+                        ms(x.count() == 0 ? 0 : x.sum() / x.count()), ms(x.quantile(0.5)), ms(x.quantile(0.9)),
+                        ms(x.quantile(0.99)), ms(x.quantile(0.999)));
+            }
+            System.out.println();
+            ArrayList<Map.Entry<String, Long>> rs = new ArrayList<>(results.entrySet());
+            rs.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            for (Map.Entry<String, Long> e : rs) System.out.printf("%-24s %9d%n", e.getKey(), e.getValue());
+            return;
+        }
+        ArrayList<Map.Entry<String, Histo[]>> rows = new ArrayList<>(phases.entrySet());
+        rows.sort((a, b) -> Long.compare(b.getValue()[3].count(), a.getValue()[3].count()));
+        System.out.printf("%-40s %8s %10s %10s %10s %10s %10s%n", by, "conns", "hs p50", "dns p50", "conn p50", "conn p99", "life p50");
+        for (int i = 0; i < Math.min(n, rows.size()); i++) {
+            Histo[] h = rows.get(i).getValue();
+            System.out.printf("%-40s %8d %10s %10s %10s %10s %10s%n", rows.get(i).getKey(), h[3].count(),
+                    ms(h[0].quantile(0.5)), h[1].count() == 0 ? "-" : ms(h[1].quantile(0.5)),
+                    h[2].count() == 0 ? "-" : ms(h[2].quantile(0.5)), h[2].count() == 0 ? "-" : ms(h[2].quantile(0.99)),
+                    ms(h[3].quantile(0.5)));
+        }
+    }
+
+    private static String result(Flow f) {
+        if (f.rep == (FlowLog.NO_REQUEST & 0xFF)) return "no request (" + state(f) + ")";
+        if (f.rep == 0) return "ok";
+        return "rep " + f.rep + " (" + state(f) + ")";
+    }
+
+    private static String state(Flow f) {
+        return f.state < STATES.length ? STATES[f.state] : String.valueOf(f.state);
+    }
+
+    private static String dump(Flow f) {
+        StringBuilder sb = new StringBuilder(160);
+        sb.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(f.acceptMs)));
+        sb.append(" #").append(f.id).append(f.virtual ? " v " : " ");
+        sb.append(f.client != null ? f.client.getHostAddress() : "-").append(" -> ").append(f.target());
+        if (f.name != null && f.remote != null) sb.append(" (").append(f.remote.getHostAddress()).append(')');
+        sb.append(" cmd=").append(f.cmd).append(' ').append(result(f));
+        sb.append(" hs=").append(ms(f.handshakeUs)).append(" dns=").append(ms(f.dnsPhase()))
+          .append(" connect=").append(ms(f.connectPhase())).append(" life=").append(ms(f.closeUs));
+        sb.append(" up=").append(f.up).append(" down=").append(f.down);
+        return sb.toString();
+    }
+
+    private static String ms(long us) {
+        return us < 0 ? "-" : String.format("%.3f", us / 1000.0);
+    }
+
+    private static String bytes(long b) {
+        if (b < 10 * 1024) return b + " B";
+        if (b < 10L << 20) return (b >> 10) + " KB";
+        if (b < 10L << 30) return (b >> 20) + " MB";
+        return (b >> 30) + " GB";
+    }
+
+    //все записи по порядку; живой файл читается до первой пустой записи
+    static void read(ArrayList<Path> files, Sink sink) throws IOException {
+        Flow f = new Flow();
+        byte[] addr = new byte[16];
+        byte[] name = new byte[FlowLog.NAME];
+        for (Path p : files) {
+            MappedByteBuffer b;
+            try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ)) {
+                b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            } catch (NoSuchFileException e) {
+                continue; //прокси удалил старый файл после ротации
+            }
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            if (b.capacity() < FlowLog.REC || b.getLong(0) != FlowLog.MAGIC || b.getInt(8) != FlowLog.REC) {
+                System.err.println(p + ": not a flow log, skipped");
+                continue;
+            }
+            for (int at = FlowLog.REC; at + FlowLog.REC <= b.capacity(); at += FlowLog.REC) {
+                f.acceptMs = b.getLong(at);
+                if (f.acceptMs == 0) break;
+                f.handshakeUs = b.getInt(at + 8);
+                f.dnsUs = b.getInt(at + 12);
+                f.connectUs = b.getInt(at + 16);
+                f.id = b.getInt(at + 20);
+                f.closeUs = b.getLong(at + 24);
+                f.up = b.getLong(at + 32);
+                f.down = b.getLong(at + 40);
+                f.cmd = b.get(at + 48) & 0xFF;
+                f.rep = b.get(at + 49) & 0xFF;
+                f.state = b.get(at + 50) & 0xFF;
+                int nlen = b.get(at + 51) & 0xFF;
+                f.port = b.getShort(at + 52) & 0xFFFF;
+                f.virtual = b.get(at + 54) != 0;
+                f.client = addr(b, at + 56, addr);
+                f.remote = addr(b, at + 72, addr);
+                if (nlen == 0) {
+                    f.name = null;
+                } else {
+                    b.get(at + 88, name, 0, nlen);
+                    f.name = new String(name, 0, nlen, StandardCharsets.ISO_8859_1);
+                }
+                sink.accept(f);
+            }
+        }
+    }
+
+    //нули - адреса нет; ::ffff:a.b.c.d InetAddress сам превращает в IPv4
+    private static InetAddress addr(MappedByteBuffer b, int at, byte[] tmp) {
+        b.get(at, tmp);
+        boolean zero = true;
+        for (byte x : tmp) if (x != 0) { zero = false; break; }
+        if (zero) return null;
+        try {
+            return InetAddress.getByAddress(tmp);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}
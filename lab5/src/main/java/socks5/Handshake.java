@@ -0,0 +1,232 @@
+package socks5;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//разбор приветствия, RFC 1929 и запроса SOCKS5 прямо в ctrlIn, побайтовый автомат.
+//курсор pos помнит, сколько уже разобрано, так что частичное чтение
+//продолжается с того же байта, а разобранное сразу копируется в поля -
+//буфер можно чистить, не дожидаясь конца сообщения. ничего не аллоцирует;
+//строка создается только для доменного имени, и только по запросу, а
+//IP-адрес остается байтами в ip4/ip6, пока не понадобится адрес сокета
+final class Handshake {
+    static final int MORE = 0, GREETING = 1, REQUEST = 2, ERROR = 3, AUTH = 4;
+
+    private static final byte VER = 0x05;
+    private static final int G_VER = 0, G_NMETHODS = 1, G_METHODS = 2,
+            R_VER = 3, R_CMD = 4, R_RSV = 5, R_ATYP = 6, R_LEN = 7, R_ADDR = 8, R_PORT = 9, DONE = 10,
+            A_VER = 11, A_ULEN = 12, A_USER = 13, A_PLEN = 14, A_PASS = 15;
+
+    private int phase = G_VER;
+    private int pos = 0;  //разобранная часть буфера
+    private int need = 0; //сколько байт осталось в текущем поле
+
+    //результат: предложенные методы (биты 0..63), поля запроса, код ответа при ERROR
+    long methods;
+    byte cmd, atyp, rep;
+    int port, addrLen;
+    final byte[] addr = new byte[255]; //имя
+    private final byte[] ip4 = new byte[4], ip6 = new byte[16];
+    final byte[] user = new byte[255], pass = new byte[255];
+    int userLen, passLen;
+
+    //in - в режиме записи, как после read(); разбирает [pos, position)
+    int next(ByteBuffer in) {
+        int end = in.position();
+        try {
+            while (pos < end) {
+                switch (phase) {
+                    case G_VER -> {
+                        if (in.get(pos++) != VER) return error((byte)0x01);
+                        phase = G_NMETHODS;
+                    }
+                    case G_NMETHODS -> {
+                        need = in.get(pos++) & 0xFF;
+                        methods = 0;
+                        phase = G_METHODS;
+                        if (need == 0) return done(in, GREETING, R_VER);
+                    }
+                    case G_METHODS -> {
+                        int n = Math.min(need, end - pos);
+                        for (int i = 0; i < n; i++) {
+                            int m = in.get(pos++) & 0xFF;
+                            if (m < 64) methods |= 1L << m;
+                        }
+                        need -= n;
+                        if (need == 0) return done(in, GREETING, R_VER);
+                    }
+                    case R_VER -> {
+                        if (in.get(pos++) != VER) return error((byte)0x01);
+                        phase = R_CMD;
+                    }
+                    case R_CMD -> {
+                        cmd = in.get(pos++);
+                        phase = R_RSV;
+                    }
+                    case R_RSV -> {
+                        if (in.get(pos++) != 0x00) return error((byte)0x01);
+                        phase = R_ATYP;
+                    }
+                    case R_ATYP -> {
+                        atyp = in.get(pos++);
+                        if (atyp == 0x01) addrLen = 4;
+                        else if (atyp == 0x04) addrLen = 16;
+                        else if (atyp == 0x03) { phase = R_LEN; continue; }
+                        else return error((byte)0x08);
+                        need = addrLen;
+                        phase = R_ADDR;
+                    }
+                    case R_LEN -> {
+                        addrLen = in.get(pos++) & 0xFF;
+                        if (addrLen == 0 || addrLen > 253) return error((byte)0x08);
+                        need = addrLen;
+                        phase = R_ADDR;
+                    }
+                    case R_ADDR -> {
+                        int n = Math.min(need, end - pos);
+                        int off = addrLen - need;
+                        byte[] dst = atyp == 0x01 ? ip4 : atyp == 0x04 ? ip6 : addr;
+                        for (int i = 0; i < n; i++) dst[off + i] = in.get(pos++);
+                        need -= n;
+                        if (need == 0) {
+                            port = 0;
+                            need = 2;
+                            phase = R_PORT;
+                        }
+                    }
+                    case R_PORT -> {
+                        port = (port << 8) | (in.get(pos++) & 0xFF);
+                        if (--need == 0) return done(in, REQUEST, DONE);
+                    }
+                    case A_VER -> {
+                        if (in.get(pos++) != 0x01) return error((byte)0x01);
+                        phase = A_ULEN;
+                    }
+                    case A_ULEN -> {
+                        need = userLen = in.get(pos++) & 0xFF;
+                        phase = need == 0 ? A_PLEN : A_USER;
+                    }
+                    case A_USER -> {
+                        int n = Math.min(need, end - pos);
+                        int off = userLen - need;
+                        for (int i = 0; i < n; i++) user[off + i] = in.get(pos++);
+                        need -= n;
+                        if (need == 0) phase = A_PLEN;
+                    }
+                    case A_PLEN -> {
+                        need = passLen = in.get(pos++) & 0xFF;
+                        if (need == 0) return done(in, AUTH, R_VER);
+                        phase = A_PASS;
+                    }
+                    case A_PASS -> {
+                        int n = Math.min(need, end - pos);
+                        int off = passLen - need;
+                        for (int i = 0; i < n; i++) pass[off + i] = in.get(pos++);
+                        need -= n;
+                        if (need == 0) return done(in, AUTH, R_VER);
+                    }
+                    default -> {
+                        return MORE; //после запроса по TCP ничего не разбираем
+                    }
+                }
+            }
+            return MORE;
+        } finally {
+            //все прочитанное уже в полях - освобождаем буфер
+            if (pos == in.position()) {
+                in.clear();
+                pos = 0;
+            }
+        }
+    }
+
+    //к началу приветствия, буфер - на совести вызывающего
+    void reset() {
+        phase = G_VER;
+        pos = 0;
+        need = 0;
+    }
+
+    //после приветствия ждем подпереговоры RFC 1929, а не запрос
+    void expectAuth() {
+        phase = A_VER;
+    }
+
+    boolean offered(int method) {
+        return (methods & (1L << method)) != 0;
+    }
+
+    //только для ATYP 0x03; имена в SOCKS - ASCII, кодировка платформы не участвует
+    String domain() {
+        return new String(addr, 0, addrLen, StandardCharsets.ISO_8859_1);
+    }
+
+    //имя из запроса годится в DNS и в CONNECT к upstream: только буквы, цифры,
+    //'-', '.', '_'. CR/LF или пробел в имени дописали бы в запрос к HTTP upstream
+    //чужие заголовки или второй запрос
+    boolean validName() {
+        for (int i = 0; i < addrLen; i++) {
+            if (!hostChar(addr[i])) return false;
+        }
+        return addrLen > 0;
+    }
+
+    static boolean validName(String s) {
+        if (s.isEmpty() || s.length() > 255) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (!hostChar(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean hostChar(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '-' || c == '.' || c == '_';
+    }
+
+    String userName() {
+        return new String(user, 0, userLen, StandardCharsets.UTF_8);
+    }
+
+    //копия: проверка уходит в другой поток, а pass перезапишется
+    byte[] password() {
+        return Arrays.copyOf(pass, passLen);
+    }
+
+    //для ATYP 0x01/0x04: адрес запроса без копии, массив живет до следующего разбора
+    byte[] ip() {
+        return atyp == 0x01 ? ip4 : ip6;
+    }
+
+    //0.0.0.0 или :: - "любой", сравнивать не с чем
+    boolean anyAddress() {
+        for (byte b : ip()) if (b != 0) return false;
+        return true;
+    }
+
+    //для ATYP 0x01/0x04, когда нужен адрес сокета; getByAddress копирует сам
+    InetAddress address() throws UnknownHostException {
+        return InetAddress.getByAddress(ip());
+    }
+
+    private int done(ByteBuffer in, int result, int nextPhase) {
+        phase = nextPhase;
+        //за сообщением уже лежат байты следующего (клиент не ждал ответа) -
+        //сдвигаем их в начало, чтобы буфер не кончился
+        if (pos < in.position()) {
+            in.limit(in.position()).position(pos);
+            in.compact();
+            pos = 0;
+        }
+        return result;
+    }
+
+    private int error(byte code) {
+        rep = code;
+        phase = DONE;
+        return ERROR;
+    }
+}
@@ -0,0 +1,63 @@
+package socks5;
+
+//гистограмма задержек в мкс в духе HdrHistogram: логарифмические диапазоны
+//по степеням двойки, каждый разбит на 8 линейных корзин (точность ~12%).
+//запись - один инкремент без аллокаций, пишет только поток цикла. корзины
+//полуоткрыты сверху, (a, b], как le у Prometheus: значение v лежит в корзине v - 1,
+//и значение ровно на границе степени двойки считается в ней, а не в следующей
+final class Histo {
+    private static final int SUB = 16, HALF = SUB / 2;
+    private static final int SHIFTS = 40;
+    private static final long MAX = (1L << (SHIFTS + 4)) - 1;
+
+    private final long[] counts = new long[SUB + SHIFTS * HALF];
+    private long sum = 0, count = 0;
+
+    void record(long us) {
+        if (us < 0) us = 0;
+        else if (us > MAX) us = MAX;
+        counts[index(Math.max(0, us - 1))]++;
+        sum += us;
+        count++;
+    }
+
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int shift = 60 - Long.numberOfLeadingZeros(v); //старший бит - 3
+        return SUB + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+    }
+
+    private static long lowest(int idx) {
+        if (idx < SUB) return idx;
+        int shift = (idx - SUB) / HALF + 1;
+        return (long) ((idx - SUB) % HALF + HALF) << shift;
+    }
+
+    //сборщик метрик суммирует гистограммы всех циклов в свою копию
+    void addTo(Histo acc) {
+        for (int i = 0; i < counts.length; i++) acc.counts[i] += counts[i];
+        acc.sum += sum;
+        acc.count += count;
+    }
+
+    //число значений <= bound; bound - степень двойки >= SUB, на нее попадают границы корзин
+    long countAtMost(long bound) {
+        long n = 0;
+        for (int i = 0; i < counts.length && lowest(i) < bound; i++) n += counts[i];
+        return n;
+    }
+
+    //q-квантиль с точностью корзины (ее верхняя граница, включительно)
+    long quantile(double q) {
+        long need = Math.max(1, (long) Math.ceil(q * count));
+        long n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            n += counts[i];
+            if (n >= need) return i + 1 < counts.length ? lowest(i + 1) : MAX;
+        }
+        return 0;
+    }
+
+    long sum() { return sum; }
+    long count() { return count; }
+}
@@ -0,0 +1,303 @@
+package socks5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+//общий кеш ответов режима HTTP, как stream_buffer_t/cache_t в lab3osi/proxy.c:
+//запись наполняет одна загрузка (Fetch), а читать ее могут сразу многие клиенты,
+//в том числе пока загрузка идет. данные лежат в отображенном в память файле,
+//нарезанном на блоки по CHUNK, запись - список блоков.
+//-Dsocks5.http.port - порт режима HTTP (0 - выключен), -Dsocks5.http.cache.size - размер файла (64 МБ), .entries - не больше записей
+//(50, MAX_CACHE_SIZE), .ttl - срок жизни, с (300, CACHE_TTL), .object - предел
+//одного ответа (половина файла), .dir - каталог файла.
+//.entries - предел и для идущих загрузок: если вытеснить нечего, новый URL грузится
+//мимо индекса, только для своего клиента, как не влезший в кеш ответ.
+//вытесняются давно не запрошенные завершенные записи; блоки записи, которую еще
+//читают, освобождаются с уходом последнего читателя, а не ожиданием, как в proxy.c.
+//ответ, не влезший в кеш (больше .object или все свободные блоки заняты идущими
+//загрузками), не обрезается: запись уходит из индекса, а остаток идет уже
+//подключенным клиентам через кольцо STREAM_BUF загрузки; загрузка ждет самого
+//медленного из них
+final class HttpCache {
+    static final int PORT = Integer.getInteger("socks5.http.port", 0);
+    static final boolean ENABLED = PORT > 0;
+    static final long SIZE = Math.min(Long.getLong("socks5.http.cache.size", 64L << 20), Integer.MAX_VALUE);
+    static final int MAX_ENTRIES = Integer.getInteger("socks5.http.cache.entries", 50);
+    static final long TTL_MS = Long.getLong("socks5.http.cache.ttl", 300) * 1000;
+    static final long MAX_OBJECT = Long.getLong("socks5.http.cache.object", SIZE / 2);
+    static final String DIR = System.getProperty("socks5.http.cache.dir", System.getProperty("java.io.tmpdir"));
+    static final int CHUNK = 64 * 1024;
+    static final int STREAM_BUF = 4 * CHUNK;
+
+    //клиент, ждущий новых данных записи
+    interface Reader {
+        Loop loop();
+        void resume();
+        long sent(); //сколько байт записи уже отдано; читается из потока загрузки
+    }
+
+    static final class Entry {
+        final String url;
+        final long created;
+        private int[] chunks = new int[4];
+        private int nchunks = 0;
+        private volatile long size = 0;     //записано байт; пишет только загрузка
+        private volatile boolean done = false;
+        private volatile boolean failed = false;
+        private final ArrayList<Reader> waiters = new ArrayList<>(2);
+        //не влезла в кеш: байты с cached - в кольце spill (позиция p -> (p - cached) % емкость).
+        //cached пишется до spill, читать - после spill != null
+        private volatile ByteBuffer spill;
+        private long cached;
+        //под локом записи: все клиенты записи и загрузка, вставшая на полном кольце
+        private final ArrayList<Reader> readers = new ArrayList<>(2);
+        private Loop stalledLoop;
+        private Runnable stalled;
+        //под локом HttpCache
+        private int refs = 0;
+        private boolean indexed = true;
+        private boolean claimed = false;
+
+        Entry(String url, long created) {
+            this.url = url;
+            this.created = created;
+        }
+
+        long size() { return size; }
+        boolean done() { return done; }
+        boolean failed() { return failed; }
+
+        //номер блока с байтом pos; вызывать после чтения size
+        int chunk(long pos) { return chunks[(int) (pos / CHUNK)]; }
+
+        //null - все в блоках кеша; иначе байты с cached() - в этом кольце
+        ByteBuffer spill() { return spill; }
+        long cached() { return cached; }
+
+        //загрузка: куда читать следующую порцию. false - место кончилось
+        boolean writable(ByteBuffer view) {
+            long s = size;
+            int off = (int) (s % CHUNK);
+            if (s == (long) nchunks * CHUNK) {
+                if (s >= MAX_OBJECT) return false;
+                int c = alloc();
+                if (c < 0) return false;
+                if (nchunks == chunks.length) chunks = Arrays.copyOf(chunks, nchunks * 2);
+                chunks[nchunks++] = c; //до записи size - читатель увидит блок вместе с размером
+            }
+            int base = chunks[nchunks - 1] * CHUNK;
+            view.limit(base + CHUNK).position(base + off);
+            return true;
+        }
+
+        //загрузка: блоков больше не будет. запись уходит из индекса (новые запросы
+        //пойдут своей загрузкой), остаток - через кольцо для уже подключенных
+        void stream() {
+            cached = size;
+            spill = ByteBuffer.allocateDirect(STREAM_BUF);
+            unindex(this);
+        }
+
+        //загрузка: куда читать в кольцо ring (свой duplicate() от spill). 0 - кольцо
+        //полно, пока его не дочитал самый медленный клиент: загрузка встает, consumed()
+        //вызовет resume в ее цикле; -1 - клиентов не осталось
+        synchronized long reserve(ByteBuffer ring, Loop loop, Runnable resume) {
+            long room = room();
+            if (room == 0) {
+                stalledLoop = loop;
+                stalled = resume;
+            }
+            if (room <= 0) return room;
+            int cap = ring.capacity();
+            int off = (int) ((size - cached) % cap);
+            ring.limit(off + (int) Math.min(room, cap - off)).position(off);
+            return room;
+        }
+
+        //под локом: сколько байт кольца свободно; 0 - еще не дочитано, -1 - читать некому
+        private long room() {
+            if (readers.isEmpty()) return -1;
+            long min = size;
+            for (Reader r : readers) min = Math.min(min, Math.max(r.sent(), cached));
+            return spill.capacity() - (size - min);
+        }
+
+        //клиент дочитал часть кольца или ушел: разбудить вставшую загрузку
+        void consumed() {
+            if (spill == null) return;
+            Loop l;
+            Runnable r;
+            synchronized (this) {
+                if (stalled == null || room() == 0) return;
+                l = stalledLoop;
+                r = stalled;
+                stalled = null;
+                stalledLoop = null;
+            }
+            l.post(r);
+        }
+
+        private synchronized void join(Reader r) {
+            readers.add(r);
+        }
+
+        //загрузка: записано еще n байт
+        void append(int n, Loop from) {
+            ArrayList<Reader> ws;
+            synchronized (this) {
+                size += n;
+                ws = takeWaiters();
+            }
+            wake(ws, from);
+        }
+
+        //загрузка закончена; ok=false - оборвалась
+        void finish(boolean ok, Loop from) {
+            ArrayList<Reader> ws;
+            synchronized (this) {
+                failed = !ok;
+                done = true;
+                ws = takeWaiters();
+            }
+            if (!ok) unindex(this);
+            wake(ws, from);
+        }
+
+        //читатель догнал загрузку: true - встал в очередь, разбудят через resume
+        synchronized boolean await(Reader r, long pos) {
+            if (pos < size || done) return false;
+            waiters.add(r);
+            return true;
+        }
+
+        void leave(Reader r) {
+            synchronized (this) {
+                waiters.remove(r);
+                readers.remove(r);
+            }
+            consumed();
+            release(this);
+        }
+
+        private ArrayList<Reader> takeWaiters() {
+            if (waiters.isEmpty()) return null;
+            ArrayList<Reader> ws = new ArrayList<>(waiters);
+            waiters.clear();
+            return ws;
+        }
+
+        private static void wake(ArrayList<Reader> ws, Loop from) {
+            if (ws == null) return;
+            for (Reader r : ws) {
+                if (r.loop() == from) r.resume();
+                else r.loop().post(r::resume);
+            }
+        }
+    }
+
+    private static ByteBuffer arena;
+    private static int[] free = new int[0];
+    private static int freeCount = 0;
+    //порядок доступа: первой идет давно не запрошенная
+    private static final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(64, 0.75f, true);
+
+    private HttpCache() {}
+
+    static void init() throws IOException {
+        Path dir = Paths.get(DIR);
+        Path p = Files.createTempFile(dir, "socks5-http", ".cache");
+        MappedByteBuffer m;
+        try (FileChannel fc = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            m = fc.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        }
+        //отображение живет и без имени: после падения процесса файл не останется
+        try { Files.delete(p); } catch (IOException e) { p.toFile().deleteOnExit(); }
+        arena = m;
+        int n = (int) (SIZE / CHUNK);
+        free = new int[n];
+        for (int i = 0; i < n; i++) free[i] = n - 1 - i;
+        freeCount = n;
+        System.out.println("HTTP cache: " + (SIZE >> 20) + " MB mapped in " + DIR + ", " + MAX_ENTRIES
+                + " entries, TTL " + TTL_MS / 1000 + " s");
+    }
+
+    //своя копия позиций на общем отображении
+    static ByteBuffer view() { return arena.duplicate(); }
+
+    //запись для url: готовая, загружаемая или новая пустая; r - уже среди ее клиентов.
+    //join под тем же локом: stream() уводит запись из индекса тоже под ним, так что
+    //найденную в индексе запись кольцо учтет с этим клиентом с самого начала
+    static synchronized Entry open(String url, long now, Reader r) {
+        Entry e = index.get(url);
+        if (e != null && (e.failed || e.done && now - e.created > TTL_MS)) {
+            unindex(e);
+            e = null;
+        }
+        if (e == null) {
+            while (index.size() >= MAX_ENTRIES && evictOne()) {}
+            e = new Entry(url, now);
+            if (index.size() < MAX_ENTRIES) index.put(url, e);
+            else e.indexed = false; //блоки вернутся с уходом клиента и загрузки
+        }
+        e.refs++;
+        e.join(r);
+        return e;
+    }
+
+    //первый, кто взялся за новую запись, ее и загружает (ссылка загрузки - своя)
+    static synchronized boolean claim(Entry e) {
+        if (e.claimed) return false;
+        e.claimed = true;
+        e.refs++;
+        return true;
+    }
+
+    //ответ не для кеша (не 200): дочитают те, кто уже подключился
+    static synchronized void unindex(Entry e) {
+        if (!e.indexed) return;
+        e.indexed = false;
+        if (index.get(e.url) == e) index.remove(e.url);
+        if (e.refs == 0) freeChunks(e);
+    }
+
+    static synchronized void release(Entry e) {
+        if (--e.refs == 0 && !e.indexed) freeChunks(e);
+    }
+
+    private static synchronized int alloc() {
+        while (freeCount == 0 && evictOne()) {}
+        return freeCount == 0 ? -1 : free[--freeCount];
+    }
+
+    //самая давняя завершенная запись уходит из индекса
+    private static boolean evictOne() {
+        Iterator<Entry> it = index.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (!e.done) continue;
+            it.remove();
+            e.indexed = false;
+            if (e.refs == 0) freeChunks(e);
+            return true;
+        }
+        return false;
+    }
+
+    private static void freeChunks(Entry e) {
+        for (int i = 0; i < e.nchunks; i++) free[freeCount++] = e.chunks[i];
+        e.nchunks = 0;
+    }
+
+    static synchronized int entries() { return index.size(); }
+    static synchronized long usedBytes() { return (long) (free.length - freeCount) * CHUNK; }
+}
@@ -0,0 +1,285 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+//клиент режима HTTP (-Dsocks5.http.port): один запрос "GET http://host[:port]/path"
+//на соединение, как в proxy.c. ответ отдается из HttpCache - готовый, вслед за
+//идущей загрузкой или из новой загрузки (Fetch); после ответа соединение закрывается.
+//таймер - срок заголовка запроса, затем простоя: клиент, переставший читать ответ,
+//держал бы запись кеша (и ее блоки) вечно
+final class HttpConn implements HttpCache.Reader {
+    private static final long HANDSHAKE_TIMEOUT = Long.getLong("socks5.timeout.handshake", 10_000);
+    private static final long IDLE_TIMEOUT      = Long.getLong("socks5.timeout.idle", 300_000);
+    private static final int HEAD_CAP = 8192;
+
+    private final int id = Conn.nextId();
+    private final Loop loop;
+    private final Metrics metrics;
+    private final SocketChannel ch;
+    private final InetAddress peer;
+    private SelectionKey key;
+
+    private final ByteBuffer in = ByteBuffer.allocate(HEAD_CAP);
+    private ByteBuffer err; //ответ с ошибкой вместо кеша
+    private HttpCache.Entry entry;
+    private ByteBuffer view, ring; //окна на блоки кеша и на кольцо загрузки
+    private volatile long sent = 0; //его смотрит загрузка: сколько кольца уже можно занять
+    private boolean handshaking = true, closed = false;
+    private long lastIo;
+
+    private final TimerWheel.Timer deadline = new TimerWheel.Timer() {
+        @Override void expire() { onTimeout(); }
+    };
+
+    HttpConn(Loop loop, SocketChannel ch) {
+        this.loop = loop;
+        this.metrics = loop.metrics();
+        this.ch = ch;
+        InetAddress p = null;
+        try { p = ((InetSocketAddress) ch.getRemoteAddress()).getAddress(); } catch (Exception ignored) {}
+        this.peer = p;
+        metrics.httpOpen++;
+    }
+
+    int id() { return id; }
+
+    @Override
+    public Loop loop() { return loop; }
+
+    void register() throws IOException {
+        key = loop.register(ch, SelectionKey.OP_READ, this);
+        loop.schedule(deadline, HANDSHAKE_TIMEOUT);
+    }
+
+    void onKey(SelectionKey k) throws IOException {
+        int ops = k.readyOps();
+        if ((ops & SelectionKey.OP_READ) != 0) readRequest();
+        if (!closed && (ops & SelectionKey.OP_WRITE) != 0) write();
+    }
+
+    private void readRequest() throws IOException {
+        if (ch.read(in) == -1) {
+            close();
+            return;
+        }
+        int end = headerEnd();
+        if (end < 0) {
+            if (!in.hasRemaining()) error(431, "Request Header Fields Too Large");
+            return;
+        }
+        handshaking = false;
+        Admission.handshakeDone();
+        idle();
+        key.interestOps(0);
+
+        int eol = 0;
+        while (in.get(eol) != '\r' && in.get(eol) != '\n') eol++;
+        String[] line = new String(in.array(), 0, eol, StandardCharsets.ISO_8859_1).split(" ");
+        if (line.length != 3 || !line[2].startsWith("HTTP/1.")) {
+            error(400, "Bad Request");
+            return;
+        }
+        //только GET, как в proxy.c: остальное не кешируется
+        if (!line[0].equals("GET")) {
+            error(501, "Not Implemented");
+            return;
+        }
+        String url = line[1];
+        if (!url.regionMatches(true, 0, "http://", 0, 7)) {
+            error(400, "Bad Request");
+            return;
+        }
+        int slash = url.indexOf('/', 7);
+        String authority = slash < 0 ? url.substring(7) : url.substring(7, slash);
+        String path = slash < 0 ? "/" : url.substring(slash);
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) authority = authority.substring(at + 1);
+
+        String host;
+        int port = 80;
+        int colon = authority.lastIndexOf(':');
+        try {
+            if (authority.startsWith("[")) {
+                int rb = authority.indexOf(']');
+                host = authority.substring(1, rb);
+                if (rb + 1 < authority.length()) port = Integer.parseInt(authority.substring(rb + 2));
+            } else if (colon >= 0) {
+                host = authority.substring(0, colon);
+                port = Integer.parseInt(authority.substring(colon + 1));
+            } else {
+                host = authority;
+            }
+        } catch (RuntimeException e) {
+            error(400, "Bad Request");
+            return;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        //имя уходит в Host: и в CONNECT к upstream - только символы имени хоста
+        if (!Rules.isLiteral(host) && !Handshake.validName(host) || port <= 0 || port > 0xFFFF) {
+            error(400, "Bad Request");
+            return;
+        }
+
+        Object target = Rules.isLiteral(host) ? InetAddress.getByName(host) : host;
+        Rules.Rule rule = Rules.match(target, port, peer);
+        if (rule.action == Rules.DENY) {
+            metrics.denied++;
+            Log.event(Log.DENY, id, port, rule.line, 0, target, null);
+            error(403, "Forbidden");
+            return;
+        }
+
+        String keyUrl = host + ":" + port + path;
+        entry = HttpCache.open(keyUrl, loop.now(), this);
+        String how;
+        if (HttpCache.claim(entry)) {
+            metrics.httpMisses++;
+            how = "miss";
+            if (rule.via != null) Log.event(Log.UPSTREAM, id, port, 0, 0, target, rule.via.name);
+            new Fetch(loop, entry, host, port, path, peer, rule.via).start();
+        } else if (entry.done()) {
+            metrics.httpHits++;
+            how = "hit";
+        } else {
+            metrics.httpAttached++;
+            how = "attached";
+        }
+        Log.event(Log.HTTP, id, keyUrl, how);
+        view = HttpCache.view();
+        write();
+    }
+
+    private int headerEnd() {
+        for (int i = 3; i < in.position(); i++) {
+            if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void error(int code, String reason) {
+        if (handshaking) {
+            handshaking = false;
+            Admission.handshakeDone();
+        }
+        idle();
+        err = ByteBuffer.wrap(("HTTP/1.0 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        try {
+            write();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    //отдаем записанное загрузкой по блокам, а не влезшее в кеш - из кольца; догнали - ждем resume
+    private void write() throws IOException {
+        if (err != null) {
+            ch.write(err);
+            if (err.hasRemaining()) setOps(SelectionKey.OP_WRITE);
+            else close();
+            return;
+        }
+        while (true) {
+            long size = entry.size();
+            if (sent < size) {
+                ByteBuffer spill = entry.spill();
+                ByteBuffer src;
+                int len;
+                if (spill != null && sent >= entry.cached()) {
+                    if (ring == null) ring = spill.duplicate();
+                    int off = (int) ((sent - entry.cached()) % ring.capacity());
+                    len = (int) Math.min(ring.capacity() - off, size - sent);
+                    ring.limit(off + len).position(off);
+                    src = ring;
+                } else {
+                    //блоки кеша кончаются на границе CHUNK, за cached не заходим
+                    int off = (int) (sent % HttpCache.CHUNK);
+                    int base = entry.chunk(sent) * HttpCache.CHUNK + off;
+                    len = (int) Math.min(HttpCache.CHUNK - off, size - sent);
+                    view.limit(base + len).position(base);
+                    src = view;
+                }
+                int n = ch.write(src);
+                if (n > 0) lastIo = loop.now();
+                sent += n;
+                metrics.httpBytes += n;
+                if (src == ring && n > 0) entry.consumed();
+                if (n < len) {
+                    setOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                continue;
+            }
+            //оборванная загрузка (ошибка или тайм-аут) - клиент получит обрезанный ответ
+            if (entry.done()) {
+                close();
+                return;
+            }
+            if (entry.await(this, sent)) {
+                setOps(0);
+                return;
+            }
+        }
+    }
+
+    //запрос разобран: дальше ждем, пока клиент забирает ответ
+    private void idle() {
+        lastIo = loop.now();
+        loop.schedule(deadline, IDLE_TIMEOUT);
+    }
+
+    //запись не перепланирует таймер, проверяем лениво, как Conn
+    private void onTimeout() {
+        if (handshaking) {
+            Log.event(Log.TIMEOUT_HANDSHAKE, id);
+            close();
+            return;
+        }
+        long idle = loop.now() - lastIo;
+        if (idle < IDLE_TIMEOUT) {
+            loop.schedule(deadline, IDLE_TIMEOUT - idle);
+            return;
+        }
+        Log.event(Log.TIMEOUT_IDLE, id, idle);
+        close();
+    }
+
+    @Override
+    public long sent() { return sent; }
+
+    //загрузка записала еще данные или закончилась
+    @Override
+    public void resume() {
+        if (closed) return;
+        try {
+            write();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void setOps(int ops) {
+        if (key.isValid() && key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        metrics.httpOpen--;
+        Admission.release(peer, handshaking);
+        Log.event(Log.HTTP_CLOSE, id, sent);
+        loop.cancel(deadline);
+        if (entry != null) entry.leave(this);
+        try { if (key != null) key.cancel(); } catch (Exception ignored) {}
+        try { ch.close(); } catch (Exception ignored) {}
+    }
+}
@@ -0,0 +1,264 @@
+package socks5;
+
+import java.io.*;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//асинхронный лог: циклы пишут события фиксированного вида в заранее выделенное
+//кольцо (без блокировок и без аллокаций), поток log-writer форматирует и
+//сбрасывает пачками и спит, пока кольцо пустое (будит первое событие после
+//простоя). при переполнении кольца события теряются и считаются.
+//-Dsocks5.log=debug|info|warn|off, -Dsocks5.log.sample=N - события уровня
+//ниже WARN только для каждого N-го соединения
+final class Log {
+    static final int DEBUG = 0, INFO = 1, WARN = 2, OFF = 3;
+
+    static final int LEVEL = level(System.getProperty("socks5.log", "info"));
+    static final int SAMPLE = Math.max(1, Integer.getInteger("socks5.log.sample", 1));
+    private static final int CAP = Integer.highestOneBit(Math.max(1024, Integer.getInteger("socks5.log.ring", 1 << 16)));
+    private static final int MASK = CAP - 1;
+
+    //события. в шаблоне %o - следующий объектный аргумент, %d - следующий числовой, %x - числовой в hex,
+    //%t - адрес назначения: объект (InetAddress или имя) + числовой порт
+    static final int ACCEPT = 0, GREET_OK = 1, REQUEST = 2, REQUEST_DNS = 3, DNS_LOOKUP = 4, DNS_OK = 5,
+            DNS_FAIL = 6, CONNECT_START = 7, CONNECT_ERROR = 8, CONNECT_OK = 9, FAIL = 10, CLIENT_EOF = 11,
+            REMOTE_EOF = 12, UDP_OK = 13, BIND_LISTEN = 14, BIND_ACCEPT = 15, BIND_REJECT = 16,
+            TIMEOUT_HANDSHAKE = 17, TIMEOUT_BIND = 18, TIMEOUT_DNS = 19, TIMEOUT_CONNECT = 20, TIMEOUT_IDLE = 21,
+            CLOSE = 22, CLOSE_UDP = 23, NO_METHOD = 24, AUTH_OK = 25, AUTH_FAIL = 26,
+            UPSTREAM = 27, UPSTREAM_ERROR = 28, DENY = 29,
+            HTTP = 30, HTTP_FETCH = 31, HTTP_ERROR = 32, HTTP_CLOSE = 33;
+
+    private static final String[] FMT = new String[34];
+    private static final int[] LVL = new int[34];
+
+    static {
+        def(ACCEPT, INFO, "ACCEPT %o (loop-%d)");
+        def(GREET_OK, DEBUG, "SOCKS greeting OK (method %x)");
+        def(REQUEST, INFO, "REQUEST CONNECT %t");
+        def(REQUEST_DNS, INFO, "REQUEST CONNECT %t (need DNS)");
+        def(DNS_LOOKUP, DEBUG, "DNS lookup %o");
+        def(DNS_OK, DEBUG, "DNS OK %t -> %o");
+        def(DNS_FAIL, WARN, "DNS FAIL for %t");
+        def(CONNECT_START, DEBUG, "CONNECT start -> %o");
+        def(CONNECT_ERROR, INFO, "CONNECT error -> %o: %o");
+        def(CONNECT_OK, INFO, "CONNECT OK -> %o (local bind %o)");
+        def(FAIL, WARN, "FAIL reply REP=%x (%t)");
+        def(CLIENT_EOF, DEBUG, "CLIENT EOF (shutdown remote output after flush)");
+        def(REMOTE_EOF, DEBUG, "REMOTE EOF (shutdown client output after flush)");
+        def(UDP_OK, INFO, "UDP ASSOCIATE OK (relay %o:%d, client %o)");
+        def(BIND_LISTEN, INFO, "BIND listening on %o:%d");
+        def(BIND_ACCEPT, INFO, "BIND accepted %o");
+        def(BIND_REJECT, WARN, "BIND reject %o (expected %o)");
+        def(TIMEOUT_HANDSHAKE, INFO, "TIMEOUT handshake");
+        def(TIMEOUT_BIND, INFO, "TIMEOUT bind (no incoming connection)");
+        def(TIMEOUT_DNS, WARN, "TIMEOUT dns for %t");
+        def(TIMEOUT_CONNECT, WARN, "TIMEOUT connect -> %t");
+        def(TIMEOUT_IDLE, INFO, "TIMEOUT idle %d ms");
+        def(CLOSE, INFO, "CLOSE up=%d bytes, down=%d bytes, target=%t");
+        def(CLOSE_UDP, INFO, "CLOSE udp up=%d bytes, down=%d bytes, dropped=%d datagrams");
+        def(NO_METHOD, WARN, "no acceptable auth method (offered mask %x)");
+        def(AUTH_OK, INFO, "AUTH OK user %o");
+        def(AUTH_FAIL, WARN, "AUTH FAIL user %o");
+        def(UPSTREAM, INFO, "CONNECT %t via upstream %o");
+        def(UPSTREAM_ERROR, WARN, "upstream %o: %o");
+        def(DENY, WARN, "DENY %t (rule at line %d)");
+        def(HTTP, INFO, "HTTP GET %o (cache %o)");
+        def(HTTP_FETCH, INFO, "HTTP fetch %o from %o");
+        def(HTTP_ERROR, WARN, "HTTP fetch %o failed: %o");
+        def(HTTP_CLOSE, INFO, "CLOSE http sent=%d bytes");
+    }
+
+    private static void def(int ev, int lvl, String fmt) {
+        LVL[ev] = lvl;
+        FMT[ev] = fmt;
+    }
+
+    //кольцо: слот i опубликован, когда published[i] == номер записи
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLongArray published = new AtomicLongArray(CAP);
+    private static final long[] time = new long[CAP];
+    private static final int[] event = new int[CAP];
+    private static final int[] conn = new int[CAP];
+    private static final long[] a = new long[CAP], b = new long[CAP], c = new long[CAP];
+    private static final Object[] o1 = new Object[CAP], o2 = new Object[CAP];
+
+    private static final LongAdder dropped = new LongAdder();
+
+    //log-writer и его сон: true - кольцо было пустым, первое событие будит
+    private static Thread writer;
+    private static volatile boolean idle = false;
+
+    static {
+        for (int i = 0; i < CAP; i++) published.lazySet(i, -1);
+        if (LEVEL < OFF) {
+            writer = new Thread(Log::drainLoop, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+            } catch (IllegalStateException ignored) {} //первое событие уже при остановке: сбросит Acceptor.shutdown
+        }
+    }
+
+    private Log() {}
+
+    static boolean enabled(int ev, int connId) {
+        int l = LVL[ev];
+        if (l < LEVEL) return false;
+        return l >= WARN || SAMPLE == 1 || connId % SAMPLE == 0;
+    }
+
+    static void event(int ev, int connId) { event(ev, connId, 0, 0, 0, null, null); }
+    static void event(int ev, int connId, Object x) { event(ev, connId, 0, 0, 0, x, null); }
+    static void event(int ev, int connId, Object x, Object y) { event(ev, connId, 0, 0, 0, x, y); }
+    static void event(int ev, int connId, long p) { event(ev, connId, p, 0, 0, null, null); }
+    static void event(int ev, int connId, long p, Object x) { event(ev, connId, p, 0, 0, x, null); }
+
+    static void event(int ev, int connId, long p, long q, long r, Object x, Object y) {
+        if (!enabled(ev, connId)) return;
+
+        long t;
+        do {
+            t = tail.get();
+            if (t - head >= CAP) { dropped.increment(); return; }
+        } while (!tail.compareAndSet(t, t + 1));
+
+        int i = (int) (t & MASK);
+        time[i] = System.currentTimeMillis();
+        event[i] = ev;
+        conn[i] = connId;
+        a[i] = p; b[i] = q; c[i] = r;
+        o1[i] = x; o2[i] = y;
+        //не lazySet: публикация должна стать видна до чтения idle, иначе писатель
+        //может уснуть, не увидев события, а его не разбудят
+        published.set(i, t);
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    static long dropped() { return dropped.sum(); }
+
+    //---- поток log-writer ----
+
+    private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    //через System.out, а не FileDescriptor.out: тот же поток, что у остальных
+    //сообщений, и его перехватывают (surefire, перенаправление System.setOut)
+    private static final Writer out = new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+    private static final StringBuilder sb = new StringBuilder(256);
+    private static long reportedDrops = 0;
+
+    private static void drainLoop() {
+        while (true) {
+            if (drain() > 0) continue;
+            idle = true;
+            //событие, опубликованное до idle = true, могло его не застать
+            if (published.get((int) (head & MASK)) != head) LockSupport.park();
+            idle = false;
+        }
+    }
+
+    static synchronized void flush() {
+        drain();
+    }
+
+    private static synchronized int drain() {
+        long h = head;
+        int n = 0;
+        try {
+            while (published.get((int) (h & MASK)) == h) {
+                int i = (int) (h & MASK);
+                format(i);
+                o1[i] = o2[i] = null;
+                h++;
+                head = h;
+                n++;
+            }
+            long d = dropped.sum();
+            if (d != reportedDrops) {
+                out.write("[log] dropped " + (d - reportedDrops) + " events (ring full)\n");
+                reportedDrops = d;
+            }
+            if (n > 0) out.flush();
+        } catch (IOException ignored) {}
+        return n;
+    }
+
+    private static void format(int i) throws IOException {
+        sb.setLength(0);
+        TS.formatTo(Instant.ofEpochMilli(time[i]), sb);
+        sb.append(" [C#").append(conn[i]).append("] ");
+
+        String fmt = FMT[event[i]];
+        int nums = 0, objs = 0;
+        for (int k = 0; k < fmt.length(); k++) {
+            char ch = fmt.charAt(k);
+            if (ch != '%' || k + 1 == fmt.length()) { sb.append(ch); continue; }
+            char spec = fmt.charAt(++k);
+            if (spec == 'o') {
+                Object v = objs++ == 0 ? o1[i] : o2[i];
+                if (v instanceof Object[] arr) {
+                    sb.append('[');
+                    for (int j = 0; j < arr.length; j++) {
+                        if (j > 0) sb.append(", ");
+                        addr(arr[j]);
+                    }
+                    sb.append(']');
+                } else {
+                    addr(v);
+                }
+            } else if (spec == 't') {
+                Object v = objs++ == 0 ? o1[i] : o2[i];
+                long port = nums == 0 ? a[i] : nums == 1 ? b[i] : c[i];
+                nums++;
+                if (v == null) { sb.append('?'); continue; }
+                addr(v);
+                sb.append(':').append(port);
+            } else {
+                long v = nums == 0 ? a[i] : nums == 1 ? b[i] : c[i];
+                nums++;
+                if (spec == 'x') sb.append("0x").append(String.format("%02X", v));
+                else sb.append(v);
+            }
+        }
+        sb.append('\n');
+        out.append(sb);
+    }
+
+    //адреса без ведущего "/" от toString(), IPv6 в скобках
+    private static void addr(Object v) {
+        if (v instanceof InetSocketAddress sa) {
+            if (sa.isUnresolved()) sb.append(sa.getHostString());
+            else addr(sa.getAddress());
+            sb.append(':').append(sa.getPort());
+        } else if (v instanceof Inet6Address a6) {
+            sb.append('[').append(a6.getHostAddress()).append(']');
+        } else if (v instanceof InetAddress a4) {
+            sb.append(a4.getHostAddress());
+        } else {
+            sb.append(v);
+        }
+    }
+
+    private static int level(String s) {
+        switch (s.toLowerCase(Locale.ROOT)) {
+            case "debug": return DEBUG;
+            case "warn": return WARN;
+            case "off": return OFF;
+            default: return INFO;
+        }
+    }
+}
@@ -1,92 +1,287 @@
 package socks5;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
-final class Loop {
-    private final Selector selector;
-    private final ServerSocketChannel server;
+final class Loop implements Runnable {
+    private final int id;
+    private final Transport transport;
+    private final Consumer<SelectionKey> dispatch = this::dispatch;
     private final Dns dns;
+    private ByteBuffer scratch, udpBuf;
+    private InetAddress bndAddr;
+    private byte[] bndBytes;
+    private final BufPool pool = new BufPool();
+    private final Penalty penalty = new Penalty();
+    private final Metrics metrics = new Metrics();
+    private final Upstream.Pool[] upstreams = Upstream.pools(this);
 
-    Loop(int port) throws IOException {
-        selector = Selector.open();
-
-        server = ServerSocketChannel.open();
-        server.configureBlocking(false);
-        server.bind(new InetSocketAddress(port));
-        server.register(selector, SelectionKey.OP_ACCEPT);
-
-        dns = new Dns(selector);
-        System.out.println("DNS resolver: " + dns.resolverAddr());
-        System.out.println("SOCKS5 proxy listening on port " + port);
-    }
-
-    void run() throws IOException {
-        while (true) {
-            selector.select();
-
-            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next();
-                it.remove();
-                if (!key.isValid()) continue;
-
-                try {
-                    if (key.channel() == server) {
-                        if ((key.readyOps() & SelectionKey.OP_ACCEPT) != 0) acceptAll();
-                        continue;
-                    }
-
-                    Object att = key.attachment();
-                    if (att instanceof Dns) {
-                        dns.onKey(key);
-                        continue;
-                    }
-                    if (!(att instanceof Conn conn)) continue;
-
-                    int ops = key.readyOps();
-                    if ((ops & SelectionKey.OP_CONNECT) != 0) {
-                        conn.onConnect();
-                        if (!key.isValid()) continue;
-                    }
-                    if ((ops & SelectionKey.OP_READ) != 0) {
-                        conn.onRead(key);
-                        if (!key.isValid()) continue;
-                    }
-                    if ((ops & SelectionKey.OP_WRITE) != 0) {
-                        conn.onWrite(key);
-                    }
-                } catch (IOException e) {
-                    Object att = key.attachment();
-                    if (att instanceof Conn c) c.close();
-                    else {
-                        try { key.channel().close(); } catch (Exception ignored) {}
-                    }
-                }
+    private long now = clock();
+    private final TimerWheel wheel = new TimerWheel(100, 512, now);
+
+    private final ConcurrentLinkedQueue<SocketChannel> incoming = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<SocketChannel> incomingHttp = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    //останов: новых соединений уже нет, ждем закрытия существующих до drainUntil
+    private long drainUntil = 0;
+    private volatile boolean exited = false;
+    private final TimerWheel.Timer drainTimer = new TimerWheel.Timer() {
+        @Override void expire() {} //только разбудить select к сроку
+    };
+
+    Loop(int id) throws IOException {
+        this(id, Transport.open());
+    }
+
+    Loop(int id, Transport transport) throws IOException {
+        this.id = id;
+        this.transport = transport;
+        dns = new Dns(this);
+    }
+
+    String resolverAddr() { return dns.resolverAddr(); }
+
+    Transport transport() { return transport; }
+    Dns dns() { return dns; }
+
+    //все каналы цикла регистрируются здесь, а не в Selector напрямую
+    SelectionKey register(SelectableChannel ch, int ops, Object att) throws IOException {
+        return transport.register(ch, ops, att);
+    }
+
+    //общий буфер для UdpAssoc
+    ByteBuffer udpBuf() {
+        if (udpBuf == null) udpBuf = ByteBuffer.allocateDirect(UdpAssoc.BUF_CAP);
+        return udpBuf;
+    }
+
+    BufPool pool() { return pool; }
+    Penalty penalty() { return penalty; }
+    Metrics metrics() { return metrics; }
+    Upstream.Pool[] upstreams() { return upstreams; }
+    Upstream.Pool upstream(Upstream u) { return upstreams[u.index]; }
+
+    //время текущей итерации цикла, мс
+    long now() { return now; }
+
+    void schedule(TimerWheel.Timer t, long delayMs) { wheel.schedule(t, now, delayMs); }
+    void cancel(TimerWheel.Timer t) { wheel.cancel(t); }
+
+    private static long clock() { return System.nanoTime() / 1_000_000; }
+
+    //общий буфер для Relay.Direct, используется только потоком цикла
+    ByteBuffer scratch() {
+        if (scratch == null) scratch = ByteBuffer.allocateDirect(Relay.BUF_CAP);
+        return scratch;
+    }
+
+    //байты BND.ADDR для ответов SOCKS: локальный адрес исходящих соединений
+    //почти всегда один и тот же, массив не копируется на каждый ответ
+    byte[] addrBytes(InetAddress a) {
+        if (!a.equals(bndAddr)) {
+            bndAddr = a;
+            bndBytes = a.getAddress();
+        }
+        return bndBytes;
+    }
+
+    //вызывается из потока Acceptor
+    void handoff(SocketChannel c) {
+        incoming.add(c);
+        transport.wakeup();
+        if (exited) closeIncoming();
+    }
+
+    //клиент порта режима HTTP
+    void handoffHttp(SocketChannel c) {
+        incomingHttp.add(c);
+        transport.wakeup();
+        if (exited) closeIncoming();
+    }
+
+    //цикл вышел: переданные, но не зарегистрированные сокеты закрываем сами,
+    //иначе они и их слоты Admission остались бы в очередях навсегда
+    private void closeIncoming() {
+        for (ConcurrentLinkedQueue<SocketChannel> q : List.of(incoming, incomingHttp)) {
+            SocketChannel c;
+            while ((c = q.poll()) != null) {
+                InetAddress ip = null;
+                try { ip = ((InetSocketAddress) c.getRemoteAddress()).getAddress(); } catch (Exception ignored) {}
+                try { c.close(); } catch (Exception ignored) {}
+                Admission.release(ip, true);
             }
         }
     }
 
-    private void acceptAll() throws IOException {
-        while (true) {
-            SocketChannel c = server.accept();
-            if (c == null) return;
+    //выполнить r в потоке цикла (результаты фоновых проверок)
+    void post(Runnable r) {
+        tasks.add(r);
+        transport.wakeup();
+    }
+
+    //вызывается из потока останова; поток цикла завершится сам
+    void drain(long timeoutMs) {
+        post(() -> {
+            drainUntil = now + timeoutMs;
+            schedule(drainTimer, timeoutMs);
+        });
+    }
+
+    //открытых клиентских соединений
+    int open() {
+        int n = 0;
+        for (int c : metrics.states) n += c;
+        return n + metrics.httpOpen;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (Upstream.Pool p : upstreams) p.fill();
+            loop();
+            closeAll();
+        } catch (IOException e) {
+            System.err.printf("[loop-%d] fatal: %s%n", id, e);
+        } finally {
+            exited = true;
+            closeIncoming();
+            transport.close();
+        }
+    }
 
-            c.configureBlocking(false);
-            c.socket().setTcpNoDelay(true);
+    private void loop() throws IOException {
+        while (drainUntil == 0 || (open() > 0 && now < drainUntil)) {
+            transport.select(wheel.size() > 0 ? wheel.tickMs() : 0);
+            long t0 = System.nanoTime();
+            now = clock();
+            registerIncoming();
+            runTasks();
+            transport.dispatch(dispatch);
 
+            wheel.advance(now);
+            metrics.iteration.record(Metrics.micros(t0));
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        if (!key.isValid()) return;
+        try {
+            Object att = key.attachment();
+            if (att instanceof Dns d) {
+                d.onKey(key);
+                return;
+            }
+            if (att instanceof Dialer.Attempt a) {
+                a.onConnectable();
+                return;
+            }
+            if (att instanceof Tunnel t) {
+                t.onKey(key);
+                return;
+            }
+            if (att instanceof UdpAssoc u) {
+                u.onReadable();
+                return;
+            }
+            if (att instanceof Bind b) {
+                b.onAcceptable();
+                return;
+            }
+            if (att instanceof HttpConn h) {
+                h.onKey(key);
+                return;
+            }
+            if (att instanceof Fetch f) {
+                f.onKey(key);
+                return;
+            }
+            if (!(att instanceof Conn conn)) return;
+
+            int ops = key.readyOps();
+            if ((ops & SelectionKey.OP_READ) != 0) {
+                conn.onRead(key);
+                if (!key.isValid()) return;
+            }
+            if ((ops & SelectionKey.OP_WRITE) != 0) {
+                conn.onWrite(key);
+            }
+        } catch (IOException e) {
+            Object att = key.attachment();
+            if (att instanceof Conn c) c.close();
+            else if (att instanceof UdpAssoc u) u.owner().close();
+            else if (att instanceof Bind b) b.owner().close();
+            else if (att instanceof HttpConn h) h.close();
+            else if (att instanceof Fetch f) f.abort(e);
+            else {
+                key.cancel();
+                try { key.channel().close(); } catch (Exception ignored) {}
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable r;
+        while ((r = tasks.poll()) != null) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                System.err.printf("[loop-%d] task failed: %s%n", id, e);
+            }
+        }
+    }
+
+    //срок вышел - рвем оставшиеся туннели
+    private void closeAll() {
+        int n = open();
+        if (n > 0) System.out.printf("[loop-%d] drain deadline passed, closing %d connections%n", id, n);
+        for (SelectionKey key : transport.keys().toArray(new SelectionKey[0])) {
+            Object att = key.attachment();
+            if (att instanceof Conn c) c.close();
+            else if (att instanceof UdpAssoc u) u.owner().close();
+            else if (att instanceof Bind b) b.owner().close();
+            else if (att instanceof HttpConn h) h.close();
+            else if (att instanceof Fetch f) f.abort(null);
+        }
+    }
+
+    private void registerIncoming() {
+        SocketChannel c;
+        while ((c = incoming.poll()) != null) {
+            InetSocketAddress from = null;
+            try { from = (InetSocketAddress) c.getRemoteAddress(); } catch (Exception ignored) {}
+
+            Conn conn = new Conn(this, c);
+            try {
+                conn.register();
+            } catch (IOException e) {
+                conn.close();
+                continue;
+            }
+
+            metrics.accepted++;
+            Log.event(Log.ACCEPT, conn.id(), id, from);
+        }
+        while ((c = incomingHttp.poll()) != null) {
             InetSocketAddress from = null;
             try { from = (InetSocketAddress) c.getRemoteAddress(); } catch (Exception ignored) {}
 
-            Conn conn = new Conn(selector, dns, c);
-            conn.register();
+            HttpConn conn = new HttpConn(this, c);
+            try {
+                conn.register();
+            } catch (IOException e) {
+                conn.close();
+                continue;
+            }
 
-            System.out.printf("[%s] ACCEPT %s%n", conn.tag(), from);
+            metrics.accepted++;
+            Log.event(Log.ACCEPT, conn.id(), id, from);
         }
     }
 }
-
-
-//добавить тайм ауты и выход из цикла
@@ -2,11 +2,16 @@ package socks5;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.err.println("Usage: java -jar socks5-proxy-1.0.jar <port>");
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java -jar socks5-proxy-1.0.jar <port> [workers]");
             System.exit(2);
         }
         int port = Integer.parseInt(args[0]);
-        new Loop(port).run();
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        if (workers < 1) {
+            System.err.println("workers must be >= 1");
+            System.exit(2);
+        }
+        new Acceptor(port, workers).run();
     }
 }
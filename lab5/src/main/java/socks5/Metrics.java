@@ -0,0 +1,211 @@
+package socks5;
+
+import java.util.Locale;
+
+//счетчики одного цикла. пишет только поток цикла, сборщик читает поля без
+//синхронизации - значения могут отстать на итерацию, зато relay не платит
+//ни за атомики, ни за общие кеш-линии
+final class Metrics {
+    final int[] states = new int[Conn.St.values().length];
+    long accepted = 0;
+    long tcpUp = 0, tcpDown = 0, udpUp = 0, udpDown = 0;
+    long dnsFail = 0, connectFail = 0;
+    long authOk = 0, authFail = 0, authCached = 0, authBusy = 0;
+    long throttled = 0;
+    long denied = 0;
+    int httpOpen = 0;
+    long httpHits = 0, httpAttached = 0, httpMisses = 0, httpBytes = 0, fetchBytes = 0, fetchFail = 0;
+
+    final Histo handshake = new Histo(); //accept -> разобран запрос
+    final Histo dns = new Histo();       //запрос -> адреса
+    final Histo connect = new Histo();   //начало соединения -> CONNECT OK
+    final Histo iteration = new Histo(); //обработка одной итерации select
+
+    void move(Conn.St from, Conn.St to) {
+        if (from != null) states[from.ordinal()]--;
+        if (to != null) states[to.ordinal()]++;
+    }
+
+    static long micros(long sinceNanos) {
+        return (System.nanoTime() - sinceNanos) / 1000;
+    }
+
+    //границы корзин в экспорте: 16 мкс .. ~33 с по степеням двойки
+    private static final int LO = 4, HI = 25;
+
+    //Prometheus text format 0.0.4
+    static String render(Loop[] loops) {
+        StringBuilder sb = new StringBuilder(8192);
+        Conn.St[] st = Conn.St.values();
+
+        long[] states = new long[st.length];
+        long accepted = 0, tcpUp = 0, tcpDown = 0, udpUp = 0, udpDown = 0, dnsFail = 0, connectFail = 0;
+        long authOk = 0, authFail = 0, authCached = 0, authBusy = 0, throttled = 0, denied = 0;
+        long httpOpen = 0, httpHits = 0, httpAttached = 0, httpMisses = 0, httpBytes = 0, fetchBytes = 0, fetchFail = 0;
+        long hits = 0, misses = 0, entries = 0, poolFree = 0, poolMisses = 0;
+        Histo handshake = new Histo(), dns = new Histo(), connect = new Histo(), iteration = new Histo();
+        for (Loop l : loops) {
+            Metrics m = l.metrics();
+            for (int i = 0; i < st.length; i++) states[i] += m.states[i];
+            accepted += m.accepted;
+            tcpUp += m.tcpUp;
+            tcpDown += m.tcpDown;
+            udpUp += m.udpUp;
+            udpDown += m.udpDown;
+            dnsFail += m.dnsFail;
+            connectFail += m.connectFail;
+            authOk += m.authOk;
+            authFail += m.authFail;
+            authCached += m.authCached;
+            authBusy += m.authBusy;
+            throttled += m.throttled;
+            denied += m.denied;
+            httpOpen += m.httpOpen;
+            httpHits += m.httpHits;
+            httpAttached += m.httpAttached;
+            httpMisses += m.httpMisses;
+            httpBytes += m.httpBytes;
+            fetchBytes += m.fetchBytes;
+            fetchFail += m.fetchFail;
+            m.handshake.addTo(handshake);
+            m.dns.addTo(dns);
+            m.connect.addTo(connect);
+            m.iteration.addTo(iteration);
+
+            for (DnsCache c : new DnsCache[]{l.dns().cache4(), l.dns().cache6()}) {
+                hits += c.hits();
+                misses += c.misses();
+                entries += c.size();
+            }
+            poolFree += l.pool().size();
+            poolMisses += l.pool().misses();
+        }
+        //движок на виртуальных потоках
+        accepted += VConn.ACCEPTED.sum();
+        tcpUp += VConn.UP.sum();
+        tcpDown += VConn.DOWN.sum();
+        throttled += VConn.THROTTLED.sum();
+
+        head(sb, "socks5_connections", "gauge", "Open client connections by state");
+        for (int i = 0; i < st.length; i++) {
+            sb.append("socks5_connections{state=\"").append(st[i].name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(states[i]).append('\n');
+        }
+        if (Acceptor.VIRTUAL) sb.append("socks5_connections{state=\"vthread\"} ").append(VConn.open()).append('\n');
+        counter(sb, "socks5_accepted_total", "Accepted client connections", accepted);
+        head(sb, "socks5_handshakes_pending", "gauge", "Connections that have not sent a SOCKS request yet");
+        sb.append("socks5_handshakes_pending ").append(Admission.handshakes()).append('\n');
+        counter(sb, "socks5_admission_rejected_total", "Connections reset over the per-IP limit", Admission.rejected());
+        counter(sb, "socks5_accept_pauses_total", "Times OP_ACCEPT was withdrawn on a full connection or handshake limit", Admission.pauses());
+
+        head(sb, "socks5_relay_bytes_total", "counter", "Relayed payload bytes");
+        sb.append("socks5_relay_bytes_total{proto=\"tcp\",dir=\"up\"} ").append(tcpUp).append('\n');
+        sb.append("socks5_relay_bytes_total{proto=\"tcp\",dir=\"down\"} ").append(tcpDown).append('\n');
+        sb.append("socks5_relay_bytes_total{proto=\"udp\",dir=\"up\"} ").append(udpUp).append('\n');
+        sb.append("socks5_relay_bytes_total{proto=\"udp\",dir=\"down\"} ").append(udpDown).append('\n');
+
+        histo(sb, "socks5_handshake_seconds", "Accept to parsed SOCKS request", handshake);
+        histo(sb, "socks5_dns_seconds", "Domain resolution for CONNECT", dns);
+        histo(sb, "socks5_connect_seconds", "Outgoing TCP connect including address racing", connect);
+        histo(sb, "socks5_loop_iteration_seconds", "Processing time of one selector iteration", iteration);
+        counter(sb, "socks5_dns_failures_total", "Failed or timed out resolutions", dnsFail);
+        counter(sb, "socks5_connect_failures_total", "Failed or timed out outgoing connects", connectFail);
+
+        head(sb, "socks5_auth_total", "counter", "Username/password checks by result");
+        sb.append("socks5_auth_total{result=\"ok\"} ").append(authOk).append('\n');
+        sb.append("socks5_auth_total{result=\"fail\"} ").append(authFail).append('\n');
+        counter(sb, "socks5_auth_cache_hits_total", "Successful checks answered from the auth cache", authCached);
+        counter(sb, "socks5_auth_busy_total", "Checks refused because the auth queue was full", authBusy);
+        head(sb, "socks5_users", "gauge", "Users in the credential store");
+        sb.append("socks5_users ").append(Users.size()).append('\n');
+
+        upstreams(sb, loops);
+        counter(sb, "socks5_rules_denied_total", "CONNECT requests refused by access rules", denied);
+        head(sb, "socks5_rules", "gauge", "Rules in the active ruleset");
+        sb.append("socks5_rules ").append(Rules.size()).append('\n');
+
+        if (HttpCache.ENABLED) {
+            head(sb, "socks5_http_connections", "gauge", "Open HTTP mode client connections");
+            sb.append("socks5_http_connections ").append(httpOpen).append('\n');
+            head(sb, "socks5_http_requests_total", "counter", "HTTP GETs by cache outcome");
+            sb.append("socks5_http_requests_total{cache=\"hit\"} ").append(httpHits).append('\n');
+            sb.append("socks5_http_requests_total{cache=\"attached\"} ").append(httpAttached).append('\n');
+            sb.append("socks5_http_requests_total{cache=\"miss\"} ").append(httpMisses).append('\n');
+            counter(sb, "socks5_http_sent_bytes_total", "Bytes sent to HTTP clients from the cache", httpBytes);
+            counter(sb, "socks5_http_fetched_bytes_total", "Bytes fetched from origin servers into the cache", fetchBytes);
+            counter(sb, "socks5_http_fetch_failures_total", "Origin fetches that failed or were cut short", fetchFail);
+            head(sb, "socks5_http_cache_entries", "gauge", "Indexed HTTP cache entries");
+            sb.append("socks5_http_cache_entries ").append(HttpCache.entries()).append('\n');
+            head(sb, "socks5_http_cache_bytes", "gauge", "Cache blocks in use, including entries still being read");
+            sb.append("socks5_http_cache_bytes ").append(HttpCache.usedBytes()).append('\n');
+        }
+
+        counter(sb, "socks5_shaper_suspends_total", "Times a tunnel stopped reading on an empty token bucket", throttled);
+
+        counter(sb, "socks5_dns_cache_hits_total", "DNS cache lookups answered from cache", hits);
+        counter(sb, "socks5_dns_cache_misses_total", "DNS cache lookups that went to the network", misses);
+        head(sb, "socks5_dns_cache_entries", "gauge", "Cached DNS answers");
+        sb.append("socks5_dns_cache_entries ").append(entries).append('\n');
+
+        head(sb, "socks5_bufpool_free", "gauge", "Free relay buffers in per-loop pools");
+        sb.append("socks5_bufpool_free ").append(poolFree).append('\n');
+        counter(sb, "socks5_bufpool_misses_total", "Relay buffers allocated past the pool", poolMisses);
+        counter(sb, "socks5_log_dropped_total", "Log events dropped on a full ring", Log.dropped());
+        if (FlowLog.ENABLED) counter(sb, "socks5_flow_records_total", "Connection records written to the flow log", FlowLog.records());
+        if (FlowLog.ENABLED) counter(sb, "socks5_flow_dropped_total", "Connection records dropped on a full flow log ring", FlowLog.dropped());
+        return sb.toString();
+    }
+
+    //пулы соединений к upstream, по имени
+    private static void upstreams(StringBuilder sb, Loop[] loops) {
+        Upstream[] ups = Upstream.all();
+        if (ups.length == 0) return;
+        long[] idle = new long[ups.length], hits = new long[ups.length];
+        long[] misses = new long[ups.length], failures = new long[ups.length];
+        for (Loop l : loops) {
+            for (Upstream.Pool p : l.upstreams()) {
+                int i = p.up.index;
+                idle[i] += p.idle();
+                hits[i] += p.hits;
+                misses[i] += p.misses;
+                failures[i] += p.failures;
+            }
+        }
+        labeled(sb, "socks5_upstream_pool_idle", "gauge", "Pre-connected upstream sockets ready for a request", ups, idle);
+        labeled(sb, "socks5_upstream_pool_hits_total", "counter", "Upstream CONNECTs served from the pool", ups, hits);
+        labeled(sb, "socks5_upstream_pool_misses_total", "counter", "Upstream CONNECTs that had to dial a new socket", ups, misses);
+        labeled(sb, "socks5_upstream_failures_total", "counter", "Failed upstream connects, handshakes and timeouts", ups, failures);
+    }
+
+    private static void labeled(StringBuilder sb, String name, String type, String help, Upstream[] ups, long[] v) {
+        head(sb, name, type, help);
+        for (int i = 0; i < ups.length; i++) {
+            sb.append(name).append("{upstream=\"").append(ups[i].name).append("\"} ").append(v[i]).append('\n');
+        }
+    }
+
+    private static void head(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long v) {
+        head(sb, name, "counter", help);
+        sb.append(name).append(' ').append(v).append('\n');
+    }
+
+    private static void histo(StringBuilder sb, String name, String help, Histo h) {
+        head(sb, name, "histogram", help);
+        for (int k = LO; k <= HI; k++) {
+            sb.append(name).append("_bucket{le=\"").append(seconds(1L << k)).append("\"} ")
+                    .append(h.countAtMost(1L << k)).append('\n');
+        }
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(h.count()).append('\n');
+        sb.append(name).append("_sum ").append(seconds(h.sum())).append('\n');
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    private static String seconds(long us) {
+        return String.format(Locale.ROOT, "%.6f", us / 1e6);
+    }
+}
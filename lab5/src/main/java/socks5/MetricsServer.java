@@ -0,0 +1,41 @@
+package socks5;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+//GET /metrics в формате Prometheus. -Dsocks5.metrics.port=N включает,
+//-Dsocks5.metrics.addr - адрес (по умолчанию только localhost)
+final class MetricsServer {
+    static final int PORT = Integer.getInteger("socks5.metrics.port", 0);
+    static final String ADDR = System.getProperty("socks5.metrics.addr", "127.0.0.1");
+
+    private MetricsServer() {}
+
+    static void start(Loop[] loops) throws IOException {
+        if (PORT <= 0) return;
+        HttpServer http = HttpServer.create(new InetSocketAddress(ADDR, PORT), 16);
+        http.createContext("/metrics", ex -> serve(ex, loops));
+        http.start(); //свой поток-диспетчер, циклы не затрагиваются
+        System.out.println("Metrics on http://" + ADDR + ":" + PORT + "/metrics");
+    }
+
+    private static void serve(HttpExchange ex, Loop[] loops) throws IOException {
+        try (ex) {
+            if (!"GET".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.render(loops).getBytes(StandardCharsets.UTF_8);
+            ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package socks5;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//адреса, до которых недавно не удалось подключиться; свой у каждого цикла.
+//такие адреса Dialer пробует последними
+final class Penalty {
+    static final long TTL = Long.getLong("socks5.connect.penalty", 30_000);
+    private static final int MAX_SIZE = 4096;
+
+    private final LinkedHashMap<InetSocketAddress, Long> until = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, Long> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    void add(InetSocketAddress a, long now) {
+        if (TTL > 0) until.put(a, now + TTL);
+    }
+
+    void clear(InetSocketAddress a) {
+        until.remove(a);
+    }
+
+    boolean has(InetSocketAddress a, long now) {
+        if (until.isEmpty()) return false;
+        Long t = until.get(a);
+        if (t == null) return false;
+        if (t <= now) {
+            until.remove(a);
+            return false;
+        }
+        return true;
+    }
+
+    int size() { return until.size(); }
+}
@@ -0,0 +1,231 @@
+package socks5;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+//одно направление туннеля: src -> dst
+abstract class Relay {
+    //общий буфер цикла для Direct; не больше BufPool.MAX - недописанный остаток
+    //чтения целиком уходит в одно кольцо пула
+    static final int BUF_CAP = Math.min(32 * 1024, BufPool.MAX);
+    //начальный размер кольца Copy и сколько коротких (до 1/8 кольца) чтений
+    //подряд нужно, чтобы уменьшить его вдвое
+    static final int START_CAP = Integer.getInteger("socks5.relay.buf", 16 * 1024);
+    static final int SHRINK_AFTER = Integer.getInteger("socks5.relay.shrink", 16);
+
+    //-Dsocks5.relay=copy|direct|splice. direct - запись сразу после чтения через общий
+    //буфер цикла, данные все же проходят через память JVM; без копий только splice
+    //(SpliceRelay, профиль uring и флаги JVM из pom.xml)
+    static final String ENGINE = System.getProperty("socks5.relay", "copy");
+    private static final MethodHandle SPLICE = "splice".equals(ENGINE) ? splice() : null;
+
+    final SocketChannel src, dst;
+    boolean eof = false;
+    private boolean outShut = false;
+    long bytes = 0;
+    //сколько разрешает Shaper, ставит Conn вместе с OP_READ: Copy и Direct получают
+    //то же в read(max), а relay на завершениях по нему заранее мерит recv
+    int quota = Integer.MAX_VALUE;
+
+    Relay(SocketChannel src, SocketChannel dst) {
+        this.src = src;
+        this.dst = dst;
+    }
+
+    //ключи src и dst уже зарегистрированы в цикле
+    static Relay create(Loop loop, SelectionKey src, SelectionKey dst) {
+        Relay r = loop.transport().relay(loop, src, dst);
+        if (r != null) return r;
+        SocketChannel s = (SocketChannel) src.channel(), d = (SocketChannel) dst.channel();
+        if ("direct".equals(ENGINE)) return new Direct(s, d, loop.scratch(), loop.pool());
+        if (SPLICE != null) {
+            try {
+                return (Relay) SPLICE.invoke(s, d, loop.pool());
+            } catch (Throwable ignored) {} //fd канала не достать - этому туннелю copy
+        }
+        return new Copy(s, d, loop.pool());
+    }
+
+    //что на самом деле работает: splice без профиля uring становится copy
+    static String engine() {
+        return "splice".equals(ENGINE) && SPLICE == null ? "copy" : ENGINE;
+    }
+
+    private static MethodHandle splice() {
+        String why;
+        try {
+            Class<?> c = Class.forName("socks5.SpliceRelay");
+            c.getDeclaredMethod("probe").invoke(null);
+            return MethodHandles.lookup().findConstructor(c,
+                    MethodType.methodType(void.class, SocketChannel.class, SocketChannel.class, BufPool.class));
+        } catch (ClassNotFoundException e) {
+            why = "not built, see the uring profile in pom.xml";
+        } catch (InvocationTargetException e) {
+            why = String.valueOf(e.getCause().getMessage());
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            why = e.toString();
+        }
+        System.out.println("splice relay unavailable (" + why + "), using copy");
+        return null;
+    }
+
+    abstract boolean canRead();
+    abstract boolean hasPending();
+
+    //-1 при EOF; max - не больше стольких байт (ограничение скорости)
+    abstract int read(int max) throws IOException;
+    //head - ответ SOCKS, еще не отправленный src-у обратного направления:
+    //уходит одним writev перед данными
+    abstract void write(ByteBuffer head) throws IOException;
+
+    //данные, пришедшие от src еще до начала туннеля (вместе с запросом SOCKS)
+    abstract void preload(ByteBuffer data);
+
+    //вернуть буфер в пул при закрытии соединения
+    abstract void release();
+
+    final int count(int n) {
+        if (n == -1) eof = true;
+        else bytes += n;
+        return n;
+    }
+
+    //shutdownOutput у получателя только когда все отправлено
+    final void shutdownIfDrained() {
+        if (!eof || outShut || hasPending()) return;
+        outShut = true;
+        try { dst.shutdownOutput(); } catch (Exception ignored) {}
+    }
+
+    //кольцо берется из пула на время, пока в нем что-то есть. размер подстраивается
+    //под поток: чтение, заполнившее все кольцо, удваивает его сразу (данные
+    //переносятся один раз), SHRINK_AFTER коротких чтений подряд уменьшают размер
+    //для следующего кольца
+    static final class Copy extends Relay {
+        private final BufPool pool;
+        private Ring ring = null;
+        private int cap = BufPool.classCap(START_CAP);
+        private int small = 0;
+
+        Copy(SocketChannel src, SocketChannel dst, BufPool pool) {
+            super(src, dst);
+            this.pool = pool;
+        }
+
+        @Override boolean canRead() { return !eof && (ring == null || ring.free() > 0); }
+        @Override boolean hasPending() { return ring != null && !ring.isEmpty(); }
+
+        @Override
+        int read(int max) throws IOException {
+            if (ring == null) ring = pool.get(cap);
+            int room = ring.free();
+            int n = count(ring.readFrom(src, max));
+            if (n > 0) {
+                adapt(n, room, max);
+                //сразу пишем получателю, не дожидаясь OP_WRITE: обычно сокет
+                //свободен, и шаг обходится без лишнего пробуждения select
+                //и пары epoll_ctl на включение/выключение OP_WRITE
+                ring.writeTo(dst, null);
+            }
+            if (ring.isEmpty()) release();
+            return n;
+        }
+
+        private void adapt(int n, int room, int max) {
+            if (n == room && max > room && cap < BufPool.MAX) {
+                small = 0;
+                cap <<= 1;
+                Ring bigger = pool.get(cap);
+                ring.moveTo(bigger);
+                pool.put(ring);
+                ring = bigger;
+            } else if (n <= cap >> 3) {
+                if (++small >= SHRINK_AFTER && cap > BufPool.MIN) {
+                    small = 0;
+                    cap >>= 1;
+                }
+            } else {
+                small = 0;
+            }
+        }
+
+        @Override
+        void preload(ByteBuffer data) {
+            if (ring == null) ring = pool.get(Math.max(cap, data.remaining()));
+            ring.put(data);
+        }
+
+        @Override
+        void write(ByteBuffer head) throws IOException {
+            if (ring == null) return;
+            ring.writeTo(dst, head);
+            if (ring.isEmpty()) release();
+        }
+
+        @Override
+        void release() {
+            if (ring == null) return;
+            pool.put(ring);
+            ring = null;
+        }
+    }
+
+    //читаем в общий буфер цикла и сразу пишем получателю;
+    //свое кольцо появляется только под недописанный хвост
+    static final class Direct extends Relay {
+        private final ByteBuffer scratch;
+        private final BufPool pool;
+        private Ring pending = null;
+
+        Direct(SocketChannel src, SocketChannel dst, ByteBuffer scratch, BufPool pool) {
+            super(src, dst);
+            this.scratch = scratch;
+            this.pool = pool;
+        }
+
+        @Override boolean canRead() { return !eof && pending == null; }
+        @Override boolean hasPending() { return pending != null; }
+
+        @Override
+        int read(int max) throws IOException {
+            scratch.clear();
+            if (max < scratch.capacity()) scratch.limit(max);
+            int n = count(src.read(scratch));
+            if (n <= 0) return n;
+
+            scratch.flip();
+            dst.write(scratch);
+            if (scratch.hasRemaining()) {
+                pending = pool.get(scratch.remaining());
+                pending.put(scratch);
+            }
+            return n;
+        }
+
+        @Override
+        void preload(ByteBuffer data) {
+            pending = pool.get(data.remaining());
+            pending.put(data);
+        }
+
+        @Override
+        void write(ByteBuffer head) throws IOException {
+            if (pending == null) return;
+            pending.writeTo(dst, head);
+            if (pending.isEmpty()) release();
+        }
+
+        @Override
+        void release() {
+            if (pending == null) return;
+            pool.put(pending);
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package socks5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+//кольцевой буфер Relay: данные лежат между rd и wr (счетчики байт, не индексы),
+//свободное место и данные - не больше двух отрезков, поэтому чтение идет
+//через readv, запись - через writev, и недописанный хвост никуда не сдвигается.
+//емкость - степень двойки
+final class Ring {
+    final ByteBuffer buf;
+    private final int mask;
+    private long rd = 0, wr = 0;
+    //виды на buf для readv/writev, iov[0] - место под ответ SOCKS перед данными
+    private final ByteBuffer[] iov = new ByteBuffer[3];
+
+    Ring(int cap) {
+        buf = ByteBuffer.allocateDirect(cap);
+        mask = cap - 1;
+        iov[1] = buf.duplicate();
+        iov[2] = buf.duplicate();
+    }
+
+    int capacity() { return mask + 1; }
+    int size() { return (int) (wr - rd); }
+    int free() { return capacity() - size(); }
+    boolean isEmpty() { return rd == wr; }
+
+    void clear() {
+        rd = wr = 0;
+        iov[0] = null;
+    }
+
+    //не больше max байт из src в свободное место
+    int readFrom(ScatteringByteChannel src, int max) throws IOException {
+        int want = Math.min(free(), max);
+        int k = segments(wr, want);
+        //один отрезок - обычный read: readv в JDK заметно дороже
+        long n = k == 1 ? src.read(iov[1]) : src.read(iov, 1, k);
+        if (n > 0) wr += n;
+        return (int) n;
+    }
+
+    //данные (и head, если не пуст - одним writev перед ними) в dst
+    long writeTo(GatheringByteChannel dst, ByteBuffer head) throws IOException {
+        int k = segments(rd, size());
+        long n;
+        if (head != null && head.hasRemaining()) {
+            iov[0] = head;
+            int h = head.remaining();
+            n = dst.write(iov, 0, k + 1);
+            iov[0] = null;
+            if (n > 0) rd += Math.max(0, n - h);
+        } else {
+            n = k == 1 ? dst.write(iov[1]) : dst.write(iov, 1, k);
+            if (n > 0) rd += n;
+        }
+        //опустевшее кольцо снова с начала - следующие данные одним отрезком
+        if (rd == wr) rd = wr = 0;
+        return n;
+    }
+
+    //данные, пришедшие до начала туннеля; места должно хватать
+    void put(ByteBuffer src) {
+        int want = src.remaining();
+        int k = segments(wr, want);
+        for (int i = 1; i <= k; i++) {
+            ByteBuffer seg = iov[i];
+            int lim = src.limit();
+            src.limit(src.position() + seg.remaining());
+            seg.put(src);
+            src.limit(lim);
+        }
+        wr += want;
+    }
+
+    //для relay на завершениях (io_uring): send из buf по одному непрерывному
+    //отрезку, начало - смещение в buf
+    int readAt() { return (int) (rd & mask); }
+    int readLength() { return Math.min(size(), capacity() - readAt()); }
+    void consumed(int n) {
+        rd += n;
+        if (rd == wr) rd = wr = 0;
+    }
+
+    //перенос в кольцо побольше при росте
+    void moveTo(Ring other) {
+        int k = segments(rd, size());
+        for (int i = 1; i <= k; i++) other.put(iov[i]);
+        rd = wr;
+    }
+
+    //iov[1..k] - отрезок [from, from + len) кольца; возвращает k
+    private int segments(long from, int len) {
+        int start = (int) (from & mask);
+        int first = Math.min(len, capacity() - start);
+        iov[1].limit(start + first).position(start);
+        if (first == len) return 1;
+        iov[2].limit(len - first).position(0);
+        return 2;
+    }
+}
@@ -0,0 +1,386 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+//доступ и маршрутизация CONNECT. -Dsocks5.rules=файл, строки:
+//  allow <куда> [port=N|N-M] [src=CIDR]
+//  deny <куда> [port=...] [src=...]
+//  route <upstream|direct> <куда> [port=...] [src=...]
+//<куда>: домен (вместе с поддоменами, "*.x" и ".x" - то же, что "x"), CIDR, IP или *.
+//выигрывает первое подходящее правило файла, без совпадений - -Dsocks5.rules.default (allow).
+//правила компилируются: домены - в дерево меток справа налево, CIDR назначения и
+//источника - в двоичные префиксные деревья, поиск стоит O(длина имени или адреса)
+//при любом числе правил. файл перечитывается при изменении: новая таблица собирается
+//в потоке rules-reload и подменяет старую записью в volatile, циклы не ждут.
+//имя сравнивается до DNS; после разрешения отбрасываются адреса под deny по CIDR
+final class Rules {
+    static final String FILE = System.getProperty("socks5.rules");
+    static final long RELOAD_MS = Long.getLong("socks5.rules.reload", 2000);
+
+    static final int ALLOW = 0, DENY = 1, ROUTE = 2;
+
+    static final class Rule {
+        final int line;
+        final int action;
+        final Upstream via; //ROUTE: null - напрямую
+        final int portLo, portHi;
+        final byte[] src;   //null - любой источник
+        final int srcBits;
+        Rule next;          //следующее по порядку файла в том же узле
+
+        Rule(int line, int action, Upstream via, int portLo, int portHi, byte[] src, int srcBits) {
+            this.line = line;
+            this.action = action;
+            this.via = via;
+            this.portLo = portLo;
+            this.portHi = portHi;
+            this.src = src;
+            this.srcBits = srcBits;
+        }
+
+        boolean accepts(int port, byte[] from) {
+            if (port < portLo || port > portHi) return false;
+            return src == null || from != null && prefix(from, src, srcBits);
+        }
+    }
+
+    private static final Rule DEFAULT = new Rule(0,
+            "deny".equals(System.getProperty("socks5.rules.default", "allow")) ? DENY : ALLOW,
+            null, 0, 65535, null, 0);
+
+    //домены: метки справа налево, в узле - открытая адресация по метке
+    private static final class Node {
+        private String[] keys = new String[2];
+        private Node[] kids = new Node[2];
+        private int size = 0;
+        Rule rules;
+
+        Node child(String s, int from, int to) {
+            if (size == 0) return null;
+            int mask = keys.length - 1;
+            for (int i = hash(s, from, to) & mask; keys[i] != null; i = (i + 1) & mask) {
+                String k = keys[i];
+                if (k.length() == to - from && s.regionMatches(true, from, k, 0, k.length())) return kids[i];
+            }
+            return null;
+        }
+
+        Node add(String label) {
+            Node n = child(label, 0, label.length());
+            if (n != null) return n;
+            if (2 * (size + 1) > keys.length) grow();
+            n = new Node();
+            put(label, n);
+            size++;
+            return n;
+        }
+
+        private void put(String k, Node n) {
+            int mask = keys.length - 1;
+            int i = hash(k, 0, k.length()) & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = k;
+            kids[i] = n;
+        }
+
+        private void grow() {
+            String[] ok = keys;
+            Node[] on = kids;
+            keys = new String[ok.length * 2];
+            kids = new Node[ok.length * 2];
+            for (int i = 0; i < ok.length; i++) if (ok[i] != null) put(ok[i], on[i]);
+        }
+
+        private static int hash(String s, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+                if (c >= 'A' && c <= 'Z') c += 32;
+                h = 31 * h + c;
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+
+    //двоичное префиксное дерево в массивах: kids[2n], kids[2n+1], 0 - нет потомка
+    private static final class Radix {
+        private int[] kids = new int[64];
+        private Rule[] rules = new Rule[32];
+        private int nodes = 1;
+
+        void insert(byte[] net, int bits, Rule r) {
+            int n = 0;
+            for (int i = 0; i < bits; i++) {
+                int b = (net[i >> 3] >> (7 - (i & 7))) & 1;
+                int k = kids[2 * n + b];
+                if (k == 0) {
+                    if (nodes == rules.length) {
+                        kids = Arrays.copyOf(kids, kids.length * 2);
+                        rules = Arrays.copyOf(rules, rules.length * 2);
+                    }
+                    k = nodes++;
+                    kids[2 * n + b] = k;
+                }
+                n = k;
+            }
+            r.next = rules[n];
+            rules[n] = r;
+        }
+
+        Rule match(byte[] a, int port, byte[] from, Rule best) {
+            int n = 0;
+            for (int i = 0; ; i++) {
+                best = better(rules[n], port, from, best);
+                if (i == a.length * 8) return best;
+                n = kids[2 * n + ((a[i >> 3] >> (7 - (i & 7))) & 1)];
+                if (n == 0) return best;
+            }
+        }
+    }
+
+    private final Node domains = new Node();
+    private final Radix dst4 = new Radix(), dst6 = new Radix();
+    private final Radix src4 = new Radix(), src6 = new Radix(); //правила "*" с src
+    private Rule any;                                          //"*" без src
+    private int count = 0;
+
+    private static volatile Rules current = new Rules();
+    private static long mtime = 0;
+
+    private Rules() {}
+
+    static boolean enabled() { return FILE != null; }
+    static int size() { return current.count; }
+
+    //меняется при каждой перезагрузке: по нему сбрасывают запомненные решения
+    static Object table() { return current; }
+
+    //при старте, после Upstream.init: ошибка в файле фатальна
+    static void init() throws IOException {
+        if (FILE == null) return;
+        Path p = Paths.get(FILE);
+        mtime = Files.getLastModifiedTime(p).toMillis();
+        load(Files.readAllLines(p, StandardCharsets.UTF_8));
+        System.out.println("Rules: " + current.count + " from " + FILE + ", default "
+                + (DEFAULT.action == DENY ? "deny" : "allow"));
+
+        Thread w = new Thread(Rules::watch, "rules-reload");
+        w.setDaemon(true);
+        w.start();
+    }
+
+    private static void watch() {
+        Path p = Paths.get(FILE);
+        while (true) {
+            try {
+                Thread.sleep(RELOAD_MS);
+                long m = Files.getLastModifiedTime(p).toMillis();
+                if (m == mtime) continue;
+                mtime = m;
+                long t0 = System.nanoTime();
+                int n = load(Files.readAllLines(p, StandardCharsets.UTF_8));
+                System.out.printf("Rules: reloaded %d from %s in %d ms%n", n, FILE, (System.nanoTime() - t0) / 1_000_000);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                //битый файл - остаемся на старых правилах
+                System.err.println("Rules: reload of " + FILE + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //собрать и подменить целиком; циклы видят либо старую, либо новую таблицу
+    static int load(List<String> lines) throws IOException {
+        Rules r = compile(lines);
+        current = r;
+        return r.count;
+    }
+
+    //target - имя (String), InetAddress или байты адреса (4 или 16)
+    static Rule match(Object target, int port, InetAddress from) {
+        Rules r = current;
+        if (r.count == 0) return DEFAULT;
+        byte[] src = from == null ? null : from.getAddress();
+        Rule best = null;
+        if (target instanceof String name) {
+            best = r.domain(name, port, src);
+        } else {
+            byte[] a = target instanceof byte[] b ? b : ((InetAddress) target).getAddress();
+            best = (a.length == 4 ? r.dst4 : r.dst6).match(a, port, src, null);
+        }
+        if (src != null) best = (src.length == 4 ? r.src4 : r.src6).match(src, port, src, best);
+        best = better(r.any, port, src, best);
+        return best == null ? DEFAULT : best;
+    }
+
+    //адрес, полученный из DNS: запрещающее правило по CIDR или null
+    static Rule denied(InetAddress a, int port, InetAddress from) {
+        Rules r = current;
+        if (r.count == 0) return null;
+        byte[] b = a.getAddress();
+        Rule best = (b.length == 4 ? r.dst4 : r.dst6).match(b, port, from == null ? null : from.getAddress(), null);
+        return best != null && best.action == DENY ? best : null;
+    }
+
+    private Rule domain(String name, int port, byte[] src) {
+        Node n = domains;
+        Rule best = null;
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') end--;
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            n = n.child(name, start, end);
+            if (n == null) break;
+            best = better(n.rules, port, src, best);
+            end = start - 1;
+        }
+        return best;
+    }
+
+    //первое подходящее в цепочке, если оно раньше best по файлу
+    private static Rule better(Rule chain, int port, byte[] src, Rule best) {
+        for (Rule r = chain; r != null; r = r.next) {
+            if (best != null && r.line >= best.line) return best;
+            if (r.accepts(port, src)) return r;
+        }
+        return best;
+    }
+
+    private static boolean prefix(byte[] a, byte[] net, int bits) {
+        if (a.length != net.length) return false;
+        int full = bits / 8, rest = bits % 8;
+        for (int i = 0; i < full; i++) if (a[i] != net[i]) return false;
+        if (rest == 0) return true;
+        int mask = 0xFF << (8 - rest);
+        return (a[full] & mask) == (net[full] & mask);
+    }
+
+    private static Rules compile(List<String> lines) throws IOException {
+        ArrayList<Rule> rules = new ArrayList<>();
+        ArrayList<Object> dsts = new ArrayList<>(); //String, byte[] сети или null для "*"
+        ArrayList<Integer> dstBits = new ArrayList<>();
+        int no = 0;
+        for (String line : lines) {
+            no++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\s+");
+            try {
+                int action, i = 1;
+                Upstream via = null;
+                switch (f[0]) {
+                    case "allow" -> action = ALLOW;
+                    case "deny" -> action = DENY;
+                    case "route" -> {
+                        action = ROUTE;
+                        if (f.length < 3) throw new IOException("expected route <upstream|direct> <destination>");
+                        if (!f[1].equals("direct")) {
+                            via = Upstream.byName(f[1]);
+                            if (via == null) throw new IOException("unknown upstream " + f[1]);
+                        }
+                        i = 2;
+                    }
+                    default -> throw new IOException("expected allow, deny or route");
+                }
+                if (f.length <= i) throw new IOException("no destination");
+                String dst = f[i++];
+
+                int lo = 0, hi = 65535;
+                byte[] src = null;
+                int srcBits = 0;
+                for (; i < f.length; i++) {
+                    if (f[i].startsWith("port=")) {
+                        String v = f[i].substring(5);
+                        int dash = v.indexOf('-');
+                        lo = Integer.parseInt(dash < 0 ? v : v.substring(0, dash));
+                        hi = dash < 0 ? lo : Integer.parseInt(v.substring(dash + 1));
+                        if (lo < 0 || hi > 65535 || lo > hi) throw new IOException("bad port range " + v);
+                    } else if (f[i].startsWith("src=")) {
+                        String v = f[i].substring(4);
+                        int slash = v.indexOf('/');
+                        src = literal(slash < 0 ? v : v.substring(0, slash));
+                        srcBits = bits(v, slash, src);
+                    } else {
+                        throw new IOException("unexpected " + f[i]);
+                    }
+                }
+
+                rules.add(new Rule(no, action, via, lo, hi, src, srcBits));
+                if (dst.equals("*")) {
+                    dsts.add(null);
+                    dstBits.add(0);
+                } else {
+                    int slash = dst.indexOf('/');
+                    String host = slash < 0 ? dst : dst.substring(0, slash);
+                    if (isLiteral(host)) {
+                        byte[] net = literal(host);
+                        dsts.add(net);
+                        dstBits.add(bits(dst, slash, net));
+                    } else {
+                        if (slash >= 0) throw new IOException("bad destination " + dst);
+                        if (host.startsWith("*.")) host = host.substring(2);
+                        else if (host.startsWith(".")) host = host.substring(1);
+                        if (host.endsWith(".")) host = host.substring(0, host.length() - 1);
+                        if (host.isEmpty()) throw new IOException("bad destination " + dst);
+                        dsts.add(host.toLowerCase(Locale.ROOT));
+                        dstBits.add(0);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                throw new IOException("line " + no + ": " + e.getMessage());
+            }
+        }
+
+        //вставка с конца в голову цепочек - цепочки идут в порядке файла
+        Rules r = new Rules();
+        for (int k = rules.size() - 1; k >= 0; k--) {
+            Rule rule = rules.get(k);
+            Object d = dsts.get(k);
+            if (d == null && rule.src == null) {
+                rule.next = r.any;
+                r.any = rule;
+            } else if (d == null) {
+                (rule.src.length == 4 ? r.src4 : r.src6).insert(rule.src, rule.srcBits, rule);
+            } else if (d instanceof byte[] net) {
+                (net.length == 4 ? r.dst4 : r.dst6).insert(net, dstBits.get(k), rule);
+            } else {
+                String host = (String) d;
+                Node n = r.domains;
+                int end = host.length();
+                while (end > 0) {
+                    int start = host.lastIndexOf('.', end - 1) + 1;
+                    n = n.add(host.substring(start, end));
+                    end = start - 1;
+                }
+                rule.next = n.rules;
+                n.rules = rule;
+            }
+        }
+        r.count = rules.size();
+        return r;
+    }
+
+    static boolean isLiteral(String host) {
+        return host.indexOf(':') >= 0 || !host.isEmpty() && host.chars().allMatch(c -> c == '.' || c >= '0' && c <= '9');
+    }
+
+    private static byte[] literal(String host) throws IOException {
+        if (!isLiteral(host)) throw new IOException("not an IP address: " + host);
+        return InetAddress.getByName(host).getAddress(); //литерал, без DNS
+    }
+
+    private static int bits(String spec, int slash, byte[] net) throws IOException {
+        int bits = slash < 0 ? net.length * 8 : Integer.parseInt(spec.substring(slash + 1));
+        if (bits < 0 || bits > net.length * 8) throw new IOException("bad prefix length in " + spec);
+        return bits;
+    }
+}
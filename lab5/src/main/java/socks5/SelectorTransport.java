@@ -0,0 +1,52 @@
+package socks5;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+//транспорт по умолчанию и запасной: Selector (epoll), туннель - Relay.Copy/Direct
+final class SelectorTransport extends Transport {
+    private final Selector selector;
+
+    SelectorTransport() throws IOException {
+        selector = Selector.open();
+    }
+
+    @Override
+    SelectionKey register(SelectableChannel ch, int ops, Object att) throws IOException {
+        return ch.register(selector, ops, att);
+    }
+
+    @Override
+    void select(long timeoutMs) throws IOException {
+        selector.select(timeoutMs);
+    }
+
+    @Override
+    void dispatch(Consumer<SelectionKey> action) {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            action.accept(key);
+        }
+    }
+
+    @Override
+    void wakeup() { selector.wakeup(); }
+
+    @Override
+    Collection<SelectionKey> keys() { return selector.keys(); }
+
+    @Override
+    void close() {
+        try { selector.close(); } catch (IOException ignored) {}
+    }
+
+    @Override
+    String describe() { return "relay=" + Relay.engine(); }
+}
@@ -0,0 +1,121 @@
+package socks5;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//ограничение скорости TCP-туннелей: иерархия ведер global -> user -> IP клиента -> соединение,
+//байты обоих направлений считаются вместе. скорости в байтах/с, 0 - без ограничения:
+//-Dsocks5.rate.global, .user, .ip, .conn; -Dsocks5.rate.burst - запас ведра в мс.
+//пустое ведро снимает OP_READ (Conn.updateOps), возобновление - по таймеру цикла
+final class Shaper {
+    static final long GLOBAL = Long.getLong("socks5.rate.global", 0);
+    static final long PER_USER = Long.getLong("socks5.rate.user", 0);
+    static final long PER_IP = Long.getLong("socks5.rate.ip", 0);
+    static final long PER_CONN = Long.getLong("socks5.rate.conn", 0);
+    static final long BURST_MS = Long.getLong("socks5.rate.burst", 200);
+    static final boolean ENABLED = GLOBAL > 0 || PER_USER > 0 || PER_IP > 0 || PER_CONN > 0;
+
+    private static final long NS = 1_000_000_000L;
+    private static final long MIN_CHUNK = 1460; //не будим соединение ради пары байт
+
+    //GCRA: одно число - "теоретическое время прихода" следующего байта, без блокировок
+    static final class Bucket {
+        final long rate, burstNs;
+        private final AtomicLong tat = new AtomicLong(System.nanoTime());
+        int refs = 0; //для общих ведер, под локом ConcurrentHashMap
+
+        Bucket(long rate) {
+            this.rate = rate;
+            this.burstNs = BURST_MS * 1_000_000;
+        }
+
+        long available(long now) {
+            long slack = Math.min(burstNs, now + burstNs - tat.get());
+            return slack <= 0 ? 0 : slack * rate / NS;
+        }
+
+        void take(long n, long now) {
+            long cost = n * NS / rate;
+            long t;
+            do {
+                t = tat.get();
+            } while (!tat.compareAndSet(t, Math.max(t, now) + cost));
+        }
+
+        //через сколько станет доступно MIN_CHUNK байт
+        long waitNs(long now) {
+            return tat.get() - burstNs + MIN_CHUNK * NS / rate - now;
+        }
+    }
+
+    private static final Bucket global = GLOBAL > 0 ? new Bucket(GLOBAL) : null;
+    private static final ConcurrentHashMap<InetAddress, Bucket> ips = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Bucket> users = new ConcurrentHashMap<>();
+
+    //ведра одного соединения, от общего к частному
+    static final class Chain {
+        private final Bucket[] levels;
+        private final InetAddress ip;
+        private final String user;
+
+        private Chain(Bucket[] levels, InetAddress ip, String user) {
+            this.levels = levels;
+            this.ip = ip;
+            this.user = user;
+        }
+
+        long available(long now) {
+            long a = Long.MAX_VALUE;
+            for (Bucket b : levels) a = Math.min(a, b.available(now));
+            return a;
+        }
+
+        void charge(long n, long now) {
+            for (Bucket b : levels) b.take(n, now);
+        }
+
+        long waitMs(long now) {
+            long w = 0;
+            for (Bucket b : levels) w = Math.max(w, b.waitNs(now));
+            return Math.max(1, (w + 999_999) / 1_000_000);
+        }
+
+        void release() {
+            if (ip != null) ips.computeIfPresent(ip, (k, b) -> --b.refs == 0 ? null : b);
+            if (user != null) users.computeIfPresent(user, (k, b) -> --b.refs == 0 ? null : b);
+        }
+    }
+
+    private Shaper() {}
+
+    //null, если ограничений нет; ip и user могут быть null
+    static Chain attach(InetAddress ip, String user) {
+        if (!ENABLED) return null;
+        Bucket[] lv = new Bucket[4];
+        int n = 0;
+        if (global != null) lv[n++] = global;
+        if (PER_USER > 0 && user != null) lv[n++] = shared(users, user, PER_USER);
+        else user = null;
+        //адрес клиента мог не достаться (getRemoteAddress после RST) - без уровня IP
+        if (PER_IP > 0 && ip != null) lv[n++] = shared(ips, ip, PER_IP);
+        else ip = null;
+        if (PER_CONN > 0) lv[n++] = new Bucket(PER_CONN);
+        if (n == 0) return null;
+        return new Chain(Arrays.copyOf(lv, n), ip, user);
+    }
+
+    private static <K> Bucket shared(ConcurrentHashMap<K, Bucket> map, K key, long rate) {
+        return map.compute(key, (k, b) -> {
+            if (b == null) b = new Bucket(rate);
+            b.refs++;
+            return b;
+        });
+    }
+
+    static String describe() {
+        return "global=" + GLOBAL + " user=" + PER_USER + " ip=" + PER_IP + " conn=" + PER_CONN
+                + " B/s, burst " + BURST_MS + " ms";
+    }
+}
@@ -0,0 +1,94 @@
+package socks5;
+
+//хешированное колесо таймеров, крутится из цикла селектора, потоков не создает.
+//schedule/cancel O(1), на каждом тике обходится только один слот
+final class TimerWheel {
+    private static final int IDLE = -1, FIRING = -2;
+
+    abstract static class Timer {
+        private long deadline;
+        private Timer prev, next, nextFiring;
+        private int slot = IDLE;
+
+        abstract void expire();
+
+        final boolean scheduled() { return slot != IDLE; }
+    }
+
+    private final long tickMs;
+    private final Timer[] slots;
+    private final int mask;
+    private long current;
+    private int size = 0;
+
+    TimerWheel(long tickMs, int slotCount, long now) {
+        if (Integer.bitCount(slotCount) != 1) throw new IllegalArgumentException("slotCount must be a power of two");
+        this.tickMs = tickMs;
+        this.slots = new Timer[slotCount];
+        this.mask = slotCount - 1;
+        this.current = now / tickMs;
+    }
+
+    long tickMs() { return tickMs; }
+    int size() { return size; }
+
+    void schedule(Timer t, long now, long delayMs) {
+        cancel(t);
+        t.deadline = now + delayMs;
+        long tick = (t.deadline + tickMs - 1) / tickMs;
+        if (tick <= current) tick = current + 1;
+
+        int s = (int) (tick & mask);
+        t.slot = s;
+        t.prev = null;
+        t.next = slots[s];
+        if (t.next != null) t.next.prev = t;
+        slots[s] = t;
+        size++;
+    }
+
+    void cancel(Timer t) {
+        if (t.slot == FIRING) { t.slot = IDLE; return; }
+        if (t.slot == IDLE) return;
+        unlink(t);
+    }
+
+    void advance(long now) {
+        long target = now / tickMs;
+        while (current < target) {
+            current++;
+            int s = (int) (current & mask);
+
+            //сначала снимаем все просроченные, потом вызываем: expire() может трогать колесо
+            Timer firing = null;
+            for (Timer t = slots[s]; t != null; ) {
+                Timer nx = t.next;
+                if (t.deadline <= now) {
+                    unlink(t);
+                    t.slot = FIRING;
+                    t.nextFiring = firing;
+                    firing = t;
+                }
+                t = nx;
+            }
+
+            while (firing != null) {
+                Timer t = firing;
+                firing = t.nextFiring;
+                t.nextFiring = null;
+                if (t.slot != FIRING) continue; //отменили или перепланировали
+                t.slot = IDLE;
+                t.expire();
+            }
+        }
+    }
+
+    private void unlink(Timer t) {
+        if (t.prev != null) t.prev.next = t.next;
+        else slots[t.slot] = t.next;
+        if (t.next != null) t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.slot = IDLE;
+        size--;
+    }
+}
@@ -0,0 +1,80 @@
+package socks5;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+//источник событий цикла Loop (-Dsocks5.transport=selector|uring). все, что висит на
+//цикле (Conn, Dialer, Tunnel, Dns, Bind, UdpAssoc, HttpConn, Fetch), регистрирует каналы
+//через Loop.register и живет по SelectionKey, поэтому рукопожатие, BIND, ASSOCIATE,
+//авторизация и Shaper одни для обоих транспортов. различаются ожидание и RELAY:
+//selector - SelectorTransport, обычный Selector, по умолчанию и запасной, есть всегда;
+//uring - UringTransport (src/uring, mvn -Puring), только если задан явно: готовность
+//через POLL_ADD, туннель - recv/send в кольцах Relay, все SQE итерации уходят ядру
+//одним io_uring_enter. нет в сборке, JVM без нужных флагов или ядро без io_uring -
+//причина печатается один раз, цикл остается на selector
+abstract class Transport {
+    static final String KIND = System.getProperty("socks5.transport", "selector");
+
+    private static volatile String unavailable; //почему не uring, печатается один раз
+
+    //ключ с вложением att; канал - неблокирующий
+    abstract SelectionKey register(SelectableChannel ch, int ops, Object att) throws IOException;
+
+    //ждать готовности не дольше timeoutMs (0 - без срока)
+    abstract void select(long timeoutMs) throws IOException;
+
+    //action на каждый ключ, готовый после select
+    abstract void dispatch(Consumer<SelectionKey> action);
+
+    //из любого потока: прервать select
+    abstract void wakeup();
+
+    //зарегистрированные ключи (закрытие по сроку останова)
+    abstract Collection<SelectionKey> keys();
+
+    abstract void close();
+
+    //направление туннеля src -> dst на завершениях вместо готовности; null - Relay.create
+    //выбирает сам (copy/direct)
+    Relay relay(Loop loop, SelectionKey src, SelectionKey dst) {
+        return null;
+    }
+
+    //для строки запуска
+    abstract String describe();
+
+    //транспорт нового цикла
+    static Transport open() throws IOException {
+        if ("uring".equals(KIND)) {
+            Transport t = uring();
+            if (t != null) return t;
+        }
+        return new SelectorTransport();
+    }
+
+    //UringTransport, если он есть в сборке и заводится; null - причина в unavailable()
+    static Transport uring() {
+        String why;
+        try {
+            return (Transport) Class.forName("socks5.UringTransport").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            why = "not built, see the uring profile in pom.xml";
+        } catch (InvocationTargetException e) {
+            why = String.valueOf(e.getCause().getMessage());
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            //UnsupportedClassVersionError - классы preview без --enable-preview
+            why = e.toString();
+        }
+        if (unavailable == null) {
+            unavailable = why;
+            System.out.println("io_uring transport unavailable (" + why + "), using selector");
+        }
+        return null;
+    }
+
+    static String unavailable() { return unavailable; }
+}
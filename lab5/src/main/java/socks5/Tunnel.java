@@ -0,0 +1,278 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+//одно соединение с upstream: подключение, для SOCKS5 - приветствие и RFC 1929,
+//ожидание в пуле, затем запрос CONNECT и разбор ответа. после удачного ответа
+//сокет вместе с ключом переходит к Conn или Fetch (onTunnel). таймер - тайм-аут
+//текущей фазы или срок простоя в пуле. если взятое из пула соединение оказалось
+//мертвым (upstream закрыл его, пока оно ждало), запрос повторяется на новом
+final class Tunnel extends TimerWheel.Timer {
+    private static final long TIMEOUT = Long.getLong("socks5.timeout.connect", 10_000);
+
+    private static final int CONNECTING = 0, GREETING = 1, AUTH = 2, IDLE = 3, REQUEST = 4, DONE = 5;
+
+    //кому отдается соединение: Conn (CONNECT) или Fetch режима HTTP
+    interface Client {
+        void onTunnel(SocketChannel ch, SelectionKey key, Upstream u, ByteBuffer early);
+        void onDialFailed(IOException e);
+    }
+
+    private final Loop loop;
+    private final Upstream.Pool pool;
+    private final Upstream up;
+    private SocketChannel ch;
+    private SelectionKey key;
+    private int phase = CONNECTING;
+
+    private final ByteBuffer in = ByteBuffer.allocate(2048);
+    private final ByteBuffer out = ByteBuffer.allocate(1024); //в режиме записи
+
+    private Client conn; //null - соединение пула
+    private boolean reused = false; //запрос ушел по прогретому соединению
+    private Object target;
+    private int port;
+
+    Tunnel(Loop loop, Upstream.Pool pool) {
+        this.loop = loop;
+        this.pool = pool;
+        this.up = pool.up;
+    }
+
+    void start() throws IOException {
+        ch = SocketChannel.open();
+        try {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            boolean now = ch.connect(up.addr);
+            key = loop.register(ch, 0, this);
+            loop.schedule(this, TIMEOUT);
+            if (now) connected();
+            else key.interestOps(SelectionKey.OP_CONNECT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    //соединение отдано запросу; прогретое сразу отправляет CONNECT
+    void assign(Client conn, Object target, int port) {
+        this.conn = conn;
+        this.target = target;
+        this.port = port;
+        if (phase != IDLE) return;
+        reused = true;
+        loop.cancel(this);
+        loop.schedule(this, TIMEOUT);
+        sendRequest();
+    }
+
+    void onKey(SelectionKey k) {
+        try {
+            int ops = k.readyOps();
+            if ((ops & SelectionKey.OP_CONNECT) != 0) {
+                if (!ch.finishConnect()) return;
+                connected();
+            }
+            if ((ops & SelectionKey.OP_WRITE) != 0) flush();
+            if ((ops & SelectionKey.OP_READ) != 0) read();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    void expire() {
+        if (phase == IDLE) {
+            //простой в пуле: заменяем свежим, пока upstream не закрыл сам
+            phase = DONE;
+            close();
+            pool.lost(this, false, null);
+            return;
+        }
+        failed(new SocketTimeoutException("upstream " + up.name + " timed out"));
+    }
+
+    //клиент закрылся или истек его тайм-аут
+    void abort() {
+        phase = DONE;
+        close();
+    }
+
+    private void connected() throws IOException {
+        if (up.type == Upstream.HTTP) {
+            ready();
+            return;
+        }
+        out.put((byte) 5);
+        if (up.user != null) out.put((byte) 2).put((byte) 0).put((byte) 2);
+        else out.put((byte) 1).put((byte) 0);
+        phase = GREETING;
+        flush();
+    }
+
+    private void ready() throws IOException {
+        if (conn != null) {
+            sendRequest();
+            return;
+        }
+        phase = IDLE;
+        loop.cancel(this);
+        loop.schedule(this, Upstream.IDLE_MS);
+        key.interestOps(SelectionKey.OP_READ); //EOF от upstream
+        pool.ready(this);
+    }
+
+    private void sendRequest() {
+        phase = REQUEST;
+        try {
+            up.request(out, target, port);
+            flush();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        ch.write(out);
+        out.compact();
+        key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void read() throws IOException {
+        if (ch.read(in) == -1) throw new IOException("upstream " + up.name + " closed the connection");
+        switch (phase) {
+            case GREETING -> {
+                if (in.position() < 2) return;
+                int ver = in.get(0), m = in.get(1) & 0xFF;
+                in.clear();
+                if (ver != 5) throw new IOException("upstream " + up.name + ": not a SOCKS5 server");
+                if (m == 0x00) {
+                    ready();
+                } else if (m == 0x02 && up.user != null) {
+                    out.put((byte) 1).put((byte) up.user.length).put(up.user).put((byte) up.pass.length).put(up.pass);
+                    phase = AUTH;
+                    flush();
+                } else {
+                    throw new IOException("upstream " + up.name + ": no acceptable auth method");
+                }
+            }
+            case AUTH -> {
+                if (in.position() < 2) return;
+                int status = in.get(1);
+                in.clear();
+                if (status != 0) throw new IOException("upstream " + up.name + ": authentication rejected");
+                ready();
+            }
+            case IDLE -> throw new IOException("upstream " + up.name + ": unexpected data on idle connection");
+            case REQUEST -> {
+                if (up.type == Upstream.SOCKS5) socksReply();
+                else httpReply();
+            }
+        }
+    }
+
+    //VER REP RSV ATYP BND.ADDR BND.PORT
+    private void socksReply() throws IOException {
+        if (in.position() < 5) return;
+        int len = switch (in.get(3)) {
+            case 1 -> 4;
+            case 4 -> 16;
+            case 3 -> 1 + (in.get(4) & 0xFF);
+            default -> throw new IOException("upstream " + up.name + ": bad reply");
+        };
+        if (in.position() < 4 + len + 2) return;
+        byte rep = in.get(1);
+        if (rep != 0) throw new Upstream.Rejected(rep, "upstream " + up.name + " replied REP=" + rep);
+        done(4 + len + 2);
+    }
+
+    //"HTTP/1.1 200 ..." и заголовки до пустой строки
+    private void httpReply() throws IOException {
+        int end = -1;
+        for (int i = 3; i < in.position(); i++) {
+            if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (!in.hasRemaining()) throw new IOException("upstream " + up.name + ": response header too long");
+            return;
+        }
+        String status = new String(in.array(), 0, Math.min(end, 16), StandardCharsets.ISO_8859_1);
+        if (!status.startsWith("HTTP/1.") || status.length() < 12) {
+            throw new IOException("upstream " + up.name + ": not an HTTP response");
+        }
+        int code;
+        try {
+            code = Integer.parseInt(status.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new IOException("upstream " + up.name + ": bad status line");
+        }
+        if (code / 100 != 2) {
+            byte rep = switch (code) {
+                case 403, 407 -> (byte) 0x02;
+                case 502, 504 -> (byte) 0x04;
+                default -> (byte) 0x01;
+            };
+            throw new Upstream.Rejected(rep, "upstream " + up.name + " replied HTTP " + code);
+        }
+        done(end);
+    }
+
+    //ответ разобран; то, что пришло за ним, - уже данные от цели
+    private void done(int consumed) {
+        phase = DONE;
+        loop.cancel(this);
+        key.interestOps(0);
+        in.flip().position(consumed);
+        conn.onTunnel(ch, key, up, in);
+    }
+
+    private void failed(IOException e) {
+        if (phase == DONE) return;
+        //RST или EOF в ответ на запрос по прогретому соединению - оно умерло в пуле,
+        //цель тут ни при чем: подключаемся заново, клиент об этом не узнает
+        if (reused && phase == REQUEST && in.position() == 0
+                && !(e instanceof Upstream.Rejected) && !(e instanceof SocketTimeoutException)) {
+            redial();
+            return;
+        }
+        boolean idle = phase == IDLE;
+        phase = DONE;
+        close();
+        if (conn == null) {
+            //закрытие простаивающего соединения upstream'ом - не ошибка
+            pool.lost(this, !idle, e);
+            return;
+        }
+        if (!(e instanceof Upstream.Rejected)) pool.failed(e);
+        conn.onDialFailed(e);
+    }
+
+    private void redial() {
+        reused = false;
+        close();
+        in.clear();
+        out.clear();
+        phase = CONNECTING;
+        try {
+            start();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void close() {
+        loop.cancel(this);
+        try { if (key != null) key.cancel(); } catch (Exception ignored) {}
+        try { if (ch != null) ch.close(); } catch (Exception ignored) {}
+    }
+}
@@ -0,0 +1,317 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+//UDP ASSOCIATE (RFC 1928, п. 7): один DatagramChannel на ассоциацию.
+//датаграммы от клиента (с его IP) уходят по адресу из заголовка,
+//все остальные заворачиваются в заголовок и отправляются клиенту.
+//адреса назначения и источники проходят те же правила, что и CONNECT.
+//живет, пока жив управляющий TCP Conn
+final class UdpAssoc {
+    static final int BATCH = Integer.getInteger("socks5.udp.batch", 64);
+
+    static final int MAX_HDR = 4 + 16 + 2; //RSV RSV FRAG ATYP + IPv6 + порт
+    static final int BUF_CAP = MAX_HDR + 65535;
+
+    private static final int DEST_SLOTS = 4;
+    private static final int MAX_QUEUED = 8;
+    //в слоте адреса: правила запрещают, датаграммы выбрасываются
+    private static final InetSocketAddress DENIED = InetSocketAddress.createUnresolved("denied", 0);
+
+    private final Loop loop;
+    private final Conn conn;
+    private final DatagramChannel ch;
+    private final SelectionKey key;
+
+    private final InetAddress clientIp;
+    private InetSocketAddress clientAddr; //null, пока клиент не прислал первую датаграмму
+
+    //последние адреса назначения: сырой ATYP+ADDR+PORT из заголовка -> адрес,
+    //чтобы на повторяющемся адресе ничего не создавать
+    private final byte[][] destKeys = new byte[DEST_SLOTS][];
+    private final int[] destLens = new int[DEST_SLOTS];
+    private final InetSocketAddress[] dests = new InetSocketAddress[DEST_SLOTS];
+    private int victim = 0;
+    private Object rules; //таблица Rules, по которой приняты решения в слотах
+
+    //то же для обратного направления: источник -> готовый заголовок
+    private InetSocketAddress lastFrom;
+    private byte[] lastHdr; //null - источник под deny
+
+    private final HashMap<String, Pending> resolving = new HashMap<>();
+
+    long upBytes = 0, downBytes = 0, dropped = 0;
+
+    UdpAssoc(Loop loop, Conn conn, InetSocketAddress expected, InetAddress clientIp) throws IOException {
+        this.loop = loop;
+        this.conn = conn;
+        this.clientIp = clientIp;
+        //адрес из запроса - только если клиент его действительно указал
+        if (expected != null && expected.getPort() != 0 && !expected.getAddress().isAnyLocalAddress()) {
+            clientAddr = expected;
+        }
+
+        ch = DatagramChannel.open();
+        ch.configureBlocking(false);
+        ch.bind(new InetSocketAddress(0));
+        key = loop.register(ch, SelectionKey.OP_READ, this);
+    }
+
+    Conn owner() { return conn; }
+
+    int port() {
+        return ch.socket().getLocalPort();
+    }
+
+    void onReadable() throws IOException {
+        ByteBuffer buf = loop.udpBuf();
+        int n = 0;
+        for (; n < BATCH; n++) {
+            buf.clear().position(MAX_HDR); //место под заголовок для ответа клиенту
+            SocketAddress from = ch.receive(buf);
+            if (from == null) break;
+            buf.limit(buf.position()).position(MAX_HDR);
+
+            InetSocketAddress src = (InetSocketAddress) from;
+            if (rules != Rules.table()) forget();
+            if (isClient(src)) fromClient(buf);
+            else fromRemote(src, buf);
+        }
+        if (n > 0) conn.touch();
+    }
+
+    private boolean isClient(InetSocketAddress src) {
+        if (clientAddr != null) return clientAddr.equals(src);
+        if (!clientIp.equals(src.getAddress())) return false;
+        clientAddr = src;
+        return true;
+    }
+
+    private void fromClient(ByteBuffer buf) throws IOException {
+        int p = buf.position();
+        int end = buf.limit();
+        if (end - p < 4 + 1 + 2) { dropped++; return; }
+        //фрагментацию не поддерживаем - такие датаграммы выбрасываются
+        if (buf.get(p) != 0 || buf.get(p + 1) != 0 || buf.get(p + 2) != 0) { dropped++; return; }
+
+        int atyp = buf.get(p + 3);
+        int addrLen;
+        if (atyp == 0x01) addrLen = 4;
+        else if (atyp == 0x04) addrLen = 16;
+        else if (atyp == 0x03) addrLen = 1 + (buf.get(p + 4) & 0xFF);
+        else { dropped++; return; }
+
+        int keyOff = p + 3, keyLen = 1 + addrLen + 2;
+        int data = keyOff + keyLen;
+        if (data > end) { dropped++; return; }
+
+        InetSocketAddress dst = findDest(buf, keyOff, keyLen);
+        if (dst == null) {
+            dst = newDest(buf, atyp, keyOff, keyLen);
+            if (dst == null) return;
+        }
+        if (dst == DENIED) { dropped++; return; }
+
+        buf.position(data);
+        send(buf, dst);
+    }
+
+    private void send(ByteBuffer buf, InetSocketAddress dst) throws IOException {
+        int len = buf.remaining();
+        int n;
+        try {
+            n = ch.send(buf, dst);
+        } catch (IOException e) {
+            n = 0; //например, нет маршрута для семейства адреса
+        }
+        if (n == 0) dropped++;
+        else {
+            upBytes += len;
+            loop.metrics().udpUp += len;
+        }
+    }
+
+    private void fromRemote(InetSocketAddress src, ByteBuffer buf) throws IOException {
+        if (clientAddr == null) { dropped++; return; }
+
+        if (!src.equals(lastFrom)) {
+            lastFrom = src;
+            Rules.Rule r = Rules.match(src.getAddress(), src.getPort(), clientIp);
+            lastHdr = r.action == Rules.DENY ? null : header(src);
+            if (lastHdr == null) deny(r, src.getAddress(), src.getPort());
+        }
+        if (lastHdr == null) { dropped++; return; }
+        int len = buf.remaining();
+        int start = MAX_HDR - lastHdr.length;
+        buf.position(start);
+        buf.put(lastHdr);
+        buf.position(start);
+
+        int n;
+        try {
+            n = ch.send(buf, clientAddr);
+        } catch (IOException e) {
+            n = 0; //ENOBUFS, ICMP от клиента - теряем датаграмму, не ассоциацию
+        }
+        if (n == 0) dropped++;
+        else {
+            downBytes += len;
+            loop.metrics().udpDown += len;
+        }
+    }
+
+    private InetSocketAddress findDest(ByteBuffer buf, int off, int len) {
+        for (int i = 0; i < DEST_SLOTS; i++) {
+            byte[] k = destKeys[i];
+            if (k == null || destLens[i] != len) continue;
+            int j = 0;
+            while (j < len && k[j] == buf.get(off + j)) j++;
+            if (j == len) return dests[i];
+        }
+        return null;
+    }
+
+    //правила перезагрузили - решения в слотах устарели
+    private void forget() {
+        rules = Rules.table();
+        for (int i = 0; i < DEST_SLOTS; i++) destKeys[i] = null;
+        lastFrom = null;
+    }
+
+    //первая датаграмма на запрещенный адрес - в лог и метрики, дальше только dropped
+    private void deny(Rules.Rule r, Object target, int port) {
+        loop.metrics().denied++;
+        Log.event(Log.DENY, conn.id(), port, r.line, 0, target, null);
+    }
+
+    private void putDest(byte[] k, int len, InetSocketAddress dst) {
+        int i = victim;
+        victim = (victim + 1) % DEST_SLOTS;
+        destKeys[i] = k;
+        destLens[i] = len;
+        dests[i] = dst;
+    }
+
+    //промах по кешу адресов: разбираем адрес "по-настоящему"
+    private InetSocketAddress newDest(ByteBuffer buf, int atyp, int off, int len) throws IOException {
+        byte[] k = new byte[len];
+        for (int j = 0; j < len; j++) k[j] = buf.get(off + j);
+        int port = ((k[len - 2] & 0xFF) << 8) | (k[len - 1] & 0xFF);
+
+        if (atyp != 0x03) {
+            byte[] ip = new byte[len - 3];
+            System.arraycopy(k, 1, ip, 0, ip.length);
+            Rules.Rule r = Rules.match(ip, port, clientIp);
+            InetSocketAddress dst = r.action == Rules.DENY ? DENIED : new InetSocketAddress(InetAddress.getByAddress(ip), port);
+            if (dst == DENIED) deny(r, InetAddress.getByAddress(ip), port);
+            putDest(k, len, dst);
+            return dst;
+        }
+
+        int nameLen = k[1] & 0xFF;
+        if (nameLen == 0) { dropped++; return null; }
+        String name = new String(k, 2, nameLen, java.nio.charset.StandardCharsets.US_ASCII);
+        //имя - до DNS, как у CONNECT; адреса из ответа - в onDnsOk
+        Rules.Rule r = Rules.match(name, port, clientIp);
+        if (r.action == Rules.DENY) {
+            deny(r, name, port);
+            putDest(k, len, DENIED);
+            return DENIED;
+        }
+
+        //ставим датаграмму в очередь до ответа DNS; при попадании в кеш ответ придет сразу
+        Pending pd = resolving.get(name);
+        boolean fresh = pd == null;
+        if (fresh) {
+            pd = new Pending(name, k, port);
+            resolving.put(name, pd);
+        }
+        pd.queue(buf, off + len);
+        if (fresh) {
+            try {
+                loop.dns().resolve(pd, name);
+            } catch (IOException e) {
+                pd.onDnsFail(); //кривое имя
+            }
+        }
+        return null;
+    }
+
+    private static byte[] header(InetSocketAddress src) {
+        byte[] ip = src.getAddress().getAddress();
+        byte[] h = new byte[4 + ip.length + 2];
+        h[3] = ip.length == 16 ? (byte)0x04 : (byte)0x01;
+        System.arraycopy(ip, 0, h, 4, ip.length);
+        h[4 + ip.length] = (byte)((src.getPort() >>> 8) & 0xFF);
+        h[5 + ip.length] = (byte)(src.getPort() & 0xFF);
+        return h;
+    }
+
+    void close() {
+        for (Pending pd : resolving.values()) loop.dns().cancel(pd.name, pd);
+        resolving.clear();
+        try { key.cancel(); } catch (Exception ignored) {}
+        try { ch.close(); } catch (Exception ignored) {}
+    }
+
+    //датаграммы на доменное имя, ждущие DNS
+    private final class Pending implements Dns.Waiter {
+        final String name;
+        final byte[] key;
+        final int port;
+        final ArrayList<ByteBuffer> queued = new ArrayList<>(2);
+
+        Pending(String name, byte[] key, int port) {
+            this.name = name;
+            this.key = key;
+            this.port = port;
+        }
+
+        void queue(ByteBuffer buf, int data) {
+            if (queued.size() >= MAX_QUEUED) { dropped++; return; }
+            ByteBuffer copy = ByteBuffer.allocate(buf.limit() - data);
+            copy.put(buf.duplicate().position(data)).flip();
+            queued.add(copy);
+        }
+
+        @Override
+        public void onDnsOk(InetAddress[] addrs) {
+            resolving.remove(name);
+            //гонки семейств для UDP нет, IPv4 доступен чаще - берем его, если есть;
+            //адреса под deny по CIDR пропускаем
+            InetAddress v4 = null, v6 = null;
+            Rules.Rule r = null;
+            for (InetAddress a : addrs) {
+                Rules.Rule d = Rules.denied(a, port, clientIp);
+                if (d != null) r = d;
+                else if (a instanceof Inet4Address) { if (v4 == null) v4 = a; }
+                else if (v6 == null) v6 = a;
+            }
+            if (v4 == null && v6 == null) {
+                deny(r, name, port);
+                putDest(key, key.length, DENIED);
+                dropped += queued.size();
+                queued.clear();
+                return;
+            }
+            InetSocketAddress dst = new InetSocketAddress(v4 != null ? v4 : v6, port);
+            putDest(key, key.length, dst);
+            try {
+                for (ByteBuffer b : queued) send(b, dst);
+            } catch (IOException ignored) {}
+            queued.clear();
+        }
+
+        @Override
+        public void onDnsFail() {
+            resolving.remove(name);
+            dropped += queued.size();
+            queued.clear();
+        }
+    }
+}
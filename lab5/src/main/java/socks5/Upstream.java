@@ -0,0 +1,255 @@
+package socks5;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+//вышестоящие прокси. -Dsocks5.upstreams=файл, строки:
+//  upstream <имя> socks5://[user:pass@]host[:port] [pool=N]
+//  upstream <имя> http://[user:pass@]host[:port] [pool=N]      (HTTP CONNECT)
+//какие запросы куда идут - правила route в Rules. имя цели уходит upstream'у
+//без разрешения.
+//в каждом цикле к каждому upstream держится pool=N (-Dsocks5.upstream.pool)
+//соединений, уже прошедших приветствие и аутентификацию; запросу остается
+//только CONNECT. простаивающие дольше -Dsocks5.upstream.idle мс заменяются
+final class Upstream {
+    static final String FILE = System.getProperty("socks5.upstreams");
+    static final int POOL = Integer.getInteger("socks5.upstream.pool", 2);
+    static final long IDLE_MS = Long.getLong("socks5.upstream.idle", 60_000);
+
+    static final int SOCKS5 = 0, HTTP = 1;
+
+    //upstream ответил отказом: rep - код для нашего ответа клиенту
+    static final class Rejected extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final byte rep;
+
+        Rejected(byte rep, String msg) {
+            super(msg);
+            this.rep = rep;
+        }
+    }
+
+    final int index;
+    final String name;
+    final int type;
+    final InetSocketAddress addr;
+    final byte[] user, pass; //null - без аутентификации
+    private final String basic; //Proxy-Authorization для HTTP
+    final int pool;
+
+    private Upstream(int index, String name, int type, InetSocketAddress addr, String user, String pass, int pool) {
+        this.index = index;
+        this.name = name;
+        this.type = type;
+        this.addr = addr;
+        this.user = user == null ? null : user.getBytes(StandardCharsets.UTF_8);
+        this.pass = pass == null ? null : pass.getBytes(StandardCharsets.UTF_8);
+        this.basic = user == null ? null
+                : Base64.getEncoder().encodeToString((user + ":" + pass).getBytes(StandardCharsets.UTF_8));
+        this.pool = pool;
+    }
+
+    private static Upstream[] all = new Upstream[0];
+
+    //при старте, до создания циклов: ошибка в файле фатальна
+    static void init() throws IOException {
+        if (FILE == null) return;
+        List<String> lines = Files.readAllLines(Paths.get(FILE), StandardCharsets.UTF_8);
+        HashMap<String, Upstream> byName = new HashMap<>();
+        ArrayList<Upstream> ups = new ArrayList<>();
+        int no = 0;
+        for (String line : lines) {
+            no++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\s+");
+            try {
+                if (f[0].equals("upstream") && (f.length == 3 || f.length == 4)) {
+                    if (byName.containsKey(f[1]) || f[1].equals("direct")) throw new IOException("duplicate name " + f[1]);
+                    int pool = POOL;
+                    if (f.length == 4) {
+                        if (!f[3].startsWith("pool=")) throw new IOException("expected pool=N");
+                        pool = Integer.parseInt(f[3].substring(5));
+                    }
+                    Upstream u = parse(ups.size(), f[1], f[2], pool);
+                    ups.add(u);
+                    byName.put(u.name, u);
+                } else {
+                    throw new IOException("expected 'upstream <name> <url> [pool=N]'");
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                throw new IOException(FILE + " line " + no + ": " + e.getMessage());
+            }
+        }
+        all = ups.toArray(new Upstream[0]);
+        for (Upstream u : all) {
+            System.out.println("Upstream " + u.name + ": " + (u.type == SOCKS5 ? "socks5 " : "http ")
+                    + u.addr + ", pool " + u.pool + " per loop");
+        }
+    }
+
+    private static Upstream parse(int index, String name, String url, int pool) throws IOException {
+        URI uri = URI.create(url);
+        String scheme = String.valueOf(uri.getScheme()).toLowerCase(Locale.ROOT);
+        int type;
+        int port = uri.getPort();
+        if (scheme.equals("socks5")) {
+            type = SOCKS5;
+            if (port == -1) port = 1080;
+        } else if (scheme.equals("http")) {
+            type = HTTP;
+            if (port == -1) port = 3128;
+        } else {
+            throw new IOException("unsupported scheme " + scheme);
+        }
+        if (uri.getHost() == null) throw new IOException("no host in " + url);
+        InetSocketAddress addr = new InetSocketAddress(uri.getHost(), port);
+        if (addr.isUnresolved()) throw new IOException("cannot resolve " + uri.getHost());
+
+        String user = null, pass = null;
+        String info = uri.getUserInfo();
+        if (info != null) {
+            int i = info.indexOf(':');
+            user = i < 0 ? info : info.substring(0, i);
+            pass = i < 0 ? "" : info.substring(i + 1);
+            if (type == SOCKS5 && (user.getBytes(StandardCharsets.UTF_8).length > 255
+                    || pass.getBytes(StandardCharsets.UTF_8).length > 255)) {
+                throw new IOException("RFC 1929 credentials longer than 255 bytes");
+            }
+        }
+        return new Upstream(index, name, type, addr, user, pass, pool);
+    }
+
+    static Upstream[] all() { return all; }
+
+    static Upstream byName(String name) {
+        for (Upstream u : all) {
+            if (u.name.equals(name)) return u;
+        }
+        return null;
+    }
+
+    //запрос CONNECT к upstream; имя проверяет еще Conn, здесь - чтобы в запрос
+    //не попало ничего, кроме имени хоста, откуда бы оно ни пришло
+    void request(ByteBuffer out, Object target, int port) throws Rejected {
+        if (target instanceof String s && !Handshake.validName(s)) {
+            throw new Rejected((byte) 0x01, "upstream " + name + ": bad host name");
+        }
+        if (type == SOCKS5) {
+            out.put((byte) 5).put((byte) 1).put((byte) 0);
+            if (target instanceof InetAddress a) {
+                byte[] b = a.getAddress();
+                out.put(b.length == 4 ? (byte) 1 : (byte) 4).put(b);
+            } else {
+                byte[] name = ((String) target).getBytes(StandardCharsets.ISO_8859_1);
+                out.put((byte) 3).put((byte) name.length).put(name);
+            }
+            out.putShort((short) port);
+            return;
+        }
+        String host = target instanceof InetAddress a ? a.getHostAddress() : (String) target;
+        if (host.indexOf(':') >= 0) host = "[" + host + "]";
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("CONNECT ").append(host).append(':').append(port).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(host).append(':').append(port).append("\r\n");
+        if (basic != null) sb.append("Proxy-Authorization: Basic ").append(basic).append("\r\n");
+        sb.append("\r\n");
+        out.put(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    //соединения одного цикла к одному upstream; только поток цикла
+    static final class Pool extends TimerWheel.Timer {
+        private static final long BACKOFF_MIN = 1000, BACKOFF_MAX = 30_000;
+
+        final Upstream up;
+        private final Loop loop;
+        private final ArrayDeque<Tunnel> idle = new ArrayDeque<>();
+        private int warming = 0;
+        private long backoff = 0;
+        long hits = 0, misses = 0, failures = 0;
+
+        Pool(Loop loop, Upstream up) {
+            this.loop = loop;
+            this.up = up;
+        }
+
+        int idle() { return idle.size(); }
+
+        //прогретое соединение или новое, которое сразу после подключения отправит запрос
+        Tunnel take(Tunnel.Client conn, Object target, int port) throws IOException {
+            Tunnel t = idle.poll();
+            if (t != null) {
+                hits++;
+                t.assign(conn, target, port);
+            } else {
+                misses++;
+                t = new Tunnel(loop, this);
+                t.assign(conn, target, port);
+                t.start();
+            }
+            fill();
+            return t;
+        }
+
+        //дополнить пул; во время паузы после ошибок - ждем таймер
+        void fill() {
+            if (scheduled()) return;
+            while (idle.size() + warming < up.pool) {
+                warming++;
+                Tunnel t = new Tunnel(loop, this);
+                try {
+                    t.start();
+                } catch (IOException e) {
+                    lost(t, true, e);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void expire() { fill(); }
+
+        //прогретое соединение готово принять запрос
+        void ready(Tunnel t) {
+            warming--;
+            backoff = 0;
+            idle.add(t);
+        }
+
+        //соединение без владельца закрылось: ошибка, простой или upstream закрыл сам
+        void lost(Tunnel t, boolean failed, IOException e) {
+            if (!idle.remove(t)) warming--;
+            if (!failed) {
+                fill();
+                return;
+            }
+            failures++;
+            Log.event(Log.UPSTREAM_ERROR, 0, up.name, e.getMessage());
+            backoff = backoff == 0 ? BACKOFF_MIN : Math.min(backoff * 2, BACKOFF_MAX);
+            if (!scheduled()) loop.schedule(this, backoff);
+        }
+
+        //не удалось соединение, уже отданное запросу
+        void failed(IOException e) {
+            failures++;
+            Log.event(Log.UPSTREAM_ERROR, 0, up.name, e.getMessage());
+        }
+    }
+
+    static Pool[] pools(Loop loop) {
+        Pool[] p = new Pool[all.length];
+        for (int i = 0; i < p.length; i++) p[i] = new Pool(loop, all[i]);
+        return p;
+    }
+}
@@ -0,0 +1,251 @@
+package socks5;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+//пользователи для RFC 1929. -Dsocks5.users=файл включает обязательную аутентификацию.
+//строки файла: "user:password" или "user:pbkdf2:<итерации>:<соль hex>:<хеш hex>"
+//(PBKDF2WithHmacSHA256), # - комментарий. файл перечитывается при изменении,
+//новая таблица подменяет старую целиком.
+//проверка идет в пуле auth-N, результат возвращается в цикл через Loop.post;
+//очередь пула ограничена (.auth.queue), переполненная - отказ без проверки.
+//удачные входы кешируются (SHA-256 пароля), повтор проверяется прямо в цикле.
+//неизвестное имя проверяется против поддельной записи той же стоимости, что и
+//настоящие, - по времени ответа не видно, есть ли такой пользователь
+final class Users {
+    static final String FILE = System.getProperty("socks5.users");
+    static final boolean REQUIRED = FILE != null;
+    static final int THREADS = Integer.getInteger("socks5.auth.threads", 2);
+    static final int QUEUE = Math.max(1, Integer.getInteger("socks5.auth.queue", 256));
+    static final long RELOAD_MS = Long.getLong("socks5.users.reload", 2000);
+    static final long CACHE_TTL = Long.getLong("socks5.auth.cache", 300) * 1000;
+    static final int CACHE_MAX = Integer.getInteger("socks5.auth.cache.max", 10_000);
+
+    interface Waiter {
+        //в потоке цикла
+        void onAuth(boolean ok);
+    }
+
+    private static final class Cred {
+        final byte[] plain;  //null для pbkdf2
+        final int iterations;
+        final byte[] salt, hash;
+
+        Cred(byte[] plain, int iterations, byte[] salt, byte[] hash) {
+            this.plain = plain;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        boolean matches(byte[] pass) {
+            if (plain != null) return MessageDigest.isEqual(plain, pass);
+            try {
+                char[] chars = new String(pass, StandardCharsets.UTF_8).toCharArray();
+                PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, hash.length * 8);
+                byte[] got = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+                return MessageDigest.isEqual(hash, got);
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+    }
+
+    //кеш удачных входов: привязан к конкретному Cred, после перечитывания файла устаревает сам
+    private static final class Ok {
+        final Cred cred;
+        final byte[] digest;
+        final long expires;
+
+        Ok(Cred cred, byte[] digest, long expires) {
+            this.cred = cred;
+            this.digest = digest;
+            this.expires = expires;
+        }
+    }
+
+    private static volatile Map<String, Cred> users = Map.of();
+    //для неизвестных имен, пересчитывается с таблицей; пароль к ней не подходит никакой
+    private static volatile Cred dummy = dummy(Map.of());
+    private static final ConcurrentHashMap<String, Ok> cache = new ConcurrentHashMap<>();
+    private static ExecutorService pool;
+    private static long mtime = 0;
+
+    private Users() {}
+
+    //при старте: ошибка чтения файла - фатальна
+    static void init() throws IOException {
+        if (!REQUIRED) return;
+        Path p = Paths.get(FILE);
+        mtime = Files.getLastModifiedTime(p).toMillis();
+        load(Files.readAllLines(p, StandardCharsets.UTF_8));
+        System.out.println("Auth: username/password, " + users.size() + " users from " + FILE);
+
+        AtomicInteger n = new AtomicInteger();
+        pool = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE), r -> {
+            Thread t = new Thread(r, "auth-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+
+        Thread w = new Thread(Users::watch, "users-reload");
+        w.setDaemon(true);
+        w.start();
+    }
+
+    static int size() { return users.size(); }
+
+    static void verify(Loop loop, String user, byte[] pass, Waiter w) {
+        Cred c = users.get(user);
+        Ok ok = cache.get(user);
+        if (c != null && ok != null && ok.cred == c && ok.expires > loop.now()
+                && MessageDigest.isEqual(ok.digest, sha256(pass))) {
+            loop.metrics().authCached++;
+            w.onAuth(true);
+            return;
+        }
+
+        //время цикла читается только в его потоке
+        long expires = loop.now() + CACHE_TTL;
+        try {
+            pool.execute(() -> {
+                boolean good = matches(c, pass);
+                if (good) remember(user, c, pass, expires);
+                loop.post(() -> w.onAuth(good));
+            });
+        } catch (RejectedExecutionException e) {
+            //очередь полна: клиент получит отказ сразу, а не через минуты ожидания
+            loop.metrics().authBusy++;
+            w.onAuth(false);
+        }
+    }
+
+    //то же в вызывающем потоке - для движка на виртуальных потоках
+    static boolean check(String user, byte[] pass, long now) {
+        Cred c = users.get(user);
+        Ok ok = cache.get(user);
+        if (c != null && ok != null && ok.cred == c && ok.expires > now
+                && MessageDigest.isEqual(ok.digest, sha256(pass))) {
+            return true;
+        }
+        boolean good = matches(c, pass);
+        if (good) remember(user, c, pass, now + CACHE_TTL);
+        return good;
+    }
+
+    //c == null - имени нет, но PBKDF2 все равно считается
+    private static boolean matches(Cred c, byte[] pass) {
+        boolean good = (c != null ? c : dummy).matches(pass);
+        return good && c != null;
+    }
+
+    private static void remember(String user, Cred c, byte[] pass, long expires) {
+        if (cache.size() >= CACHE_MAX) cache.clear();
+        cache.put(user, new Ok(c, sha256(pass), expires));
+    }
+
+    private static byte[] sha256(byte[] b) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(b);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void watch() {
+        Path p = Paths.get(FILE);
+        while (true) {
+            try {
+                Thread.sleep(RELOAD_MS);
+                long m = Files.getLastModifiedTime(p).toMillis();
+                if (m == mtime) continue;
+                mtime = m;
+                load(Files.readAllLines(p, StandardCharsets.UTF_8));
+                cache.clear();
+                System.out.println("Auth: reloaded " + users.size() + " users from " + FILE);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                //битый файл - остаемся на старой таблице
+                System.err.println("Auth: reload of " + FILE + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    //новая таблица и поддельная запись к ней; package-private для тестов
+    static void load(List<String> lines) throws IOException {
+        Map<String, Cred> m = parse(lines);
+        dummy = dummy(m);
+        users = m;
+    }
+
+    //как самая дорогая запись таблицы: pbkdf2 с наибольшим числом итераций,
+    //а если их нет - простой пароль. соль и хеш случайные
+    private static Cred dummy(Map<String, Cred> m) {
+        SecureRandom rnd = new SecureRandom();
+        Cred worst = null;
+        for (Cred c : m.values()) {
+            if (c.plain == null && (worst == null || c.iterations > worst.iterations)) worst = c;
+        }
+        if (worst == null) {
+            byte[] plain = new byte[32];
+            rnd.nextBytes(plain);
+            return new Cred(plain, 0, null, null);
+        }
+        byte[] salt = new byte[worst.salt.length], hash = new byte[worst.hash.length];
+        rnd.nextBytes(salt);
+        rnd.nextBytes(hash);
+        return new Cred(null, worst.iterations, salt, hash);
+    }
+
+    private static Map<String, Cred> parse(List<String> lines) throws IOException {
+        HashMap<String, Cred> m = new HashMap<>(lines.size() * 2);
+        HexFormat hex = HexFormat.of();
+        int no = 0;
+        for (String line : lines) {
+            no++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int i = line.indexOf(':');
+            if (i <= 0) throw new IOException("line " + no + ": expected user:password");
+            String user = line.substring(0, i);
+            String rest = line.substring(i + 1);
+
+            Cred c;
+            if (rest.startsWith("pbkdf2:")) {
+                String[] f = rest.split(":");
+                if (f.length != 4) throw new IOException("line " + no + ": expected pbkdf2:<iterations>:<salt>:<hash>");
+                try {
+                    c = new Cred(null, Integer.parseInt(f[1]), hex.parseHex(f[2]), hex.parseHex(f[3]));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("line " + no + ": " + e.getMessage());
+                }
+            } else {
+                c = new Cred(rest.getBytes(StandardCharsets.UTF_8), 0, null, null);
+            }
+            if (user.length() > 255) throw new IOException("line " + no + ": username longer than 255 bytes");
+            m.put(user, c);
+        }
+        return m;
+    }
+}
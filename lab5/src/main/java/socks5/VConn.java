@@ -0,0 +1,396 @@
+package socks5;
+
+import org.xbill.DNS.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+//движок -Dsocks5.engine=virtual: соединение - два виртуальных потока с блокирующими
+//SocketChannel вместо автомата Conn. рукопожатие то же (Handshake, Users, Rules,
+//Admission), поддерживается только CONNECT напрямую: BIND и UDP ASSOCIATE получают
+//REP 0x07, upstream не поддерживается (Acceptor не стартует с socks5.upstreams).
+//DNS - запросы A и AAAA через dnsjava без общего кеша, адреса перебираются по
+//очереди в порядке Dialer.targets, без параллельных попыток Happy Eyeballs.
+//тайм-ауты - закрытие сокета из общего планировщика. Shaper - тот же, что у Conn:
+//pump не читает больше, чем есть в ведре, и спит до пополнения
+final class VConn implements Runnable {
+    private static final byte VER = 0x05;
+    private static final int BUF = Integer.getInteger("socks5.vthread.buf", 16 * 1024);
+
+    private static final long HANDSHAKE_TIMEOUT = Long.getLong("socks5.timeout.handshake", 10_000);
+    private static final long CONNECT_TIMEOUT   = Long.getLong("socks5.timeout.connect", 10_000);
+    private static final long DNS_TIMEOUT       = Long.getLong("socks5.timeout.dns", 5_000);
+    private static final long IDLE_TIMEOUT      = Long.getLong("socks5.timeout.idle", 300_000);
+
+    //для Metrics: потоков цикла у движка нет, счетчики общие
+    static final LongAdder ACCEPTED = new LongAdder(), UP = new LongAdder(), DOWN = new LongAdder();
+    static final LongAdder THROTTLED = new LongAdder();
+    private static final Set<VConn> OPEN = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "vconn-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile Resolver resolver;
+
+    private final int id = Conn.nextId();
+    private final SocketChannel client;
+    private final InetAddress peer;
+    private volatile SocketChannel remote;
+    //слот рукопожатия Admission: отдает его ровно один из потоков - соединения или vconn-timer
+    private final AtomicBoolean handshaking = new AtomicBoolean(true);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long lastIo = now();
+    private volatile ScheduledFuture<?> deadline;
+
+    private Object target;
+    private int targetPort;
+    private String user;
+    //ведра общие с Conn; GCRA без блокировок, оба pump списывают из одной цепочки
+    private volatile Shaper.Chain shaper;
+    //пишет каждый свой поток pump, close() читает из любого
+    private volatile long upBytes, downBytes;
+    //для FlowLog, как в Conn
+    private final long acceptedAt = System.nanoTime();
+    private final long acceptedMs = FlowLog.ENABLED ? System.currentTimeMillis() : 0;
+    private volatile int handshakeUs = -1, dnsUs = -1, connectUs = -1;
+    private volatile byte cmd, rep = FlowLog.NO_REQUEST;
+    private volatile Conn.St phase = Conn.St.GREET;
+
+    private VConn(SocketChannel client, InetAddress peer) {
+        this.client = client;
+        this.peer = peer;
+    }
+
+    //поток Acceptor; слот Admission уже занят
+    static void start(SocketChannel c, InetAddress peer) {
+        VConn v = new VConn(c, peer);
+        OPEN.add(v);
+        ACCEPTED.increment();
+        Thread.ofVirtual().name("vconn-" + v.id).start(v);
+    }
+
+    static int open() { return OPEN.size(); }
+
+    //поток останова: ждем закрытия до deadline (currentTimeMillis), затем рвем оставшиеся
+    static void drain(long deadline) throws InterruptedException {
+        while (!OPEN.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        int n = OPEN.size();
+        if (n > 0) System.out.printf("[vconn] drain deadline passed, closing %d connections%n", n);
+        for (VConn v : OPEN.toArray(new VConn[0])) v.close();
+    }
+
+    private static long now() { return System.nanoTime() / 1_000_000; }
+
+    @Override
+    public void run() {
+        try {
+            client.configureBlocking(true);
+            deadline = TIMER.schedule(this::close, HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (handshake()) relay();
+        } catch (IOException | InterruptedException e) {
+            //сокет закрыт по тайм-ауту или соединение оборвалось
+        } finally {
+            close();
+        }
+    }
+
+    //true - туннель установлен
+    private boolean handshake() throws IOException, InterruptedException {
+        ByteBuffer in = ByteBuffer.allocate(512);
+        Handshake hs = new Handshake();
+
+        int r = next(hs, in);
+        if (r == Handshake.ERROR) return fail(hs.rep);
+        int method = Users.REQUIRED ? 0x02 : 0x00;
+        if (!hs.offered(method)) {
+            Log.event(Log.NO_METHOD, id, hs.methods);
+            send(VER, (byte) 0xFF);
+            return false;
+        }
+        send(VER, (byte) method);
+        Log.event(Log.GREET_OK, id, method);
+
+        if (Users.REQUIRED) {
+            hs.expectAuth();
+            r = next(hs, in);
+            user = r == Handshake.AUTH ? hs.userName() : null;
+            boolean ok = user != null && Users.check(user, hs.password(), now());
+            send((byte) 0x01, (byte) (ok ? 0x00 : 0x01));
+            Log.event(ok ? Log.AUTH_OK : Log.AUTH_FAIL, id, user);
+            if (!ok) return false;
+        }
+
+        r = next(hs, in);
+        if (handshaking.compareAndSet(true, false)) Admission.handshakeDone();
+        handshakeUs = (int) Metrics.micros(acceptedAt);
+        cmd = hs.cmd;
+        rep = 0x00;
+        phase = Conn.St.REQ;
+        if (r == Handshake.ERROR) return fail(hs.rep);
+        if (hs.cmd != 0x01) return fail((byte) 0x07);
+        if (hs.atyp == 0x03 && !hs.validName()) return fail((byte) 0x01);
+
+        targetPort = hs.port;
+        target = hs.atyp == 0x03 ? hs.domain() : hs.address();
+        Log.event(Log.REQUEST, id, targetPort, target);
+        Rules.Rule rule = Rules.match(target, targetPort, peer);
+        if (rule.action == Rules.DENY) return deny(rule);
+
+        InetAddress[] addrs;
+        if (target instanceof String name) {
+            //фаза DNS со своим сроком вместо срока рукопожатия; resolve сам ждет не дольше
+            //DNS_TIMEOUT, таймер - на случай, если поток застрял мимо него
+            phase = Conn.St.RESOLVE;
+            deadline.cancel(false);
+            deadline = TIMER.schedule(this::dnsTimeout, DNS_TIMEOUT + HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+            long t0 = now();
+            addrs = resolve(name);
+            dnsUs = (int) Metrics.micros(acceptedAt);
+            if (addrs.length == 0) {
+                Log.event(now() - t0 >= DNS_TIMEOUT ? Log.TIMEOUT_DNS : Log.DNS_FAIL, id, targetPort, target);
+                return fail((byte) 0x04);
+            }
+            Log.event(Log.DNS_OK, id, targetPort, 0, 0, target, addrs);
+            int n = 0;
+            Rules.Rule last = null;
+            for (InetAddress a : addrs) {
+                Rules.Rule d = Rules.denied(a, targetPort, peer);
+                if (d == null) addrs[n++] = a;
+                else last = d;
+            }
+            if (n == 0) return deny(last);
+            if (n < addrs.length) addrs = Arrays.copyOf(addrs, n);
+        } else {
+            addrs = new InetAddress[]{ (InetAddress) target };
+        }
+
+        deadline.cancel(false);
+        deadline = TIMER.schedule(this::close, CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        IOException last = null;
+        phase = Conn.St.CONNECT;
+        for (InetSocketAddress to : Dialer.targets(addrs, targetPort, new Penalty(), now())) {
+            Log.event(Log.CONNECT_START, id, to);
+            SocketChannel ch = SocketChannel.open();
+            remote = ch; //чтобы тайм-аут в close() прервал connect
+            try {
+                if (closed.get()) throw new EOFException();
+                ch.socket().setTcpNoDelay(true);
+                ch.connect(to);
+                break;
+            } catch (IOException e) {
+                remote = null;
+                try { ch.close(); } catch (Exception ignored) {}
+                if (closed.get()) throw e;
+                last = e;
+                Log.event(Log.CONNECT_ERROR, id, to, e.getMessage());
+            }
+        }
+        deadline.cancel(false);
+        if (remote == null) return fail(last instanceof ConnectException ? (byte) 0x05 : (byte) 0x04);
+        connectUs = (int) Metrics.micros(acceptedAt);
+        phase = Conn.St.RELAY;
+
+        InetSocketAddress bnd = (InetSocketAddress) remote.getLocalAddress();
+        ByteBuffer out = ByteBuffer.allocate(32);
+        Conn.putReply(out, (byte) 0x00, bnd.getAddress(), bnd.getPort());
+        write(client, out.flip());
+        Log.event(Log.CONNECT_OK, id, remote.getRemoteAddress(), bnd);
+
+        //клиент не ждал ответа на CONNECT - то, что пришло за запросом, уже данные
+        if (in.position() > 0) {
+            upBytes += in.position();
+            write(remote, in.flip());
+        }
+        return true;
+    }
+
+    //до конца сообщения; Handshake сам освобождает разобранное
+    private int next(Handshake hs, ByteBuffer in) throws IOException {
+        int r;
+        while ((r = hs.next(in)) == Handshake.MORE) {
+            if (!in.hasRemaining() || client.read(in) == -1) throw new EOFException();
+        }
+        return r;
+    }
+
+    private InetAddress[] resolve(String name) throws InterruptedException {
+        Resolver res = resolver();
+        CompletableFuture<Message> f4, f6 = null;
+        try {
+            Name n = Name.fromString(name, Name.root);
+            f4 = res.sendAsync(Message.newQuery(org.xbill.DNS.Record.newRecord(n, Type.A, DClass.IN))).toCompletableFuture();
+            if (Dns.IPV6) f6 = res.sendAsync(Message.newQuery(org.xbill.DNS.Record.newRecord(n, Type.AAAA, DClass.IN))).toCompletableFuture();
+        } catch (TextParseException e) {
+            return new InetAddress[0];
+        }
+        //как в Dns: сначала IPv6, потом IPv4; оба ответа ждем до одного общего срока
+        long until = now() + DNS_TIMEOUT;
+        List<InetAddress> out = new ArrayList<>(4);
+        if (f6 != null) addresses(f6, out, until);
+        addresses(f4, out, until);
+        return out.toArray(new InetAddress[0]);
+    }
+
+    private static void addresses(CompletableFuture<Message> f, List<InetAddress> out, long until) throws InterruptedException {
+        try {
+            Message m = f.get(Math.max(0, until - now()), TimeUnit.MILLISECONDS);
+            for (org.xbill.DNS.Record rec : m.getSection(Section.ANSWER)) {
+                if (rec instanceof ARecord a) out.add(a.getAddress());
+                else if (rec instanceof AAAARecord a) out.add(a.getAddress());
+            }
+        } catch (ExecutionException | TimeoutException e) {
+            f.cancel(false);
+        }
+    }
+
+    private static Resolver resolver() {
+        Resolver r = resolver;
+        if (r != null) return r;
+        synchronized (VConn.class) {
+            if (resolver == null) {
+                List<Resolver> list = new ArrayList<>();
+                for (InetSocketAddress a : Dns.serverList()) list.add(new SimpleResolver(a));
+                ExtendedResolver er = new ExtendedResolver(list);
+                er.setTimeout(Duration.ofMillis(DNS_TIMEOUT));
+                resolver = er;
+            }
+            return resolver;
+        }
+    }
+
+    //обратное направление - во втором виртуальном потоке; закрываемся, когда оба дошли до EOF
+    private void relay() throws InterruptedException {
+        shaper = Shaper.attach(peer, user);
+        //close() мог пройти между attach и присваиванием - тогда отпускаем сами
+        if (closed.get()) releaseShaper();
+        deadline = TIMER.schedule(this::checkIdle, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        Thread back = Thread.ofVirtual().name("vconn-" + id + "-down").start(() -> pump(remote, client, DOWN));
+        pump(client, remote, UP);
+        back.join();
+    }
+
+    //счет байт - сразу в поля: close() по сбросу или тайм-ауту не ждет возврата pump
+    private void pump(SocketChannel src, SocketChannel dst, LongAdder counter) {
+        ByteBuffer b = ByteBuffer.allocateDirect(BUF);
+        boolean up = src == client;
+        try {
+            int n;
+            while ((n = read(src, b)) >= 0) {
+                Shaper.Chain sh = shaper;
+                if (sh != null) sh.charge(n, System.nanoTime());
+                b.flip();
+                write(dst, b);
+                b.clear();
+                if (up) upBytes += n;
+                else downBytes += n;
+                counter.add(n);
+                lastIo = now();
+            }
+            Log.event(src == client ? Log.CLIENT_EOF : Log.REMOTE_EOF, id);
+            dst.shutdownOutput();
+        } catch (IOException | InterruptedException e) {
+            //второе направление тоже не жилец
+            close();
+        }
+    }
+
+    //read не больше, чем разрешает Shaper; на пустом ведре спим до пополнения
+    private int read(SocketChannel src, ByteBuffer b) throws IOException, InterruptedException {
+        Shaper.Chain sh;
+        while ((sh = shaper) != null) {
+            long now = System.nanoTime();
+            long a = sh.available(now);
+            if (a > 0) {
+                b.limit((int) Math.min(a, b.capacity()));
+                break;
+            }
+            THROTTLED.increment();
+            Thread.sleep(sh.waitMs(now));
+            if (closed.get()) throw new EOFException();
+        }
+        return src.read(b);
+    }
+
+    //из close() и relay(): ведра отпускаем ровно один раз
+    private synchronized void releaseShaper() {
+        Shaper.Chain sh = shaper;
+        shaper = null;
+        if (sh != null) sh.release();
+    }
+
+    private void checkIdle() {
+        long idle = now() - lastIo;
+        if (idle < IDLE_TIMEOUT) {
+            deadline = TIMER.schedule(this::checkIdle, IDLE_TIMEOUT - idle, TimeUnit.MILLISECONDS);
+            return;
+        }
+        Log.event(Log.TIMEOUT_IDLE, id, idle);
+        close();
+    }
+
+    //resolve вернулся бы сам по DNS_TIMEOUT; сюда попадаем, только если поток застрял
+    private void dnsTimeout() {
+        Log.event(Log.TIMEOUT_DNS, id, targetPort, target);
+        close();
+    }
+
+    private boolean deny(Rules.Rule rule) throws IOException {
+        Log.event(Log.DENY, id, targetPort, rule.line, 0, target, null);
+        return fail((byte) 0x02);
+    }
+
+    private boolean fail(byte rep) throws IOException {
+        this.rep = rep;
+        phase = Conn.St.FAIL_FLUSH;
+        Log.event(Log.FAIL, id, rep, targetPort, 0, target, null);
+        ByteBuffer out = ByteBuffer.allocate(32);
+        Conn.putReply(out, rep, (byte[]) null, 0);
+        write(client, out.flip());
+        return false;
+    }
+
+    private void send(byte b0, byte b1) throws IOException {
+        write(client, ByteBuffer.wrap(new byte[]{ b0, b1 }));
+    }
+
+    private static void write(SocketChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+
+    //из любого потока: закрытие сокетов будит заблокированные read/connect
+    void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        OPEN.remove(this);
+        Admission.release(peer, handshaking.getAndSet(false));
+        ScheduledFuture<?> d = deadline;
+        if (d != null) d.cancel(false);
+        releaseShaper();
+        Log.event(Log.CLOSE, id, upBytes, downBytes, targetPort, target, null);
+        if (FlowLog.ENABLED) {
+            SocketChannel rc = remote;
+            InetAddress ra = target instanceof InetAddress a ? a : null;
+            try { if (rc != null) ra = ((InetSocketAddress) rc.getRemoteAddress()).getAddress(); } catch (Exception ignored) {}
+            FlowLog.record(id, acceptedMs, acceptedAt, handshakeUs, dnsUs, connectUs, upBytes, downBytes,
+                    rep == FlowLog.NO_REQUEST ? 0 : cmd, rep, phase.ordinal(), targetPort, true,
+                    peer, ra, target instanceof String s ? s : null);
+        }
+        try { client.close(); } catch (Exception ignored) {}
+        SocketChannel r = remote;
+        try { if (r != null) r.close(); } catch (Exception ignored) {}
+    }
+}
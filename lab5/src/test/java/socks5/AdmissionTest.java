@@ -0,0 +1,71 @@
+package socks5;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//пределы из pom.xml: socks5.max.handshakes и socks5.max.perip. счетчики общие на JVM,
+//другие тесты отдают циклам сокеты мимо admit, поэтому предел рукопожатий
+//добирается до отказа, а не считается от нуля
+class AdmissionTest {
+
+    @Test
+    void perIpLimitRejectsUntilRelease() throws Exception {
+        assertTrue(Admission.MAX_PER_IP > 0, "socks5.max.perip is not set for tests");
+        InetAddress ip = InetAddress.getByName("192.0.2.200");
+        long rejected = Admission.rejected();
+        for (int i = 0; i < Admission.MAX_PER_IP; i++) assertTrue(Admission.admit(ip));
+        assertFalse(Admission.admit(ip));
+        assertEquals(rejected + 1, Admission.rejected());
+        //другой адрес предел не задевает
+        InetAddress other = InetAddress.getByName("192.0.2.201");
+        assertTrue(Admission.admit(other));
+
+        Admission.release(ip, true);
+        assertTrue(Admission.admit(ip));
+        for (int i = 0; i < Admission.MAX_PER_IP; i++) Admission.release(ip, true);
+        Admission.release(other, true);
+    }
+
+    //как Acceptor: упершись в предел, pause() снимает прием, освобожденный слот будит select
+    @Test
+    void handshakeLimitPausesAndWakesAcceptor() throws Exception {
+        assertTrue(Admission.MAX_HANDSHAKES > 0, "socks5.max.handshakes is not set for tests");
+        List<InetAddress> admitted = new ArrayList<>();
+        try (Selector sel = Selector.open()) {
+            Admission.init(sel);
+            for (int i = 0; Admission.canAccept(); i++) {
+                assertTrue(i < 1000, "handshake limit never reached");
+                InetAddress ip = InetAddress.getByAddress(new byte[]{(byte) 198, 51, 100, (byte) i});
+                assertTrue(Admission.admit(ip));
+                admitted.add(ip);
+            }
+            long pauses = Admission.pauses();
+            assertTrue(Admission.pause());
+            assertTrue(Admission.paused());
+            assertEquals(pauses + 1, Admission.pauses());
+
+            //рукопожатие закончилось: слот свободен, Acceptor проснулся бы сразу
+            Admission.handshakeDone();
+            long t = System.nanoTime();
+            sel.select(5000);
+            assertTrue(System.nanoTime() - t < 2_000_000_000L, "acceptor was not woken");
+            assertTrue(Admission.canAccept());
+            Admission.resume();
+            assertFalse(Admission.paused());
+
+            //место есть - pause() ничего не снимает
+            assertFalse(Admission.pause());
+            assertFalse(Admission.paused());
+        } finally {
+            Admission.init(null);
+            //первый уже не в рукопожатии
+            for (int i = 0; i < admitted.size(); i++) Admission.release(admitted.get(i), i != 0);
+        }
+    }
+}
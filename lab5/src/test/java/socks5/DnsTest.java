@@ -0,0 +1,221 @@
+package socks5;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Dns против локальных UDP-заглушек: перепосылка, смена сервера, hedge
+class DnsTest {
+    private static final String NAME = "example.test";
+    private static final InetAddress V4 = addr("10.0.0.1");
+    private static final InetAddress V6 = addr("fd00::1");
+
+    private Loop loop;
+    private Thread thread;
+    private final List<Stub> stubs = new ArrayList<>();
+
+    @BeforeEach
+    void start() throws Exception {
+        loop = new Loop(0);
+        thread = new Thread(loop, "test-loop");
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        loop.drain(0);
+        thread.join(5000);
+        for (Stub s : stubs) s.close();
+    }
+
+    @Test
+    void retransmitsLostQuery() throws Exception {
+        //первую копию каждого запроса теряем
+        Stub s = stub(n -> n > 1);
+        Dns dns = dns(false, s);
+
+        InetAddress[] got = resolve(dns).get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(new InetAddress[]{V6, V4}, got);
+        assertEquals(2, s.count(Type.A));
+        assertEquals(2, s.count(Type.AAAA));
+        assertEquals(1, s.ids(Type.A).stream().distinct().count(), "retransmit keeps the query id");
+    }
+
+    @Test
+    void rotatesToNextServer() throws Exception {
+        Stub dead = stub(n -> false);
+        Stub live = stub(n -> true);
+        Dns dns = dns(false, dead, live);
+
+        InetAddress[] got = resolve(dns).get(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(new InetAddress[]{V6, V4}, got);
+        assertEquals(1, dead.count(Type.A));
+        assertEquals(1, live.count(Type.A));
+        assertEquals(dead.ids(Type.A), live.ids(Type.A));
+        assertEquals(2, (int) onLoop(() -> dns.servers()[0].timeouts)); //A и AAAA
+        assertEquals(0, (int) onLoop(() -> dns.servers()[1].timeouts));
+    }
+
+    @Test
+    void hedgedQueryGoesToTwoServers() throws Exception {
+        Stub a = stub(n -> true);
+        Stub b = stub(n -> true);
+        Dns dns = dns(true, a, b);
+
+        long t0 = System.nanoTime();
+        InetAddress[] got = resolve(dns).get(5, TimeUnit.SECONDS);
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+
+        assertArrayEquals(new InetAddress[]{V6, V4}, got);
+        assertTrue(ms < Dns.RETRY_MS, "answered without waiting for a retransmit: " + ms + " ms");
+        assertEquals(1, a.count(Type.A));
+        assertEquals(1, b.count(Type.A));
+        assertEquals(a.ids(Type.A), b.ids(Type.A));
+    }
+
+    //A есть, AAAA нет: ответ уходит через RESOLUTION_DELAY, запрос AAAA
+    //больше не перепосылается и не записывает серверу тайм-ауты
+    @Test
+    void finishedLookupStopsPendingQuery() throws Exception {
+        Stub s = new Stub((type, n) -> type == Type.A);
+        stubs.add(s);
+        Dns dns = dns(false, s);
+
+        InetAddress[] got = resolve(dns).get(5, TimeUnit.SECONDS);
+        assertArrayEquals(new InetAddress[]{V4}, got);
+
+        Thread.sleep(Dns.RETRY_MS * 3);
+        assertEquals(1, s.count(Type.AAAA));
+        assertEquals(0, (int) onLoop(() -> dns.servers()[0].timeouts));
+    }
+
+    private Stub stub(IntPredicate answerNth) throws Exception {
+        Stub s = new Stub((type, n) -> answerNth.test(n));
+        stubs.add(s);
+        return s;
+    }
+
+    private Dns dns(boolean hedge, Stub... servers) throws Exception {
+        List<InetSocketAddress> list = new ArrayList<>();
+        for (Stub s : servers) list.add(s.addr());
+        return onLoop(() -> new Dns(loop, list, hedge));
+    }
+
+    private CompletableFuture<InetAddress[]> resolve(Dns dns) {
+        CompletableFuture<InetAddress[]> f = new CompletableFuture<>();
+        Dns.Waiter w = new Dns.Waiter() {
+            @Override public void onDnsOk(InetAddress[] addrs) { f.complete(addrs); }
+            @Override public void onDnsFail() { f.completeExceptionally(new UnknownHostException(NAME)); }
+        };
+        loop.post(() -> {
+            try {
+                dns.resolve(w, NAME);
+            } catch (Exception e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f;
+    }
+
+    //Dns и его таймеры трогает только поток цикла
+    private <T> T onLoop(Callable<T> c) throws Exception {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        loop.post(() -> {
+            try {
+                f.complete(c.call());
+            } catch (Exception e) {
+                f.completeExceptionally(e);
+            }
+        });
+        return f.get(5, TimeUnit.SECONDS);
+    }
+
+    private static InetAddress addr(String s) {
+        try {
+            return InetAddress.getByName(s);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    interface Policy {
+        //n - какая по счету копия запроса с этим id пришла (с 1)
+        boolean answer(int type, int n);
+    }
+
+    //заглушка резолвера: пишет, что пришло, и отвечает одной записью A/AAAA
+    static final class Stub implements AutoCloseable {
+        private final DatagramSocket sock = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        private final Policy policy;
+        private final List<int[]> seen = new CopyOnWriteArrayList<>(); //{type, id}
+        private final Thread thread = new Thread(this::serve, "dns-stub");
+
+        Stub(Policy policy) throws SocketException {
+            this.policy = policy;
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress addr() {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), sock.getLocalPort());
+        }
+
+        int count(int type) {
+            return (int) seen.stream().filter(q -> q[0] == type).count();
+        }
+
+        List<Integer> ids(int type) {
+            return seen.stream().filter(q -> q[0] == type).map(q -> q[1]).toList();
+        }
+
+        private void serve() {
+            byte[] buf = new byte[512];
+            while (!sock.isClosed()) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    sock.receive(p);
+                    Message q = new Message(Arrays.copyOf(buf, p.getLength()));
+                    int id = q.getHeader().getID();
+                    int type = q.getQuestion().getType();
+                    int n = 1 + (int) seen.stream().filter(s -> s[0] == type && s[1] == id).count();
+                    seen.add(new int[]{type, id});
+                    if (!policy.answer(type, n)) continue;
+
+                    byte[] out = reply(q).toWire();
+                    sock.send(new DatagramPacket(out, out.length, p.getSocketAddress()));
+                } catch (Exception e) {
+                    if (sock.isClosed()) return;
+                }
+            }
+        }
+
+        private static Message reply(Message q) {
+            org.xbill.DNS.Record question = q.getQuestion();
+            Message r = new Message(q.getHeader().getID());
+            r.getHeader().setFlag(Flags.QR);
+            r.addRecord(question, Section.QUESTION);
+            Name name = question.getName();
+            r.addRecord(question.getType() == Type.A
+                    ? new ARecord(name, DClass.IN, 60, V4)
+                    : new AAAARecord(name, DClass.IN, 60, V6), Section.ANSWER);
+            return r;
+        }
+
+        @Override
+        public void close() {
+            sock.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package socks5;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//FlowLog -> файлы -> FlowTool: поля записи, ротация и KEEP. каталог, размер файла и
+//KEEP - из pom.xml. после init пишут и Conn других тестов, поэтому свои записи
+//отличаются по id
+class FlowLogTest {
+    private static final int BASE = 1_000_000_000;
+    private static final int PER_FILE = (int) (FlowLog.SEGMENT / FlowLog.REC) - 1;
+
+    @BeforeAll
+    static void start() throws IOException {
+        assertTrue(FlowLog.ENABLED, "socks5.flows is not set for tests");
+        Path dir = Paths.get(FlowLog.DIR);
+        if (Files.isDirectory(dir)) {
+            for (Path p : FlowLog.segments(dir)) Files.delete(p);
+        }
+        FlowLog.init();
+    }
+
+    @Test
+    void recordRoundTripAndRotation() throws Exception {
+        InetAddress client = InetAddress.getByName("192.0.2.7");
+        InetAddress remote = InetAddress.getByName("2001:db8::5");
+        String longName = "a".repeat(20) + ".very-long-subdomain-label.example.com";
+        long now = System.currentTimeMillis(), nanos = System.nanoTime();
+
+        int total = PER_FILE * (FlowLog.KEEP + 2);
+        for (int i = 0; i < total; i++) {
+            boolean named = i % 2 == 0;
+            FlowLog.record(BASE + i, now + i, nanos, 100 + i, named ? 200 + i : -1, 300 + i,
+                    1000L * i, 2000L * i, 1, (byte) 0, Conn.St.RELAY.ordinal(), 443, i % 3 == 0,
+                    client, remote, named ? (i == total - 2 ? longName : "host" + i + ".test") : null);
+        }
+        FlowLog.flush();
+
+        ArrayList<Path> files = FlowLog.segments(Paths.get(FlowLog.DIR));
+        assertEquals(FlowLog.KEEP, files.size(), files.toString());
+
+        List<Integer> ids = new ArrayList<>();
+        FlowTool.read(files, f -> {
+            if (f.id < BASE) return;
+            int i = f.id - BASE;
+            ids.add(i);
+            boolean named = i % 2 == 0;
+            assertEquals(now + i, f.acceptMs);
+            assertEquals(100 + i, f.handshakeUs);
+            assertEquals(named ? 200 + i : -1, f.dnsUs);
+            assertEquals(300 + i, f.connectUs);
+            assertEquals(1000L * i, f.up);
+            assertEquals(2000L * i, f.down);
+            assertEquals(1, f.cmd);
+            assertEquals(0, f.rep);
+            assertEquals(Conn.St.RELAY.ordinal(), f.state);
+            assertEquals(443, f.port);
+            assertEquals(i % 3 == 0, f.virtual);
+            assertEquals(client, f.client);
+            assertEquals(remote, f.remote);
+            assertTrue(f.closeUs >= 0);
+            if (!named) assertNull(f.name);
+            else if (i == total - 2) assertEquals(longName.substring(longName.length() - FlowLog.NAME), f.name);
+            else assertEquals("host" + i + ".test", f.name);
+        });
+
+        //старые файлы удалены, оставшиеся - подряд до последней записи
+        assertFalse(ids.isEmpty());
+        assertEquals(total - 1, ids.get(ids.size() - 1));
+        assertTrue(ids.get(0) > 0, "oldest records survived rotation");
+        assertTrue(ids.size() <= PER_FILE * FlowLog.KEEP);
+        for (int k = 1; k < ids.size(); k++) assertEquals(ids.get(k - 1) + 1, ids.get(k));
+    }
+
+    //dump - то, что видит человек
+    @Test
+    void toolDumpsRecords() throws Exception {
+        FlowLog.record(BASE - 1, System.currentTimeMillis(), System.nanoTime(), 1500, -1, 2500, 10, 20,
+                1, (byte) 5, Conn.St.CONNECT.ordinal(), 80, false,
+                InetAddress.getByName("198.51.100.1"), InetAddress.getByName("203.0.113.9"), null);
+        FlowLog.flush();
+
+        PrintStream old = System.out;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buf, true, StandardCharsets.UTF_8));
+        try {
+            FlowTool.main(new String[]{"dump", FlowLog.DIR});
+        } finally {
+            System.setOut(old);
+        }
+        String line = buf.toString(StandardCharsets.UTF_8).lines()
+                .filter(l -> l.contains(" #" + (BASE - 1) + " ")).findFirst().orElse(null);
+        assertNotNull(line, buf.toString(StandardCharsets.UTF_8));
+        assertTrue(line.contains("198.51.100.1 -> 203.0.113.9:80"), line);
+        assertTrue(line.contains("rep 5 (CONNECT)"), line);
+        //FlowTool печатает миллисекунды в локали по умолчанию
+        String hs = String.format("%.3f", 1.5), connect = String.format("%.3f", 1.0);
+        assertTrue(line.contains("hs=" + hs + " dns=- connect=" + connect), line);
+        assertTrue(line.contains("up=10 down=20"), line);
+    }
+}
@@ -0,0 +1,140 @@
+package socks5;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//автомат Handshake на сообщениях, нарезанных как угодно: по байту, кусками поперек
+//полей, несколько сообщений в одном чтении
+class HandshakeTest {
+    //приветствие (без авторизации и RFC 1929), запрос CONNECT example.com:443
+    private static final byte[] GREETING = {5, 2, 0, 2};
+    private static final byte[] REQUEST = {5, 1, 0, 3, 11, 'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm', 1, (byte) 187};
+    private static final byte[] AUTH = {1, 4, 'u', 's', 'e', 'r', 6, 's', 'e', 'c', 'r', 'e', 't'};
+
+    @Test
+    void byteByByte() {
+        Handshake hs = new Handshake();
+        ByteBuffer in = ByteBuffer.allocate(512);
+        assertEquals(List.of(Handshake.GREETING), feed(hs, in, GREETING, 1));
+        assertTrue(hs.offered(0));
+        assertTrue(hs.offered(2));
+        assertFalse(hs.offered(1));
+        assertEquals(List.of(Handshake.REQUEST), feed(hs, in, REQUEST, 1));
+        assertRequest(hs);
+    }
+
+    //куски рвут имя и порт посередине; каждый - отдельное чтение
+    @Test
+    void chunksAcrossFields() {
+        for (int chunk = 2; chunk < REQUEST.length; chunk++) {
+            Handshake hs = new Handshake();
+            ByteBuffer in = ByteBuffer.allocate(512);
+            assertEquals(List.of(Handshake.GREETING), feed(hs, in, GREETING, chunk));
+            assertEquals(List.of(Handshake.REQUEST), feed(hs, in, REQUEST, chunk), "chunk " + chunk);
+            assertRequest(hs);
+        }
+    }
+
+    //клиент не ждет ответа: приветствие и запрос одним чтением, запрос с началом в хвосте
+    @Test
+    void pipelinedMessages() {
+        Handshake hs = new Handshake();
+        ByteBuffer in = ByteBuffer.allocate(512);
+        byte[] both = concat(GREETING, REQUEST);
+        in.put(both, 0, GREETING.length + 3);
+        assertEquals(Handshake.GREETING, hs.next(in));
+        //хвост сдвинут в начало буфера, место под остаток есть
+        assertEquals(3, in.position());
+        assertEquals(Handshake.MORE, hs.next(in));
+        in.put(both, GREETING.length + 3, REQUEST.length - 3);
+        assertEquals(Handshake.REQUEST, hs.next(in));
+        assertRequest(hs);
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    void authSplitInsideStrings() {
+        Handshake hs = new Handshake();
+        ByteBuffer in = ByteBuffer.allocate(512);
+        assertEquals(List.of(Handshake.GREETING), feed(hs, in, GREETING, GREETING.length));
+        hs.expectAuth();
+        assertEquals(List.of(Handshake.AUTH), feed(hs, in, AUTH, 3));
+        assertEquals("user", hs.userName());
+        assertArrayEquals("secret".getBytes(), hs.password());
+        //после ответа на авторизацию - запрос
+        assertEquals(List.of(Handshake.REQUEST), feed(hs, in, REQUEST, 5));
+        assertRequest(hs);
+    }
+
+    @Test
+    void ipv6Request() {
+        Handshake hs = new Handshake();
+        ByteBuffer in = ByteBuffer.allocate(512);
+        byte[] req = new byte[4 + 16 + 2];
+        req[0] = 5; req[1] = 1; req[3] = 4;
+        req[4] = (byte) 0xfd; req[19] = 1;
+        req[21] = 80;
+        feed(hs, in, GREETING, 4);
+        assertEquals(List.of(Handshake.REQUEST), feed(hs, in, req, 7));
+        assertEquals(4, hs.atyp);
+        assertEquals(80, hs.port);
+        assertEquals((byte) 0xfd, hs.ip()[0]);
+        assertEquals(1, hs.ip()[15]);
+    }
+
+    @Test
+    void errorsAfterPartialInput() {
+        Handshake hs = new Handshake();
+        ByteBuffer in = ByteBuffer.allocate(512);
+        assertEquals(List.of(Handshake.ERROR), feed(hs, in, new byte[]{4, 1, 0}, 1));
+        assertEquals(1, hs.rep);
+
+        hs = new Handshake();
+        in.clear();
+        feed(hs, in, GREETING, 1);
+        //ATYP 0x05 не существует
+        assertEquals(List.of(Handshake.ERROR), feed(hs, in, new byte[]{5, 1, 0, 5}, 1));
+        assertEquals(8, hs.rep);
+
+        hs = new Handshake();
+        in.clear();
+        feed(hs, in, GREETING, 1);
+        //пустое имя
+        assertEquals(List.of(Handshake.ERROR), feed(hs, in, new byte[]{5, 1, 0, 3, 0}, 2));
+        assertEquals(8, hs.rep);
+    }
+
+    //data кусками по chunk байт, после каждого - разбор, как Conn.parse; результаты кроме MORE
+    private static List<Integer> feed(Handshake hs, ByteBuffer in, byte[] data, int chunk) {
+        List<Integer> out = new ArrayList<>();
+        for (int off = 0; off < data.length; off += chunk) {
+            in.put(data, off, Math.min(chunk, data.length - off));
+            int r;
+            while ((r = hs.next(in)) != Handshake.MORE) {
+                out.add(r);
+                if (r == Handshake.ERROR) return out;
+            }
+        }
+        return out;
+    }
+
+    private static void assertRequest(Handshake hs) {
+        assertEquals(1, hs.cmd);
+        assertEquals(3, hs.atyp);
+        assertEquals("example.com", hs.domain());
+        assertTrue(hs.validName());
+        assertEquals(443, hs.port);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = new byte[a.length + b.length];
+        System.arraycopy(a, 0, r, 0, a.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+}
@@ -0,0 +1,32 @@
+package socks5;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//границы корзин для экспорта Prometheus: le - это <=
+class HistoTest {
+
+    @Test
+    void valueOnBoundCountsInThatBucket() {
+        Histo h = new Histo();
+        h.record(1024);
+        h.record(1025);
+        h.record(512);
+        assertEquals(0, h.countAtMost(256));
+        assertEquals(1, h.countAtMost(512));
+        assertEquals(2, h.countAtMost(1024));
+        assertEquals(3, h.countAtMost(2048));
+    }
+
+    @Test
+    void quantileIsUpperBoundOfBucket() {
+        Histo h = new Histo();
+        for (int i = 0; i < 100; i++) h.record(1024);
+        assertEquals(1024, h.quantile(0.5));
+        h.record(0);
+        assertEquals(1, h.quantile(0.001)); //0 и 1 - одна корзина
+        assertEquals(101, h.count());
+        assertEquals(102400, h.sum());
+    }
+}
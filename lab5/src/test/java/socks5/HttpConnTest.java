@@ -0,0 +1,277 @@
+package socks5;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//режим HTTP против локальной заглушки origin. размеры кеша и простой - в pom.xml
+//(surefire): кеш 1 МБ, ответ до 256 КБ, 2 записи, простой 1 с
+class HttpConnTest {
+    private static final long WAIT_MS = 5000;
+
+    private final Loop[] loops = new Loop[2];
+    private final Thread[] threads = new Thread[2];
+    private ServerSocketChannel front;
+    private Origin origin;
+
+    @BeforeAll
+    static void cache() throws IOException {
+        HttpCache.init();
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+            threads[i] = new Thread(loops[i], "test-loop-" + i);
+            threads[i].start();
+        }
+        front = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        origin = new Origin();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        for (Loop l : loops) l.drain(0);
+        for (Thread t : threads) t.join(WAIT_MS);
+        front.close();
+        origin.close();
+    }
+
+    //второй клиент того же URL, пришедший во время загрузки, читает ее же, а не свою
+    @Test
+    void clientsAttachToDownloadInProgress() throws Exception {
+        byte[] body = body(100_000);
+        CountDownLatch gate = origin.serve("/shared", body, true);
+
+        Socket a = get("/shared", 0);
+        a.getInputStream().read(); //загрузка идет, первая часть уже в кеше
+        Socket b = get("/shared", 1);
+        waitFor(() -> metric(1, m -> m.httpAttached) == 1);
+        gate.countDown();
+
+        byte[] expected = origin.response(body);
+        assertArrayEquals(tail(expected, 1), readAll(a));
+        assertArrayEquals(expected, readAll(b));
+        assertEquals(1, origin.requests("/shared"));
+
+        //готовая запись - из кеша
+        assertArrayEquals(expected, readAll(get("/shared", 0)));
+        assertEquals(1, origin.requests("/shared"));
+        assertEquals(1, metric(0, m -> m.httpHits));
+    }
+
+    //ответ больше .object не обрезается: остаток идет подключенным клиентам через кольцо
+    @Test
+    void oversizedResponseStreamsThroughSpill() throws Exception {
+        byte[] body = body(1 << 20);
+        CountDownLatch gate = origin.serve("/big", body, true);
+
+        Socket a = get("/big", 0);
+        a.getInputStream().read();
+        Socket b = get("/big", 1);
+        waitFor(() -> metric(1, m -> m.httpAttached) == 1);
+        gate.countDown();
+
+        //b читает из другого потока: загрузка ждет самого медленного
+        byte[] expected = origin.response(body);
+        Future<byte[]> fb = ForkJoinPool.commonPool().submit(() -> readAll(b));
+        assertArrayEquals(tail(expected, 1), readAll(a));
+        assertArrayEquals(expected, fb.get(WAIT_MS, TimeUnit.MILLISECONDS));
+
+        //в кеше не осталось - следующий запрос грузит заново
+        assertArrayEquals(expected, readAll(get("/big", 0)));
+        assertEquals(2, origin.requests("/big"));
+    }
+
+    //.entries ограничивает и идущие загрузки: лишняя идет мимо индекса
+    @Test
+    void entryLimitCountsDownloadsInProgress() throws Exception {
+        byte[] body = body(10_000);
+        String[] paths = {"/e1", "/e2", "/e3"};
+        CountDownLatch[] gates = new CountDownLatch[paths.length];
+        Socket[] clients = new Socket[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            gates[i] = origin.serve(paths[i], body, true);
+            clients[i] = get(paths[i], 0);
+            clients[i].getInputStream().read();
+        }
+        assertEquals(HttpCache.MAX_ENTRIES, HttpCache.entries());
+        for (CountDownLatch g : gates) g.countDown();
+
+        byte[] expected = origin.response(body);
+        for (Socket c : clients) assertArrayEquals(tail(expected, 1), readAll(c));
+
+        //первые две закешированы, третья - нет
+        assertArrayEquals(expected, readAll(get("/e1", 0)));
+        assertArrayEquals(expected, readAll(get("/e3", 0)));
+        assertEquals(1, origin.requests("/e1"));
+        assertEquals(2, origin.requests("/e3"));
+    }
+
+    //клиент, не читающий ответ, закрывается по простою и отпускает запись
+    @Test
+    void stalledClientTimesOut() throws Exception {
+        byte[] body = body(200_000);
+        origin.serve("/stuck", body, false);
+
+        Socket s = new Socket();
+        s.setReceiveBufferSize(4096);
+        s.connect(front.getLocalAddress());
+        SocketChannel c = front.accept();
+        c.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        c.configureBlocking(false);
+        loops[0].handoffHttp(c);
+        request(s, "/stuck");
+
+        waitFor(() -> metric(0, m -> m.httpOpen) == 0);
+        s.close();
+    }
+
+    private Socket get(String path, int loop) throws Exception {
+        Socket s = new Socket();
+        s.connect(front.getLocalAddress());
+        SocketChannel c = front.accept();
+        c.configureBlocking(false);
+        c.socket().setTcpNoDelay(true);
+        loops[loop].handoffHttp(c);
+        request(s, path);
+        s.setSoTimeout((int) WAIT_MS);
+        return s;
+    }
+
+    private void request(Socket s, String path) throws IOException {
+        String req = "GET http://127.0.0.1:" + origin.port() + path + " HTTP/1.0\r\n\r\n";
+        s.getOutputStream().write(req.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] readAll(Socket s) throws IOException {
+        try (s) {
+            return s.getInputStream().readAllBytes();
+        }
+    }
+
+    private static byte[] tail(byte[] b, int from) {
+        byte[] t = new byte[b.length - from];
+        System.arraycopy(b, from, t, 0, t.length);
+        return t;
+    }
+
+    private static byte[] body(int n) {
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) b[i] = (byte) (i * 31 + (i >>> 8));
+        return b;
+    }
+
+    interface Counter {
+        long of(Metrics m);
+    }
+
+    //Metrics пишет только поток цикла
+    private long metric(int loop, Counter c) throws Exception {
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        loops[loop].post(() -> f.complete(c.of(loops[loop].metrics())));
+        return f.get(WAIT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void waitFor(Callable<Boolean> cond) throws Exception {
+        long until = System.currentTimeMillis() + WAIT_MS;
+        while (!cond.call()) {
+            if (System.currentTimeMillis() > until) fail("condition not reached in " + WAIT_MS + " ms");
+            Thread.sleep(20);
+        }
+    }
+
+    //заглушка origin: ответ 200 с заданным телом; с gate - первые байты сразу,
+    //остальное после gate.countDown(), чтобы загрузка заведомо шла
+    static final class Origin implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+        private final Map<String, CountDownLatch> gates = new ConcurrentHashMap<>();
+        private final Map<String, Integer> requests = new ConcurrentHashMap<>();
+
+        Origin() throws IOException {
+            Thread t = new Thread(this::accept, "origin-stub");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int port() { return server.getLocalPort(); }
+
+        int requests(String path) { return requests.getOrDefault(path, 0); }
+
+        CountDownLatch serve(String path, byte[] body, boolean gated) {
+            CountDownLatch g = new CountDownLatch(gated ? 1 : 0);
+            bodies.put(path, body);
+            gates.put(path, g);
+            return g;
+        }
+
+        byte[] response(byte[] body) {
+            byte[] head = ("HTTP/1.0 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            byte[] r = new byte[head.length + body.length];
+            System.arraycopy(head, 0, r, 0, head.length);
+            System.arraycopy(body, 0, r, head.length, body.length);
+            return r;
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    Thread t = new Thread(() -> handle(s), "origin-conn");
+                    t.setDaemon(true);
+                    t.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket s) {
+            try (s) {
+                String path = path(s.getInputStream());
+                requests.merge(path, 1, Integer::sum);
+                byte[] r = response(bodies.get(path));
+                OutputStream out = s.getOutputStream();
+                int first = Math.min(r.length, 1000);
+                out.write(r, 0, first);
+                out.flush();
+                gates.get(path).await();
+                out.write(r, first, r.length - first);
+            } catch (Exception ignored) {}
+        }
+
+        //"GET /path HTTP/1.0" и заголовки до пустой строки
+        private static String path(InputStream in) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                head.write(c);
+                if (head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) break;
+            }
+            return head.toString(StandardCharsets.ISO_8859_1).split(" ")[1];
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (CountDownLatch g : gates.values()) g.countDown();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package socks5;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//Relay сам по себе: получатель не читает, пока у relay не появится недописанный
+//хвост, потом все должно дойти без потерь. socks5.relay.buf.max в pom.xml
+//меньше 32 КБ, буфера Direct по умолчанию
+class RelayTest {
+    private static final long WAIT_MS = 5000;
+    private static final int SIZE = 512 * 1024;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"copy", "direct"})
+    void tailSurvivesFullReceiver(String engine) throws Exception {
+        assertTrue(BufPool.MAX < 32 * 1024, "socks5.relay.buf.max is not set for tests");
+        assertTrue(Relay.BUF_CAP <= BufPool.MAX);
+        byte[] data = new byte[SIZE];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 31 + (i >>> 12));
+
+        BufPool pool = new BufPool();
+        try (ServerSocketChannel ss = ServerSocketChannel.open()
+                .bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            SocketChannel[] in = pair(ss), out = pair(ss);
+            SocketChannel src = in[1], dst = out[0];
+            dst.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+            src.configureBlocking(false);
+            dst.configureBlocking(false);
+            Relay r = "direct".equals(engine)
+                    ? new Relay.Direct(src, dst, ByteBuffer.allocateDirect(Relay.BUF_CAP), pool)
+                    : new Relay.Copy(src, dst, pool);
+
+            Future<?> w = ForkJoinPool.commonPool().submit(() -> {
+                OutputStream o = in[0].socket().getOutputStream();
+                o.write(data);
+                in[0].shutdownOutput();
+                return null;
+            });
+
+            //пока получатель стоит - до недописанного хвоста
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (!r.hasPending()) {
+                assertTrue(System.currentTimeMillis() < deadline, "receiver never filled up");
+                if (r.canRead()) r.read(Integer.MAX_VALUE);
+            }
+
+            Future<byte[]> got = ForkJoinPool.commonPool().submit(() -> {
+                InputStream i = out[1].socket().getInputStream();
+                ByteArrayOutputStream b = new ByteArrayOutputStream();
+                i.transferTo(b);
+                return b.toByteArray();
+            });
+            deadline = System.currentTimeMillis() + WAIT_MS;
+            while (!r.eof || r.hasPending()) {
+                assertTrue(System.currentTimeMillis() < deadline, "relay did not finish");
+                if (r.hasPending()) r.write(null);
+                if (r.canRead()) r.read(Integer.MAX_VALUE);
+            }
+            r.shutdownIfDrained();
+            r.release();
+
+            w.get(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertArrayEquals(data, got.get(WAIT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(SIZE, r.bytes);
+            for (SocketChannel c : in) c.close();
+            for (SocketChannel c : out) c.close();
+        }
+    }
+
+    //блокирующая пара: [0] - подключившийся, [1] - принятый
+    private static SocketChannel[] pair(ServerSocketChannel ss) throws IOException {
+        SocketChannel a = SocketChannel.open(ss.getLocalAddress());
+        SocketChannel b = ss.accept();
+        return new SocketChannel[]{a, b};
+    }
+}
@@ -0,0 +1,115 @@
+package socks5;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//порядок файла решает при любом виде правила: имя, CIDR назначения, src, "*";
+//перезагрузка подменяет таблицу целиком, битый файл оставляет старую
+class RulesTest {
+    private static final InetAddress CLIENT = addr("10.1.2.3");
+    private static final InetAddress OTHER = addr("172.16.0.9");
+
+    //таблица общая на JVM, а Conn в других тестах спрашивает ее же
+    @AfterEach
+    void clear() throws IOException {
+        Rules.load(List.of());
+    }
+
+    @Test
+    void domainsMatchSubdomainsCaseInsensitive() throws IOException {
+        Rules.load(List.of(
+                "deny *.ads.example.com",
+                "allow example.com port=443",
+                "deny example.com"));
+        assertEquals(Rules.DENY, action("tracker.ads.example.com", 443));
+        assertEquals(Rules.DENY, action("ADS.Example.COM.", 443));
+        assertEquals(Rules.ALLOW, action("www.example.com", 443));
+        assertEquals(Rules.DENY, action("www.example.com", 80));
+        //не поддомен, а другое имя
+        assertEquals(Rules.ALLOW, action("notexample.com", 80));
+        assertEquals(0, Rules.match("notexample.com", 80, CLIENT).line);
+    }
+
+    @Test
+    void cidrLongestPrefixDoesNotBeatFileOrder() throws IOException {
+        Rules.load(List.of(
+                "deny 10.0.0.0/8",
+                "allow 10.9.0.0/16",
+                "allow 192.168.1.0/24 port=22",
+                "deny 192.168.0.0/16",
+                "deny 2001:db8::/32"));
+        //первое подходящее по файлу, хотя /16 уже
+        assertEquals(1, Rules.match(addr("10.9.1.1"), 80, CLIENT).line);
+        assertEquals(Rules.ALLOW, action(addr("192.168.1.5"), 22));
+        assertEquals(Rules.DENY, action(addr("192.168.1.5"), 23));
+        assertEquals(Rules.DENY, action(addr("2001:db8::1"), 443));
+        assertEquals(Rules.ALLOW, action(addr("2001:db9::1"), 443));
+        //байты запроса - то же, что InetAddress
+        assertEquals(Rules.DENY, Rules.match(new byte[]{10, 0, 0, 1}, 80, CLIENT).action);
+        //после DNS: только deny по CIDR
+        assertNotNull(Rules.denied(addr("10.20.30.40"), 80, CLIENT));
+        assertNull(Rules.denied(addr("8.8.8.8"), 80, CLIENT));
+    }
+
+    @Test
+    void sourceAndWildcardRulesKeepFileOrder() throws IOException {
+        Rules.load(List.of(
+                "route direct intranet.local src=10.0.0.0/8",
+                "deny * src=172.16.0.0/12",
+                "deny intranet.local",
+                "allow *"));
+        Rules.Rule r = Rules.match("intranet.local", 80, CLIENT);
+        assertEquals(Rules.ROUTE, r.action);
+        assertNull(r.via);
+        //src-правило "*" строкой раньше имени
+        assertEquals(2, Rules.match("intranet.local", 80, OTHER).line);
+        assertEquals(2, Rules.match(addr("1.1.1.1"), 80, OTHER).line);
+        assertEquals(3, Rules.match("intranet.local", 80, addr("192.0.2.1")).line);
+        assertEquals(4, Rules.match("example.org", 80, CLIENT).line);
+        //клиент без адреса не подходит ни под одно src=
+        assertEquals(3, Rules.match("intranet.local", 80, null).line);
+    }
+
+    @Test
+    void reloadSwapsTableAndBadFileKeepsOld() throws IOException {
+        Rules.load(List.of("deny example.com"));
+        Object before = Rules.table();
+        assertEquals(Rules.DENY, action("example.com", 80));
+
+        Rules.load(List.of("allow example.com", "deny *"));
+        assertNotSame(before, Rules.table());
+        assertEquals(2, Rules.size());
+        assertEquals(Rules.ALLOW, action("example.com", 80));
+        assertEquals(Rules.DENY, action("example.net", 80));
+
+        Object good = Rules.table();
+        IOException e = assertThrows(IOException.class, () -> Rules.load(List.of("allow example.org", "permit *")));
+        assertTrue(e.getMessage().startsWith("line 2"), e.getMessage());
+        assertThrows(IOException.class, () -> Rules.load(List.of("deny 10.0.0.0/33")));
+        assertThrows(IOException.class, () -> Rules.load(List.of("route nowhere example.com")));
+        assertSame(good, Rules.table());
+        assertEquals(Rules.ALLOW, action("example.com", 80));
+
+        //пустой файл - решает socks5.rules.default
+        Rules.load(List.of("# nothing"));
+        assertEquals(0, Rules.match("example.net", 80, CLIENT).line);
+    }
+
+    private static int action(Object target, int port) {
+        return Rules.match(target, port, CLIENT).action;
+    }
+
+    private static InetAddress addr(String s) {
+        try {
+            return InetAddress.getByName(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package socks5;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//ведро GCRA на заданных моментах времени и общее ведро IP (socks5.rate.ip из pom.xml)
+class ShaperTest {
+    private static final long MS = 1_000_000;
+    private static final long RATE = 1_000_000; //1 МБ/с
+
+    @Test
+    void burstThenRate() {
+        Shaper.Bucket b = new Shaper.Bucket(RATE);
+        long t0 = System.nanoTime();
+        long burst = RATE * Shaper.BURST_MS / 1000;
+        assertEquals(burst, b.available(t0));
+        b.take(burst, t0);
+        assertEquals(0, b.available(t0));
+        assertEquals(RATE / 10, b.available(t0 + 100 * MS));
+        //запас не копится дольше burst
+        assertEquals(burst, b.available(t0 + 10_000 * MS));
+        //MIN_CHUNK при 1 МБ/с - через 1.46 мс
+        assertEquals(1_460_000, b.waitNs(t0));
+    }
+
+    //сколько ни дергать, за 10 с проходит rate * 10 + burst, не больше
+    @Test
+    void longRunMatchesRate() {
+        Shaper.Bucket b = new Shaper.Bucket(RATE);
+        long t0 = System.nanoTime(), sent = 0;
+        for (long t = t0; t <= t0 + 10_000 * MS; t += 3 * MS) {
+            long n = Math.min(64 * 1024, b.available(t));
+            if (n > 0) {
+                b.take(n, t);
+                sent += n;
+            }
+        }
+        long expected = RATE * 10 + RATE * Shaper.BURST_MS / 1000;
+        assertTrue(Math.abs(sent - expected) < RATE / 100, "sent " + sent + ", expected " + expected);
+    }
+
+    @Test
+    void ipBucketIsSharedAndReleased() throws Exception {
+        assertTrue(Shaper.PER_IP > 0, "socks5.rate.ip is not set for tests");
+        InetAddress ip = InetAddress.getByName("192.0.2.1");
+        Shaper.Chain a = Shaper.attach(ip, null), b = Shaper.attach(ip, null);
+        long now = System.nanoTime();
+        long full = a.available(now);
+        a.charge(full / 2, now);
+        assertTrue(b.available(now) <= full - full / 2);
+        a.release();
+        b.release();
+        //оба ушли - у следующего свое, полное ведро
+        Shaper.Chain c = Shaper.attach(ip, null);
+        assertTrue(c.available(System.nanoTime()) >= full);
+        c.release();
+    }
+
+    //адрес клиента не достался - уровень IP пропускается, а не NPE
+    @Test
+    void missingAddressSkipsIpLevel() {
+        Shaper.Chain c = Shaper.attach(null, null);
+        assertNull(c);
+        c = Shaper.attach(null, "user");
+        assertNull(c);
+    }
+}
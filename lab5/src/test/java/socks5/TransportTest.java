@@ -0,0 +1,212 @@
+package socks5;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+//один и тот же путь Conn (рукопожатие, CONNECT, BIND, ASSOCIATE) на обоих транспортах
+//цикла. uring есть только в сборке mvn -Puring (с флагами JVM из профиля), без нее
+//такие случаи пропускаются
+class TransportTest {
+    private static final long WAIT_MS = 5000;
+
+    private Loop loop;
+    private Thread thread;
+    private ServerSocketChannel front;
+    private ServerSocket echo;
+    private DatagramSocket udpEcho;
+
+    private void start(String kind) throws Exception {
+        Transport t = "uring".equals(kind) ? Transport.uring() : new SelectorTransport();
+        assumeTrue(t != null, () -> "io_uring transport unavailable: " + Transport.unavailable());
+        loop = new Loop(0, t);
+        thread = new Thread(loop, "test-loop");
+        thread.start();
+        front = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        if (loop != null) {
+            loop.drain(0);
+            thread.join(WAIT_MS);
+            front.close();
+        }
+        if (echo != null) echo.close();
+        if (udpEcho != null) udpEcho.close();
+    }
+
+    //данные сразу за запросом, 1 МБ в обе стороны, half-close доходит до цели и обратно
+    @ParameterizedTest
+    @ValueSource(strings = {"selector", "uring"})
+    void connectRelaysBothWays(String kind) throws Exception {
+        start(kind);
+        int port = echoServer();
+        Socket s = client();
+        byte[] early = "early".getBytes();
+        OutputStream out = s.getOutputStream();
+        ByteBuffer req = ByteBuffer.allocate(3 + 10 + early.length);
+        req.put(new byte[]{5, 1, 0}).put(request(1, port)).put(early);
+        out.write(req.array());
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        assertArrayEquals(new byte[]{5, 0}, read(in, 2));
+        assertEquals(0, read(in, 10)[1]);
+        assertArrayEquals(early, read(in, early.length));
+
+        byte[] data = new byte[1 << 20];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 7 + (i >>> 10));
+        Future<?> w = ForkJoinPool.commonPool().submit(() -> {
+            out.write(data);
+            s.shutdownOutput();
+            return null;
+        });
+        assertArrayEquals(data, read(in, data.length));
+        w.get(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(-1, in.read());
+        s.close();
+    }
+
+    //первый ответ - порт, куда подключиться, второй - кто подключился, дальше туннель
+    @ParameterizedTest
+    @ValueSource(strings = {"selector", "uring"})
+    void bindRelaysAcceptedPeer(String kind) throws Exception {
+        start(kind);
+        Socket s = client();
+        s.getOutputStream().write(new byte[]{5, 1, 0});
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        assertArrayEquals(new byte[]{5, 0}, read(in, 2));
+        s.getOutputStream().write(request(2, 0));
+        byte[] first = read(in, 10);
+        assertEquals(0, first[1]);
+        int port = (first[8] & 0xFF) << 8 | first[9] & 0xFF;
+
+        try (Socket peer = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            peer.setSoTimeout((int) WAIT_MS);
+            byte[] second = read(in, 10);
+            assertEquals(0, second[1]);
+            assertEquals(peer.getLocalPort(), (second[8] & 0xFF) << 8 | second[9] & 0xFF);
+
+            s.getOutputStream().write("to peer".getBytes());
+            assertArrayEquals("to peer".getBytes(), read(new DataInputStream(peer.getInputStream()), 7));
+            peer.getOutputStream().write("to client".getBytes());
+            assertArrayEquals("to client".getBytes(), read(in, 9));
+        }
+        assertEquals(-1, in.read());
+        s.close();
+    }
+
+    //датаграмма с заголовком SOCKS уходит цели, ответ приходит обратно с ее адресом
+    @ParameterizedTest
+    @ValueSource(strings = {"selector", "uring"})
+    void associateRelaysDatagrams(String kind) throws Exception {
+        start(kind);
+        int target = udpEchoServer();
+        Socket s = client();
+        s.getOutputStream().write(new byte[]{5, 1, 0});
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        assertArrayEquals(new byte[]{5, 0}, read(in, 2));
+        s.getOutputStream().write(request(3, 0));
+        byte[] rep = read(in, 10);
+        assertEquals(0, rep[1]);
+        int relay = (rep[8] & 0xFF) << 8 | rep[9] & 0xFF;
+
+        try (DatagramSocket u = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            u.setSoTimeout((int) WAIT_MS);
+            byte[] head = udpHeader(target);
+            byte[] msg = Arrays.copyOf(head, head.length + 4);
+            System.arraycopy("ping".getBytes(), 0, msg, head.length, 4);
+            u.send(new DatagramPacket(msg, msg.length, InetAddress.getLoopbackAddress(), relay));
+
+            DatagramPacket p = new DatagramPacket(new byte[512], 512);
+            u.receive(p);
+            assertArrayEquals(msg, Arrays.copyOf(p.getData(), p.getLength()));
+        }
+        s.close();
+    }
+
+    private Socket client() throws Exception {
+        Socket s = new Socket();
+        s.connect(front.getLocalAddress());
+        s.setSoTimeout((int) WAIT_MS);
+        SocketChannel c = front.accept();
+        c.configureBlocking(false);
+        loop.handoff(c);
+        return s;
+    }
+
+    //запрос cmd к 127.0.0.1:port
+    private static byte[] request(int cmd, int port) {
+        return new byte[]{5, (byte) cmd, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port};
+    }
+
+    private static byte[] udpHeader(int port) {
+        return new byte[]{0, 0, 0, 1, 127, 0, 0, 1, (byte) (port >> 8), (byte) port};
+    }
+
+    private static byte[] read(DataInputStream in, int n) throws IOException {
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return b;
+    }
+
+    private int echoServer() throws IOException {
+        echo = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            while (!echo.isClosed()) {
+                try {
+                    Socket c = echo.accept();
+                    Thread h = new Thread(() -> {
+                        try (c) {
+                            InputStream i = c.getInputStream();
+                            OutputStream o = c.getOutputStream();
+                            byte[] buf = new byte[8192];
+                            int n;
+                            while ((n = i.read(buf)) != -1) o.write(buf, 0, n);
+                            c.shutdownOutput();
+                        } catch (IOException ignored) {}
+                    }, "echo-conn");
+                    h.setDaemon(true);
+                    h.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "echo");
+        t.setDaemon(true);
+        t.start();
+        return echo.getLocalPort();
+    }
+
+    private int udpEchoServer() throws IOException {
+        udpEcho = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[512];
+            while (!udpEcho.isClosed()) {
+                try {
+                    DatagramPacket p = new DatagramPacket(buf, buf.length);
+                    udpEcho.receive(p);
+                    udpEcho.send(new DatagramPacket(p.getData(), p.getLength(), p.getSocketAddress()));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "udp-echo");
+        t.setDaemon(true);
+        t.start();
+        return udpEcho.getLocalPort();
+    }
+}
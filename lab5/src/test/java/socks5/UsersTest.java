@@ -0,0 +1,68 @@
+package socks5;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+//проверка RFC 1929 по таблице: неверный пароль, неизвестное имя, кеш и перечитывание
+class UsersTest {
+    private static final int ITERATIONS = 200_000;
+    private static final byte[] SALT = HexFormat.of().parseHex("00112233445566778899aabbccddeeff");
+
+    @Test
+    void plainAndHashedPasswords() throws Exception {
+        Users.load(List.of("# comment", "alice:wonderland", "bob:" + pbkdf2("builder")));
+        assertTrue(Users.check("alice", "wonderland".getBytes(), 0));
+        assertFalse(Users.check("alice", "wonderlan".getBytes(), 0));
+        assertTrue(Users.check("bob", "builder".getBytes(), 0));
+        assertFalse(Users.check("bob", "Builder".getBytes(), 0));
+        assertFalse(Users.check("carol", "wonderland".getBytes(), 0));
+        assertFalse(Users.check("carol", new byte[0], 0));
+    }
+
+    //неизвестное имя стоит столько же, сколько неверный пароль к записи pbkdf2
+    @Test
+    void unknownUserCostsLikeWrongPassword() throws Exception {
+        Users.load(List.of("bob:" + pbkdf2("builder")));
+        long wrong = Long.MAX_VALUE, unknown = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long t = System.nanoTime();
+            assertFalse(Users.check("bob", ("nope" + i).getBytes(), 0));
+            wrong = Math.min(wrong, System.nanoTime() - t);
+            t = System.nanoTime();
+            assertFalse(Users.check("nobody" + i, ("nope" + i).getBytes(), 0));
+            unknown = Math.min(unknown, System.nanoTime() - t);
+        }
+        assertTrue(unknown * 3 > wrong, "unknown " + unknown / 1000 + " us, wrong password " + wrong / 1000 + " us");
+    }
+
+    //кеш удачных входов не переживает смену записи
+    @Test
+    void cacheIsDroppedOnReload() throws Exception {
+        Users.load(List.of("bob:" + pbkdf2("builder")));
+        assertTrue(Users.check("bob", "builder".getBytes(), 0));
+        assertTrue(Users.check("bob", "builder".getBytes(), 1));
+        assertFalse(Users.check("bob", "other".getBytes(), 1));
+
+        Users.load(List.of("bob:" + pbkdf2("other")));
+        assertFalse(Users.check("bob", "builder".getBytes(), 2));
+        assertTrue(Users.check("bob", "other".getBytes(), 2));
+    }
+
+    @Test
+    void badLinesAreRejected() {
+        assertThrows(java.io.IOException.class, () -> Users.load(List.of("nocolon")));
+        assertThrows(java.io.IOException.class, () -> Users.load(List.of("bob:pbkdf2:1:zz")));
+    }
+
+    private static String pbkdf2(String pass) throws Exception {
+        PBEKeySpec spec = new PBEKeySpec(pass.toCharArray(), SALT, ITERATIONS, 256);
+        byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        return "pbkdf2:" + ITERATIONS + ":" + HexFormat.of().formatHex(SALT) + ":" + HexFormat.of().formatHex(hash);
+    }
+}
@@ -0,0 +1,163 @@
+package socks5;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static java.lang.foreign.ValueLayout.*;
+
+//направление туннеля без копий в JVM (-Dsocks5.relay=splice, профиль uring, транспорт
+//selector): splice(2) src -> pipe -> dst, страницы сокета переходят в pipe и оттуда в
+//сокет получателя внутри ядра. у направления свой pipe (два fd, буфера ядра - только
+//пока в нем данные) с первого чтения до закрытия. ответ SOCKS и данные, пришедшие до
+//туннеля, уходят обычным write перед содержимым pipe
+final class SpliceRelay extends Relay {
+    //емкость pipe по умолчанию в Linux: 16 страниц
+    static final int PIPE = 64 * 1024;
+    private static final int SPLICE_F_MOVE = 1, SPLICE_F_NONBLOCK = 2;
+    private static final int O_NONBLOCK = 0x800, O_CLOEXEC = 0x80000;
+    private static final int EAGAIN = 11;
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final Linker.Option ERRNO = Linker.Option.captureCallState("errno");
+    private static final long ERRNO_AT = Linker.Option.captureStateLayout()
+            .byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+    private static final MethodHandle SPLICE = fn("splice",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+    private static final MethodHandle PIPE2 = fn("pipe2", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle CLOSE = fn("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+
+    private final int srcFd, dstFd;
+    private final BufPool pool;
+    private MemorySegment err;
+    private int rfd = -1, wfd = -1;
+    private int inPipe = 0;
+    //pipe кончился раньше PIPE байт: страницы заняты кусками skb
+    private boolean full = false;
+    private Ring early = null;
+
+    SpliceRelay(SocketChannel src, SocketChannel dst, BufPool pool) throws IOException {
+        super(src, dst);
+        this.srcFd = UringTransport.fd(src);
+        this.dstFd = UringTransport.fd(dst);
+        this.pool = pool;
+    }
+
+    //вызывает Relay один раз: FFM и fd каналов доступны
+    static void probe() throws IOException {
+        try (java.nio.channels.Pipe.SourceChannel p = java.nio.channels.Pipe.open().source()) {
+            UringTransport.fd(p);
+        }
+    }
+
+    @Override boolean canRead() { return !eof && !full && inPipe < PIPE; }
+    @Override boolean hasPending() { return inPipe > 0 || early != null; }
+
+    @Override
+    int read(int max) throws IOException {
+        if (rfd < 0) open();
+        long n = splice(srcFd, wfd, Math.min(max, PIPE - inPipe));
+        if (n == 0) return count(-1);
+        if (n < 0) {
+            if (-n != EAGAIN) throw new IOException("splice from socket failed, errno " + -n);
+            //сокет читается, а pipe не берет - он полон
+            if (inPipe > 0) full = true;
+            return 0;
+        }
+        inPipe += (int) n;
+        //сразу получателю, как Copy и Direct
+        drain();
+        return count((int) n);
+    }
+
+    @Override
+    void preload(ByteBuffer data) {
+        if (early == null) early = pool.get(data.remaining());
+        early.put(data);
+    }
+
+    @Override
+    void write(ByteBuffer head) throws IOException {
+        if (head != null && head.hasRemaining()) {
+            dst.write(head);
+            if (head.hasRemaining()) return;
+        }
+        drain();
+    }
+
+    //сначала то, что пришло до туннеля, потом pipe
+    private void drain() throws IOException {
+        if (early != null) {
+            early.writeTo(dst, null);
+            if (!early.isEmpty()) return;
+            pool.put(early);
+            early = null;
+        }
+        while (inPipe > 0) {
+            long n = splice(rfd, dstFd, inPipe);
+            if (n < 0) {
+                if (-n == EAGAIN) return;
+                throw new IOException("splice to socket failed, errno " + -n);
+            }
+            inPipe -= (int) n;
+            full = false;
+        }
+    }
+
+    @Override
+    void release() {
+        if (early != null) {
+            pool.put(early);
+            early = null;
+        }
+        if (rfd < 0) return;
+        close(rfd);
+        close(wfd);
+        rfd = wfd = -1;
+        inPipe = 0;
+    }
+
+    private void open() throws IOException {
+        Arena auto = Arena.ofAuto();
+        err = auto.allocate(Linker.Option.captureStateLayout());
+        MemorySegment fds = auto.allocate(2 * JAVA_INT.byteSize(), JAVA_INT.byteAlignment());
+        int r;
+        try {
+            r = (int) PIPE2.invokeExact(err, fds, O_NONBLOCK | O_CLOEXEC);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (r < 0) throw new IOException("pipe2 failed, errno " + err.get(JAVA_INT, ERRNO_AT));
+        rfd = fds.getAtIndex(JAVA_INT, 0);
+        wfd = fds.getAtIndex(JAVA_INT, 1);
+    }
+
+    //байт или -errno
+    private long splice(int in, int out, int len) {
+        try {
+            long n = (long) SPLICE.invokeExact(err, in, MemorySegment.NULL, out, MemorySegment.NULL,
+                    (long) len, SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+            return n < 0 ? -err.get(JAVA_INT, ERRNO_AT) : n;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private void close(int fd) {
+        try {
+            int ignored = (int) CLOSE.invokeExact(err, fd);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static MethodHandle fn(String name, FunctionDescriptor fd) {
+        return LINKER.downcallHandle(LINKER.defaultLookup().find(name).orElseThrow(), fd, ERRNO);
+    }
+}
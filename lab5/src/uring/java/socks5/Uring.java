@@ -0,0 +1,286 @@
+package socks5;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.VarHandle;
+
+import static java.lang.foreign.ValueLayout.*;
+
+//кольцо io_uring и вызовы libc, которые нужны UringTransport, через FFM (профиль uring).
+//io_uring_setup/io_uring_enter - через syscall(2), своих оберток в libc у них нет.
+//кольца SQ/CQ и массив SQE отображены в память процесса: SQE пишутся прямо туда и
+//уходят ядру одним io_uring_enter на итерацию цикла, он же ждет завершений (с EXT_ARG -
+//не дольше тика колеса таймеров). кольцом и методами экземпляра пользуется один поток
+final class Uring {
+    //номера io_uring одинаковы на всех архитектурах
+    private static final long SYS_SETUP = 425, SYS_ENTER = 426;
+    private static final int ENTER_GETEVENTS = 1, ENTER_EXT_ARG = 8;
+    private static final int FEAT_SINGLE_MMAP = 1, FEAT_NODROP = 2, FEAT_EXT_ARG = 1 << 8;
+    private static final long OFF_SQES = 0x10000000L;
+    private static final int SQE = 64, CQE = 16;
+
+    static final byte OP_POLL_ADD = 6, OP_ASYNC_CANCEL = 14, OP_READ = 22, OP_SEND = 26, OP_RECV = 27,
+            OP_PROVIDE_BUFFERS = 31;
+    static final byte SQE_BUFFER_SELECT = 1 << 5;
+    static final int CQE_F_BUFFER = 1, CQE_BUFFER_SHIFT = 16;
+
+    static final int EINTR = 4, EAGAIN = 11, EBUSY = 16, ETIME = 62, ENOBUFS = 105, ECANCELED = 125;
+    static final int POLLIN = 0x1, POLLOUT = 0x4, POLLERR = 0x8, POLLHUP = 0x10;
+    static final int MSG_NOSIGNAL = 0x4000;
+    private static final int EFD_CLOEXEC = 0x80000;
+    private static final int PROT_RW = 3, MAP_SHARED_POPULATE = 0x01 | 0x8000;
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final Linker.Option ERRNO = Linker.Option.captureCallState("errno");
+    private static final long ERRNO_AT = Linker.Option.captureStateLayout()
+            .byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+    private static final MethodHandle SYSCALL = LINKER.downcallHandle(LINKER.defaultLookup().find("syscall").orElseThrow(),
+            FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG),
+            ERRNO, Linker.Option.firstVariadicArg(1));
+    private static final MethodHandle CLOSE = fn("close", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle EVENTFD = fn("eventfd", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT));
+    private static final MethodHandle MMAP = fn("mmap",
+            FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG));
+    private static final MethodHandle MUNMAP = fn("munmap", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG));
+    //будильник зовут из чужих потоков, errno не нужен
+    private static final MethodHandle WRITE = LINKER.downcallHandle(LINKER.defaultLookup().find("write").orElseThrow(),
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG));
+    private static final MemorySegment ONE = Arena.ofAuto().allocate(JAVA_LONG);
+    static {
+        ONE.set(JAVA_LONG, 0, 1L);
+    }
+
+    private final int fd;
+    private final MemorySegment ring, sqes;
+    private final long sqHead, sqTail, cqHead, cqTail, cqes;
+    private final int sqEntries, sqMask, cqMask;
+    private int tail, head; //свой хвост SQ и своя голова CQ
+    private final MemorySegment err, arg, ts;
+
+    Uring(int entries) throws IOException {
+        Arena auto = Arena.ofAuto();
+        err = auto.allocate(Linker.Option.captureStateLayout());
+        ts = auto.allocate(16, 8);
+        //io_uring_getevents_arg: sigmask, sigmask_sz, pad, ts
+        arg = auto.allocate(24, 8);
+        arg.set(JAVA_LONG, 16, ts.address());
+
+        MemorySegment p = auto.allocate(120, 8); //io_uring_params, нули
+        long r = syscall(SYS_SETUP, entries, p.address(), 0, 0, 0, 0);
+        if (r < 0) throw new IOException("io_uring_setup failed, errno " + errno());
+        fd = (int) r;
+        int need = FEAT_SINGLE_MMAP | FEAT_NODROP | FEAT_EXT_ARG;
+        if ((p.get(JAVA_INT, 20) & need) != need) {
+            close(fd);
+            throw new IOException("kernel io_uring lacks EXT_ARG (needs Linux 5.11+)");
+        }
+        sqEntries = p.get(JAVA_INT, 0);
+        int cqEntries = p.get(JAVA_INT, 4);
+        //io_sqring_offsets с 40, io_cqring_offsets с 80
+        sqHead = p.get(JAVA_INT, 40);
+        sqTail = p.get(JAVA_INT, 44);
+        long sqArray = p.get(JAVA_INT, 64);
+        cqHead = p.get(JAVA_INT, 80);
+        cqTail = p.get(JAVA_INT, 84);
+        cqes = p.get(JAVA_INT, 100);
+
+        ring = mmap(Math.max(sqArray + sqEntries * 4L, cqes + (long) cqEntries * CQE), 0);
+        sqes = mmap((long) sqEntries * SQE, OFF_SQES);
+        sqMask = ring.get(JAVA_INT, p.get(JAVA_INT, 48));
+        cqMask = ring.get(JAVA_INT, p.get(JAVA_INT, 88));
+        //индекс в массиве SQE всегда равен позиции в кольце
+        for (int i = 0; i < sqEntries; i++) ring.set(JAVA_INT, sqArray + 4L * i, i);
+        tail = ring.get(JAVA_INT, sqTail);
+        head = ring.get(JAVA_INT, cqHead);
+    }
+
+    private MemorySegment mmap(long size, long offset) throws IOException {
+        MemorySegment m;
+        try {
+            m = (MemorySegment) MMAP.invokeExact(err, MemorySegment.NULL, size, PROT_RW, MAP_SHARED_POPULATE, fd, offset);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (m.address() == -1L) {
+            //первое отображение при неудаче второго остается до выхода процесса
+            close(fd);
+            throw new IOException("io_uring mmap failed, errno " + errno());
+        }
+        return m.reinterpret(size);
+    }
+
+    //--- подготовка SQE; уходят ядру в submit/submitAndWait
+
+    //однократное ожидание готовности fd (events - POLLIN/POLLOUT); результат - revents
+    void poll(int fd, int events, long userData) throws IOException {
+        prep(OP_POLL_ADD, fd, 0, 0, 0, events, (byte) 0, userData);
+    }
+
+    //отменить запрос с user_data target; его CQE придет с -ECANCELED
+    void cancel(long target, long userData) throws IOException {
+        prep(OP_ASYNC_CANCEL, -1, target, 0, 0, 0, (byte) 0, userData);
+    }
+
+    //буфер выберет ядро из группы group в момент прихода данных
+    void recvSelect(int fd, int len, int group, long userData) throws IOException {
+        long at = prep(OP_RECV, fd, 0, len, 0, 0, SQE_BUFFER_SELECT, userData);
+        sqes.set(JAVA_SHORT, at + 40, (short) group);
+    }
+
+    void send(int fd, long addr, int len, long userData) throws IOException {
+        prep(OP_SEND, fd, addr, len, 0, MSG_NOSIGNAL, (byte) 0, userData);
+    }
+
+    void read(int fd, long addr, int len, long userData) throws IOException {
+        prep(OP_READ, fd, addr, len, -1, 0, (byte) 0, userData);
+    }
+
+    //count буферов по size байт с addr, номера с bid
+    void provide(long addr, int size, int count, int group, int bid, long userData) throws IOException {
+        long at = prep(OP_PROVIDE_BUFFERS, count, addr, size, bid, 0, (byte) 0, userData);
+        sqes.set(JAVA_SHORT, at + 40, (short) group);
+    }
+
+    private long prep(byte op, int fd, long addr, int len, long off, int opFlags, byte flags, long userData) throws IOException {
+        if (tail - ring.get(JAVA_INT, sqHead) >= sqEntries) {
+            submit();
+            if (tail - ring.get(JAVA_INT, sqHead) >= sqEntries) throw new IOException("io_uring submission queue full");
+        }
+        long at = (long) (tail & sqMask) * SQE;
+        for (int i = 0; i < SQE; i += 8) sqes.set(JAVA_LONG, at + i, 0);
+        sqes.set(JAVA_BYTE, at, op);
+        sqes.set(JAVA_BYTE, at + 1, flags);
+        sqes.set(JAVA_INT, at + 4, fd);
+        sqes.set(JAVA_LONG, at + 8, off);
+        sqes.set(JAVA_LONG, at + 16, addr);
+        sqes.set(JAVA_INT, at + 24, len);
+        sqes.set(JAVA_INT, at + 28, opFlags);
+        sqes.set(JAVA_LONG, at + 32, userData);
+        tail++;
+        return at;
+    }
+
+    //--- отправка и завершения
+
+    //отдать ядру накопленные SQE, не дожидаясь завершений
+    void submit() throws IOException {
+        enter(false, -1);
+    }
+
+    //отдать накопленные SQE и ждать хотя бы одного завершения, не дольше timeoutMs (<0 - без срока)
+    void submitAndWait(long timeoutMs) throws IOException {
+        enter(true, timeoutMs);
+    }
+
+    private void enter(boolean wait, long timeoutMs) throws IOException {
+        VarHandle.releaseFence();
+        ring.set(JAVA_INT, sqTail, tail);
+        int n = tail - ring.get(JAVA_INT, sqHead);
+        int flags = 0, min = 0;
+        long a = 0, size = 0;
+        if (wait && !ready()) {
+            flags = ENTER_GETEVENTS;
+            min = 1;
+            if (timeoutMs >= 0) {
+                ts.set(JAVA_LONG, 0, timeoutMs / 1000);
+                ts.set(JAVA_LONG, 8, timeoutMs % 1000 * 1_000_000);
+                flags |= ENTER_EXT_ARG;
+                a = arg.address();
+                size = arg.byteSize();
+            }
+        }
+        if (n == 0 && min == 0) return;
+        if (syscall(SYS_ENTER, fd, n, min, flags, a, size) < 0) {
+            int e = errno();
+            //ETIME - вышел тайм-аут, EBUSY/EAGAIN - CQ переполнена, сначала разбор
+            if (e != EINTR && e != ETIME && e != EBUSY && e != EAGAIN) throw new IOException("io_uring_enter failed, errno " + e);
+        }
+    }
+
+    private boolean ready() {
+        int t = ring.get(JAVA_INT, cqTail);
+        VarHandle.acquireFence();
+        return t != head;
+    }
+
+    interface Completion {
+        void complete(long userData, int res, int flags) throws IOException;
+    }
+
+    //разобрать готовые CQE; обработчик может готовить новые SQE
+    void reap(Completion h) throws IOException {
+        while (ready()) {
+            long at = cqes + (long) (head & cqMask) * CQE;
+            long userData = ring.get(JAVA_LONG, at);
+            int res = ring.get(JAVA_INT, at + 8);
+            int flags = ring.get(JAVA_INT, at + 12);
+            head++;
+            VarHandle.releaseFence();
+            ring.set(JAVA_INT, cqHead, head);
+            h.complete(userData, res, flags);
+        }
+    }
+
+    void close() {
+        try {
+            int ignored = (int) MUNMAP.invokeExact(err, ring, ring.byteSize());
+            ignored = (int) MUNMAP.invokeExact(err, sqes, sqes.byteSize());
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        close(fd);
+    }
+
+    //--- libc, из потока кольца
+
+    int errno() {
+        return err.get(JAVA_INT, ERRNO_AT);
+    }
+
+    long syscall(long nr, long a, long b, long c, long d, long e, long f) {
+        try {
+            return (long) SYSCALL.invokeExact(err, nr, a, b, c, d, e, f);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    int close(int fd) {
+        try {
+            return (int) CLOSE.invokeExact(err, fd);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    //блокирующий: READ на нем ждет в ядре, пока кто-то не вызовет wake
+    int eventfd() throws IOException {
+        int e;
+        try {
+            e = (int) EVENTFD.invokeExact(err, 0, EFD_CLOEXEC);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (e < 0) throw new IOException("eventfd failed, errno " + errno());
+        return e;
+    }
+
+    //из любого потока: +1 к счетчику eventfd будит ожидающий его READ
+    static void wake(int efd) {
+        try {
+            long ignored = (long) WRITE.invokeExact(efd, ONE, 8L);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static MethodHandle fn(String name, FunctionDescriptor fd) {
+        return LINKER.downcallHandle(LINKER.defaultLookup().find(name).orElseThrow(), fd, ERRNO);
+    }
+}
@@ -0,0 +1,71 @@
+package socks5;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+//ключ канала в UringTransport: для Loop и всех, кто на нем живет, - обычный
+//SelectionKey (interestOps, readyOps, attach, cancel). готовность - завершения
+//POLL_ADD, а у сокетов туннеля - recv/send своего UringRelay
+final class UringKey extends SelectionKey {
+    final UringTransport transport;
+    final SelectableChannel ch;
+    final int fd, index;
+
+    int interest, readyOps;
+    boolean valid = true;
+    //что пришло из POLL_ADD и еще не отдано в dispatch (OP_*)
+    int pollReady;
+    //какие запросы (1 << вид) еще в ядре и какие из них уже отменяются
+    int inflight, cancelling;
+    boolean dirty, queued;
+
+    //relay, читающий из этого канала, и relay, пишущий в него
+    UringRelay in, out;
+
+    UringKey(UringTransport transport, SelectableChannel ch, int fd, int index, int ops) {
+        this.transport = transport;
+        this.ch = ch;
+        this.fd = fd;
+        this.index = index;
+        this.interest = ops;
+    }
+
+    @Override public SelectableChannel channel() { return ch; }
+
+    //своего Selector у транспорта нет
+    @Override public Selector selector() { return null; }
+
+    @Override public boolean isValid() { return valid && ch.isOpen(); }
+
+    @Override
+    public void cancel() {
+        if (!valid) return;
+        valid = false;
+        transport.cancelled(this);
+    }
+
+    @Override
+    public int interestOps() {
+        if (!isValid()) throw new CancelledKeyException();
+        return interest;
+    }
+
+    @Override
+    public SelectionKey interestOps(int ops) {
+        if (!isValid()) throw new CancelledKeyException();
+        if ((ops & ~ch.validOps()) != 0) throw new IllegalArgumentException("Invalid interest ops");
+        if (ops != interest) {
+            interest = ops;
+            transport.touch(this);
+        }
+        return this;
+    }
+
+    @Override
+    public int readyOps() {
+        if (!isValid()) throw new CancelledKeyException();
+        return readyOps;
+    }
+}
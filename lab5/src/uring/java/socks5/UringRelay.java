@@ -0,0 +1,210 @@
+package socks5;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+//направление туннеля на завершениях io_uring: recv из src в буфер группы, который
+//выбирает ядро, send оттуда же в dst. для Conn это обычный Relay: OP_READ у src -
+//recv завершился и read отдает его, OP_WRITE у dst - завершился send. кольцо из
+//пула - только под данные, пришедшие до начала туннеля
+final class UringRelay extends Relay {
+    //сколько принятых буферов может ждать отправки, прежде чем recv встанет (как BufPool.MAX у Copy)
+    static final int CHUNKS = Math.max(1, BufPool.MAX / UringTransport.BUF);
+    private static final int NONE = Integer.MIN_VALUE;
+
+    private final UringTransport t;
+    private final UringKey srcKey, dstKey;
+    private final BufPool pool;
+
+    //завершенный recv, которого Conn еще не видел: байт (0 - EOF, <0 - -errno) и буфер
+    private int result = NONE, resultBid = -1;
+    private boolean recving, starving, busy, want, released;
+    //send завершился, OP_WRITE у dst еще не отдан
+    boolean sent;
+    private int error;
+
+    //принятые буферы по порядку отправки; off - сколько ушло из первого
+    private final int[] bid = new int[CHUNKS], len = new int[CHUNKS];
+    private int first, chunks, off;
+    private Ring early;
+    //ответ SOCKS перед данными; [headOff, headLen) еще не отправлено
+    private MemorySegment head;
+    private int headOff, headLen;
+
+    UringRelay(UringTransport t, UringKey src, UringKey dst, BufPool pool) {
+        super((SocketChannel) src.channel(), (SocketChannel) dst.channel());
+        this.t = t;
+        this.srcKey = src;
+        this.dstKey = dst;
+        this.pool = pool;
+    }
+
+    @Override boolean canRead() { return !eof && (result != NONE || chunks < CHUNKS); }
+
+    @Override
+    boolean hasPending() {
+        return busy || headOff < headLen || early != null && !early.isEmpty() || chunks > 0;
+    }
+
+    boolean received() { return result != NONE; }
+
+    //send в ядре или есть что отправить
+    boolean sending() { return busy || want; }
+
+    @Override
+    int read(int max) throws IOException {
+        if (result == NONE) return 0;
+        int r = result;
+        result = NONE;
+        t.touch(srcKey);
+        if (r == 0) return count(-1);
+        if (r < 0) throw new IOException("recv failed, errno " + -r);
+        int i = (first + chunks++) % CHUNKS;
+        bid[i] = resultBid;
+        len[i] = r;
+        resultBid = -1;
+        //сразу в отправку, как у Copy: send уйдет тем же io_uring_enter
+        kick();
+        return count(r);
+    }
+
+    @Override
+    void preload(ByteBuffer data) {
+        if (early == null) early = pool.get(data.remaining());
+        early.put(data);
+    }
+
+    @Override
+    void write(ByteBuffer h) throws IOException {
+        if (error != 0) throw new IOException("send failed, errno " + error);
+        if (h != null && h.hasRemaining()) take(h);
+        if (hasPending()) kick();
+    }
+
+    //head копируется к себе; send, который уже в ядре, читает [headOff, headLen),
+    //поэтому, пока он идет, место только дописывается в конец
+    private void take(ByteBuffer h) {
+        int n = h.remaining(), keep = headLen - headOff;
+        if (head == null || headLen + n > head.byteSize()) {
+            if (busy && keep > 0) return; //Conn повторит на следующем OP_WRITE
+            MemorySegment seg = head;
+            if (seg == null || keep + n > seg.byteSize()) seg = Arena.ofAuto().allocate(Math.max(64, keep + n));
+            if (keep > 0) MemorySegment.copy(head, headOff, seg, 0, keep);
+            head = seg;
+            headOff = 0;
+            headLen = keep;
+        }
+        MemorySegment.copy(MemorySegment.ofBuffer(h), 0, head, headLen, n);
+        h.position(h.limit());
+        headLen += n;
+    }
+
+    @Override
+    void release() {
+        released = true;
+        if (resultBid >= 0) t.giveBack(resultBid);
+        result = NONE;
+        resultBid = -1;
+        idle();
+    }
+
+    //после release: буферы - назад, когда send их больше не читает
+    private void idle() {
+        if (busy) return;
+        for (; chunks > 0; chunks--, first = (first + 1) % CHUNKS) t.giveBack(bid[first]);
+        if (early != null) {
+            pool.put(early);
+            early = null;
+        }
+        head = null;
+        headOff = headLen = 0;
+    }
+
+    private void kick() {
+        want = true;
+        t.touch(dstKey);
+    }
+
+    //--- из UringTransport.flush
+
+    void armRecv() throws IOException {
+        if (eof || recving || starving || released || result != NONE || chunks == CHUNKS) return;
+        t.recv(srcKey, Math.min(UringTransport.BUF, quota));
+        recving = true;
+    }
+
+    void armSend() throws IOException {
+        if (busy || released) return;
+        if (headOff < headLen) {
+            t.send(dstKey, head.address() + headOff, headLen - headOff);
+        } else if (early != null && !early.isEmpty()) {
+            t.send(dstKey, MemorySegment.ofBuffer(early.buf).address() + early.readAt(), early.readLength());
+        } else if (chunks > 0) {
+            t.send(dstKey, t.buffer(bid[first]) + off, len[first] - off);
+        } else {
+            want = false;
+            return;
+        }
+        busy = true;
+    }
+
+    //--- завершения
+
+    void onRecv(int res, int flags) {
+        recving = false;
+        int b = (flags & Uring.CQE_F_BUFFER) != 0 ? flags >>> Uring.CQE_BUFFER_SHIFT : -1;
+        if (released) {
+            if (b >= 0) t.giveBack(b);
+            return;
+        }
+        if (res == -Uring.ENOBUFS) {
+            //вся группа в очередях отправки: ждать, пока какой-нибудь send вернет буфер
+            starving = true;
+            t.starved(srcKey);
+            return;
+        }
+        //перевзведет flush
+        if (res == -Uring.EAGAIN || res == -Uring.EINTR || res == -Uring.ECANCELED) return;
+        result = res;
+        resultBid = b;
+    }
+
+    void fed() { starving = false; }
+
+    void onSend(int res) {
+        busy = false;
+        if (released) {
+            idle();
+            return;
+        }
+        if (res == -Uring.EAGAIN || res == -Uring.EINTR) return;
+        if (res < 0) {
+            error = -res;
+            sent = true;
+            return;
+        }
+        if (headOff < headLen) {
+            headOff += res;
+            if (headOff == headLen) headOff = headLen = 0;
+        } else if (early != null && !early.isEmpty()) {
+            early.consumed(res);
+            if (early.isEmpty()) {
+                pool.put(early);
+                early = null;
+            }
+        } else {
+            off += res;
+            if (off == len[first]) {
+                t.giveBack(bid[first]);
+                first = (first + 1) % CHUNKS;
+                chunks--;
+                off = 0;
+                t.touch(srcKey);
+            }
+        }
+        sent = true;
+    }
+}
@@ -0,0 +1,305 @@
+package socks5;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static java.nio.channels.SelectionKey.*;
+
+//транспорт цикла на io_uring (профиль uring, -Dsocks5.transport=uring). каналы те же,
+//что у Selector (SocketChannel и пр. из JDK), ключи - UringKey. за итерацию:
+//flush готовит SQE для изменившихся ключей (POLL_ADD под interestOps, recv/send
+//туннелей, отмены закрытых), один io_uring_enter отдает их ядру и ждет завершений,
+//dispatch отдает Loop ключи с готовностью. туннель читает recv с выбором буфера
+//ядром из общей группы цикла (BUFFERS по BUF байт): простаивающий сокет памяти не
+//держит. прием соединений остается у Acceptor (ServerSocketChannel) - принятый
+//сокет должен быть каналом JDK, общим с Dialer, Tunnel и UdpAssoc
+final class UringTransport extends Transport {
+    static final int ENTRIES = Integer.getInteger("socks5.uring.entries", 1024);
+    static final int BUF = Integer.getInteger("socks5.uring.buf", 16 * 1024);
+    static final int BUFFERS = Math.min(1 << 15, Integer.getInteger("socks5.uring.buffers", 512));
+    private static final int GROUP = 0;
+
+    //user_data = номер ключа << 3 | вид
+    static final int POLL_IN = 1, POLL_OUT = 2, RECV = 3, SEND = 4, CANCEL = 5;
+    private static final long WAKE = -1, PROVIDE = -2;
+    private static final int IN_OPS = OP_READ | OP_ACCEPT, OUT_OPS = OP_WRITE | OP_CONNECT;
+
+    //номер fd канала JDK: SelChImpl.getFDVal, нужен --add-exports java.base/sun.nio.ch=ALL-UNNAMED
+    private static final MethodHandle FD_VAL;
+    static {
+        MethodHandle h = null;
+        try {
+            h = MethodHandles.lookup().unreflect(Class.forName("sun.nio.ch.SelChImpl").getMethod("getFDVal"));
+        } catch (ReflectiveOperationException | RuntimeException ignored) {}
+        FD_VAL = h;
+    }
+
+    private final Uring ring;
+    private final int efd;
+    private final MemorySegment wakeBuf, bufs;
+    private final AtomicBoolean woken = new AtomicBoolean();
+
+    private UringKey[] table = new UringKey[64];
+    private int[] free = new int[64];
+    private int freeTop = 0, next = 0;
+    private final HashSet<SelectionKey> keys = new HashSet<>();
+    private final ArrayDeque<UringKey> dirty = new ArrayDeque<>(), ready = new ArrayDeque<>();
+    //recv, получившие ENOBUFS: снова в работу, когда буфер вернется в группу
+    private final ArrayDeque<UringKey> starved = new ArrayDeque<>();
+
+    UringTransport() throws IOException {
+        if (FD_VAL == null) throw new IOException("needs --add-exports java.base/sun.nio.ch=ALL-UNNAMED");
+        try (Pipe.SourceChannel probe = Pipe.open().source()) {
+            fd(probe);
+        }
+        ring = new Uring(ENTRIES);
+        efd = ring.eventfd();
+        Arena auto = Arena.ofAuto();
+        wakeBuf = auto.allocate(8, 8);
+        bufs = auto.allocate((long) BUF * BUFFERS, 4096);
+        ring.provide(bufs.address(), BUF, BUFFERS, GROUP, 0, PROVIDE);
+        ring.read(efd, wakeBuf.address(), 8, WAKE);
+        ring.submit();
+    }
+
+    static int fd(SelectableChannel ch) throws IOException {
+        try {
+            return (int) FD_VAL.invoke(ch);
+        } catch (IllegalAccessError | ClassCastException e) {
+            throw new IOException("needs --add-exports java.base/sun.nio.ch=ALL-UNNAMED", e);
+        } catch (Throwable t) {
+            throw new IOException(t);
+        }
+    }
+
+    @Override
+    SelectionKey register(SelectableChannel ch, int ops, Object att) throws IOException {
+        if (ch.isBlocking()) throw new IllegalBlockingModeException();
+        if ((ops & ~ch.validOps()) != 0) throw new IllegalArgumentException("Invalid interest ops");
+        int index;
+        if (freeTop > 0) index = free[--freeTop];
+        else {
+            if (next == table.length) table = Arrays.copyOf(table, next * 2);
+            index = next++;
+        }
+        UringKey k = new UringKey(this, ch, fd(ch), index, ops);
+        k.attach(att);
+        table[index] = k;
+        keys.add(k);
+        touch(k);
+        return k;
+    }
+
+    @Override
+    Relay relay(Loop loop, SelectionKey src, SelectionKey dst) {
+        UringKey s = (UringKey) src, d = (UringKey) dst;
+        UringRelay r = new UringRelay(this, s, d, loop.pool());
+        s.in = r;
+        d.out = r;
+        return r;
+    }
+
+    @Override
+    void select(long timeoutMs) throws IOException {
+        flush();
+        if (ready.isEmpty()) ring.submitAndWait(timeoutMs == 0 ? -1 : timeoutMs);
+        else ring.submit();
+        ring.reap(this::complete);
+    }
+
+    @Override
+    void dispatch(Consumer<SelectionKey> action) {
+        UringKey k;
+        while ((k = ready.poll()) != null) {
+            k.queued = false;
+            if (!k.isValid()) continue;
+            int ops = readiness(k) & k.interest;
+            k.pollReady = 0;
+            if (ops == 0) continue;
+            if ((ops & OP_WRITE) != 0 && k.out != null) k.out.sent = false;
+            k.readyOps = ops;
+            action.accept(k);
+            //POLL_ADD однократный: перевзвести под новые interestOps
+            touch(k);
+        }
+    }
+
+    @Override
+    void wakeup() {
+        if (woken.compareAndSet(false, true)) Uring.wake(efd);
+    }
+
+    @Override
+    Collection<SelectionKey> keys() { return keys; }
+
+    @Override
+    void close() {
+        ring.close();
+        ring.close(efd);
+    }
+
+    @Override
+    String describe() { return "io_uring, " + BUFFERS + " x " + BUF / 1024 + " KB recv buffers"; }
+
+    //--- для UringKey и UringRelay
+
+    void touch(UringKey k) {
+        if (k.dirty) return;
+        k.dirty = true;
+        dirty.add(k);
+    }
+
+    void cancelled(UringKey k) {
+        keys.remove(k);
+        touch(k);
+    }
+
+    void recv(UringKey k, int len) throws IOException {
+        ring.recvSelect(k.fd, len, GROUP, ud(k, RECV));
+        k.inflight |= 1 << RECV;
+    }
+
+    void send(UringKey k, long addr, int len) throws IOException {
+        ring.send(k.fd, addr, len, ud(k, SEND));
+        k.inflight |= 1 << SEND;
+    }
+
+    long buffer(int bid) { return bufs.address() + (long) bid * BUF; }
+
+    //буфер bid снова в группе; ждавшие его recv - в работу
+    void giveBack(int bid) {
+        try {
+            ring.provide(buffer(bid), BUF, 1, GROUP, bid, PROVIDE);
+        } catch (IOException e) {
+            return; //SQ не принимает даже после submit - группа станет на буфер меньше
+        }
+        UringKey k;
+        while ((k = starved.poll()) != null) {
+            if (k.in != null) k.in.fed();
+            touch(k);
+        }
+    }
+
+    void starved(UringKey k) { starved.add(k); }
+
+    //--- внутри итерации
+
+    private static long ud(UringKey k, int kind) { return (long) k.index << 3 | kind; }
+
+    private void flush() throws IOException {
+        UringKey k;
+        while ((k = dirty.poll()) != null) {
+            k.dirty = false;
+            if (k.valid && !k.ch.isOpen()) {
+                k.valid = false;
+                keys.remove(k);
+            }
+            if (!k.valid) {
+                retire(k);
+                continue;
+            }
+            arm(k);
+            if ((readiness(k) & k.interest) != 0) enqueue(k);
+        }
+    }
+
+    private void arm(UringKey k) throws IOException {
+        int want = k.interest;
+        if (k.in != null && (want & OP_READ) != 0) {
+            k.in.armRecv();
+            want &= ~OP_READ;
+        }
+        //пока relay отправляет сам, OP_WRITE - его завершения; иначе (ответ SOCKS
+        //без данных) Conn пишет в сокет сам и ждет POLLOUT
+        if (k.out != null && k.out.sending()) {
+            k.out.armSend();
+            want &= ~OP_WRITE;
+        }
+        if ((want & IN_OPS) != 0 && (k.inflight & 1 << POLL_IN) == 0) {
+            ring.poll(k.fd, Uring.POLLIN, ud(k, POLL_IN));
+            k.inflight |= 1 << POLL_IN;
+        }
+        if ((want & OUT_OPS) != 0 && (k.inflight & 1 << POLL_OUT) == 0) {
+            ring.poll(k.fd, Uring.POLLOUT, ud(k, POLL_OUT));
+            k.inflight |= 1 << POLL_OUT;
+        }
+    }
+
+    //ключ отменен или канал закрыт: отменить то, что еще в ядре; номер ключа
+    //освобождается после последнего CQE
+    private void retire(UringKey k) throws IOException {
+        int pending = k.inflight & ~k.cancelling;
+        for (int kind = POLL_IN; kind <= SEND; kind++) {
+            if ((pending & 1 << kind) != 0) ring.cancel(ud(k, kind), ud(k, CANCEL));
+        }
+        k.cancelling |= pending;
+        if (k.inflight == 0) release(k);
+    }
+
+    private void release(UringKey k) {
+        if (table[k.index] != k) return;
+        table[k.index] = null;
+        if (freeTop == free.length) free = Arrays.copyOf(free, freeTop * 2);
+        free[freeTop++] = k.index;
+    }
+
+    private int readiness(UringKey k) {
+        int ops = k.pollReady;
+        //POLL_ADD, взведенный до начала туннеля, здесь уже не в счет
+        if (k.in != null) ops = ops & ~OP_READ | (k.in.received() ? OP_READ : 0);
+        if (k.out != null && k.out.sending()) ops &= ~OP_WRITE;
+        if (k.out != null && k.out.sent) ops |= OP_WRITE;
+        return ops;
+    }
+
+    private void enqueue(UringKey k) {
+        if (k.queued) return;
+        k.queued = true;
+        ready.add(k);
+    }
+
+    private void complete(long userData, int res, int flags) throws IOException {
+        if (userData == WAKE) {
+            woken.set(false);
+            ring.read(efd, wakeBuf.address(), 8, WAKE);
+            return;
+        }
+        if (userData == PROVIDE) return;
+        int kind = (int) userData & 7;
+        if (kind == CANCEL) return;
+        UringKey k = table[(int) (userData >>> 3)];
+        k.inflight &= ~(1 << kind);
+        k.cancelling &= ~(1 << kind);
+        switch (kind) {
+            case POLL_IN, POLL_OUT -> {
+                if (res > 0) {
+                    if ((res & Uring.POLLIN) != 0) k.pollReady |= IN_OPS;
+                    if ((res & Uring.POLLOUT) != 0) k.pollReady |= OUT_OPS;
+                    //ошибку и обрыв увидит тот, кто ждал, на своей операции
+                    if ((res & (Uring.POLLERR | Uring.POLLHUP)) != 0) k.pollReady |= IN_OPS | OUT_OPS;
+                }
+            }
+            case RECV -> k.in.onRecv(res, flags);
+            case SEND -> k.out.onSend(res);
+        }
+        if (!k.valid) {
+            if (k.inflight == 0) release(k);
+            return;
+        }
+        if ((readiness(k) & k.interest) != 0) enqueue(k);
+        touch(k);
+    }
+}